@@ -0,0 +1,249 @@
+package DNSHandling;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+//domains we refuse to resolve, millions of them, checked on every query before the cache
+//names aren't kept at all, just a 64 bit hash of each one in a sorted long[], 8 bytes a name where a HashSet<String>
+//would take well over 100, with a Bloom filter in front so most queries never get as far as the binary search
+//the hash is built up one label at a time from the right, so hashing "ads.tracker.example.com" once also gives
+//the hashes of "tracker.example.com", "example.com" and "com", and every suffix check is one more probe
+/* list files can mix these line formats, '#' and '!' start comments
+    example.com                 example.com and everything under it
+    *.example.com               the same
+    ||example.com^              the same, as adblock lists write it
+    0.0.0.0 example.com ...     hosts file lines, just the names given
+*/
+public class Blocklist {
+    //TTL on sinkhole answers, short so unblocking a name takes effect quickly
+    static final int BLOCKED_TTL = 60;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    //the lowest bit of a key says whether the entry covers names below it too
+    private static final long SUFFIX = 1L;
+    //Bloom filter bits per name, with 4 bits set in one 64 bit word that's about one false positive in 200
+    private static final int BLOOM_BITS_PER_NAME = 16;
+    private static final byte[] SINKHOLE_A = new byte[4];
+    private static final byte[] SINKHOLE_AAAA = new byte[16];
+    //names hosts files map to themselves, never worth blocking
+    private static final List<String> HOSTS_NAMES = List.of("localhost", "localhost.localdomain", "local", "broadcasthost",
+            "ip6-localhost", "ip6-loopback", "0.0.0.0");
+
+    private final long[] keys;
+    private final long[] bloom;
+    private final int bloomMask;
+    //true to answer A and AAAA with unspecified addresses instead of NXDOMAIN
+    private final boolean sinkhole;
+
+    private Blocklist(long[] keys, boolean sinkhole) {
+        this.keys = keys;
+        this.sinkhole = sinkhole;
+        int words = Integer.highestOneBit(Math.max(1, keys.length * BLOOM_BITS_PER_NAME / 64) * 2 - 1);
+        this.bloom = new long[words];
+        this.bloomMask = words - 1;
+        for (long key : keys) {
+            bloom[(int) (key >>> 1) & bloomMask] |= bloomBits(key);
+        }
+    }
+
+    public static Blocklist load(List<Path> files, boolean sinkhole) throws IOException {
+        KeyBuilder builder = new KeyBuilder();
+        for (Path path : files) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    builder.addLine(line);
+                }
+            }
+        }
+        if (builder.skipped > 0) {
+            Log.warn("Skipped " + builder.skipped + " blocklist lines that weren't names");
+        }
+        return new Blocklist(builder.finish(), sinkhole);
+    }
+
+    public static Blocklist build(List<String> lines, boolean sinkhole) {
+        KeyBuilder builder = new KeyBuilder();
+        for (String line : lines) {
+            builder.addLine(line);
+        }
+        return new Blocklist(builder.finish(), sinkhole);
+    }
+
+    public boolean isBlocked(DNSName name) {
+        byte[] wire = name.getWire();
+        int labelCount = name.getLabelCount();
+        if (keys.length == 0 || labelCount == 0) {
+            return false;
+        }
+        //label starts, so they can be hashed from the right
+        int[] labels = new int[labelCount];
+        for (int i = 0, position = 0; i < labelCount; i++) {
+            labels[i] = position;
+            position += wire[position] + 1;
+        }
+        long hash = FNV_OFFSET;
+        for (int i = labelCount - 1; i >= 0; i--) {
+            hash = hashLabel(hash, wire, labels[i] + 1, wire[labels[i]]);
+            long key = toKey(hash);
+            long bits = bloomBits(key);
+            if ((bloom[(int) (key >>> 1) & bloomMask] & bits) != bits) {
+                continue;
+            }
+            if (Arrays.binarySearch(keys, key | SUFFIX) >= 0 || (i == 0 && Arrays.binarySearch(keys, key) >= 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //the reply for a blocked name: NXDOMAIN, or with sinkholing an unspecified address for A and AAAA and NODATA for the rest
+    //reply needs room for a header, the question and one AAAA record
+    public int writeReply(DNSQuestion question, byte[] questionName, int clientId, int clientFlags, byte[] reply) {
+        MessageWriter writer = new MessageWriter().reset(ByteBuffer.wrap(reply), 0);
+        int type = question.getQType();
+        byte[] address = !sinkhole ? null : type == DNSRecord.TYPE_A ? SINKHOLE_A : type == DNSRecord.TYPE_AAAA ? SINKHOLE_AAAA : null;
+        int rcode = sinkhole ? 0 : CachedResponse.RCODE_NXDOMAIN;
+        writer.writeHeader(clientId, DNSHeader.responseFlags(clientFlags) | rcode, 1, address != null ? 1 : 0, 0, 0);
+        writer.writeName(questionName != null ? questionName : question.getQName().getWire());
+        writer.writeShort(type);
+        writer.writeShort(question.getQClass());
+        if (address != null) {
+            writer.writeShort(0xC000 | MessageView.HEADER_LENGTH);
+            writer.writeShort(type);
+            writer.writeShort(question.getQClass());
+            writer.writeInt(BLOCKED_TTL);
+            writer.writeShort(address.length);
+            writer.writeBytes(address);
+        }
+        return writer.getLength();
+    }
+
+    //FNV-1a over the label's bytes folded to lower case, then a separator so "a.bc" and "ab.c" differ
+    private static long hashLabel(long hash, byte[] wire, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (MessageView.toLowerCase(wire[i]) & 0xFF)) * FNV_PRIME;
+        }
+        return (hash ^ '.') * FNV_PRIME;
+    }
+
+    //FNV spreads its low bits poorly, so it's finished off with the murmur3 mixer, and the flag bit cleared
+    private static long toKey(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash & ~SUFFIX;
+    }
+
+    //4 bits out of 64, from the top of the key, the bottom picks the word
+    private static long bloomBits(long key) {
+        return (1L << ((key >>> 40) & 63)) | (1L << ((key >>> 46) & 63)) | (1L << ((key >>> 52) & 63)) | (1L << (key >>> 58));
+    }
+
+    //getters
+    public int getSize() {
+        return keys.length;
+    }
+
+    public boolean isSinkhole() {
+        return sinkhole;
+    }
+
+    public String toString() {
+        return "Names: " + getSize() +
+                ", Response: " + (sinkhole ? "sinkhole" : "NXDOMAIN") +
+                ", Memory: " + (keys.length + bloom.length) * 8L / 1024 + "KB";
+    }
+
+    //gathers keys from list lines into a growing array, then sorts them and drops duplicates
+    private static final class KeyBuilder {
+        long[] keys = new long[1024];
+        int count;
+        int skipped;
+
+        void addLine(String line) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("!") || line.startsWith("[")) {
+                return;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length > 1) {
+                //a hosts file line, the first field is the address they'd be pointed at
+                for (int i = 1; i < fields.length; i++) {
+                    if (!HOSTS_NAMES.contains(fields[i])) {
+                        add(fields[i], false);
+                    }
+                }
+                return;
+            }
+            String name = line;
+            if (name.startsWith("||") && name.endsWith("^")) {
+                name = name.substring(2, name.length() - 1);
+            } else if (name.startsWith("*.")) {
+                name = name.substring(2);
+            }
+            add(name, true);
+        }
+
+        void add(String name, boolean suffix) {
+            //adblock rules with options, paths or exceptions, and anything else that isn't just a host name
+            byte[] wire;
+            try {
+                wire = isHostName(name) ? DNSName.fromString(name).getWire() : null;
+            } catch (IllegalArgumentException e) {
+                wire = null;
+            }
+            if (wire == null || wire.length <= 1) {
+                skipped++;
+                return;
+            }
+            long hash = FNV_OFFSET;
+            //label starts from the right, the wire format only reads left to right
+            int[] labels = new int[128];
+            int labelCount = 0;
+            for (int position = 0; wire[position] != 0; position += wire[position] + 1) {
+                labels[labelCount++] = position;
+            }
+            for (int i = labelCount - 1; i >= 0; i--) {
+                hash = hashLabel(hash, wire, labels[i] + 1, wire[labels[i]]);
+            }
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+            }
+            keys[count++] = toKey(hash) | (suffix ? SUFFIX : 0);
+        }
+
+        static boolean isHostName(String name) {
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_' || c == '.')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long[] finish() {
+            long[] sorted = Arrays.copyOf(keys, count);
+            Arrays.parallelSort(sorted);
+            int unique = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[unique++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(sorted, unique);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package DNSHandling;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//pool of same sized direct buffers, so packets can be received and sent without allocating anything per packet
+//buffers are handed out cleared and taken back by release(), the pool only ever keeps up to maxPooled of them
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            //pool is empty, this only happens until the pool has warmed up or under a burst
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        //anything past the limit is left for the garbage collector
+        if (buffer.capacity() == bufferSize && pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        } else if (buffer.capacity() == bufferSize) {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
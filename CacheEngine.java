@@ -0,0 +1,384 @@
+package DNSHandling;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.ReentrantLock;
+
+//bounded cache split into independently locked segments
+//each segment runs segmented LRU: new entries start in a probation area and only move to the
+//protected area once they're hit again, so one-off lookups can't push out the names that get asked for all the time
+//every entry has an absolute expiry time on the System.nanoTime clock, and each segment keeps a timer wheel
+//that a background thread advances once a second to drop entries as they expire
+public class CacheEngine<K, V> implements CacheStore<K, V> {
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+    //share of each segment reserved for entries that have been hit more than once
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final Segment<K, V>[] segments;
+    private final int maxEntries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    private final ScheduledExecutorService expiryTimer;
+    //refreshes hot entries before they expire, null when prefetching is off
+    private volatile Prefetcher<K> prefetcher;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public CacheEngine(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        //split the budget between the segments, rounding up so every segment holds at least one entry
+        int perSegment = (maxEntries + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+        segments = new Segment[SEGMENT_COUNT];
+        long now = System.nanoTime();
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment<>(this, perSegment, now);
+        }
+
+        expiryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiryTimer.scheduleAtFixedRate(this::expireEntries, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        V value = null;
+        Entry<K, V> toRefresh = null;
+        Prefetcher<K> prefetcher = this.prefetcher;
+        segment.lock.lock();
+        try {
+            Entry<K, V> entry = segment.get(key);
+            if (entry != null) {
+                long now = System.nanoTime();
+                //the wheel only ticks once a second, so check the exact time here too
+                if (now - entry.expiresAt >= 0) {
+                    segment.remove(key);
+                    expirations.increment();
+                } else {
+                    value = entry.value;
+                    entry.hits++;
+                    if (prefetcher != null) {
+                        if (entry.fromPrefetch) {
+                            prefetcher.recordPrefetchHit();
+                        }
+                        //only one refresh per entry at a time
+                        if (!entry.refreshing && prefetcher.isDue(entry.hits, entry.expiresAt - now, entry.expiresAt - entry.insertedAt)) {
+                            entry.refreshing = true;
+                            toRefresh = entry;
+                        }
+                    }
+                }
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        //start the refresh outside the lock, it calls out to the upstream
+        if (toRefresh != null) {
+            Entry<K, V> refreshed = toRefresh;
+            prefetcher.refresh(key, () -> refreshed.refreshing = false);
+        }
+        return value;
+    }
+
+    @Override
+    public void put(K key, V value, long expiresAt, boolean fromPrefetch) {
+        Segment<K, V> segment = segmentFor(key);
+        int evicted;
+        segment.lock.lock();
+        try {
+            evicted = segment.put(new Entry<>(key, value, expiresAt, fromPrefetch));
+        } finally {
+            segment.lock.unlock();
+        }
+        if (evicted > 0) {
+            evictions.add(evicted);
+        }
+    }
+
+    @Override
+    public void setPrefetcher(Prefetcher<K> prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    @Override
+    public Prefetcher<K> getPrefetcher() {
+        return prefetcher;
+    }
+
+    @Override
+    public void remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            segment.remove(key);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    //calls action with every live entry, for writing the cache out
+    //each segment is copied under its lock and the action runs outside it, so lookups are only held up for the copy
+    @Override
+    public void forEach(BiConsumer<K, V> action) {
+        long now = System.nanoTime();
+        for (Segment<K, V> segment : segments) {
+            List<Entry<K, V>> entries;
+            segment.lock.lock();
+            try {
+                entries = new ArrayList<>(segment.probation.size() + segment.protectedEntries.size());
+                entries.addAll(segment.probation.values());
+                entries.addAll(segment.protectedEntries.values());
+            } finally {
+                segment.lock.unlock();
+            }
+            for (Entry<K, V> entry : entries) {
+                if (now - entry.expiresAt < 0) {
+                    action.accept(entry.key, entry.value);
+                }
+            }
+        }
+    }
+
+    //runs once a second on the expiry thread, only touching the entries that are actually due
+    private void expireEntries() {
+        long now = System.nanoTime();
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                expirations.add(segment.expire(now));
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        expiryTimer.shutdownNow();
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        //pick the segment from the top bits of a multiplicative hash, the maps inside a segment bucket
+        //by the low bits, and if both used the same bits every key in a segment would share 1/16 of its buckets
+        int hash = key.hashCode() * 0x9E3779B9;
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    //getters for the counters
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.probation.size() + segment.protectedEntries.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public String toString() {
+        return "Entries: " + size() + "/" + maxEntries +
+                ", Hits: " + getHits() +
+                ", Misses: " + getMisses() +
+                ", Evictions: " + getEvictions() +
+                ", Expirations: " + getExpirations();
+    }
+
+    private static class Entry<K, V> {
+        final K key;
+        final V value;
+        final long insertedAt;
+        final long expiresAt;
+        final boolean fromPrefetch;
+        //this entry's place in the segment's timer wheel
+        final TimerWheel.Node<Entry<K, V>> expiryNode = new TimerWheel.Node<>(this);
+        //hits since it was put in, only changed under the segment lock
+        int hits;
+        volatile boolean refreshing;
+
+        Entry(K key, V value, long expiresAt, boolean fromPrefetch) {
+            this.key = key;
+            this.value = value;
+            this.insertedAt = System.nanoTime();
+            this.expiresAt = expiresAt;
+            this.fromPrefetch = fromPrefetch;
+        }
+    }
+
+    private static class Segment<K, V> {
+        final CacheEngine<K, V> owner;
+        final ReentrantLock lock = new ReentrantLock();
+        final int capacity;
+        final int protectedCapacity;
+        //both maps are in access order, so the first entry is always the least recently used
+        final LinkedHashMap<K, Entry<K, V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+        final LinkedHashMap<K, Entry<K, V>> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        final TimerWheel<Entry<K, V>> expiryWheel;
+
+        Segment(CacheEngine<K, V> owner, int capacity, long startNanos) {
+            this.owner = owner;
+            this.capacity = capacity;
+            this.protectedCapacity = Math.max(1, (int) (capacity * PROTECTED_SHARE));
+            this.expiryWheel = new TimerWheel<>(startNanos);
+        }
+
+        Entry<K, V> get(K key) {
+            Entry<K, V> entry = protectedEntries.get(key);
+            if (entry != null) {
+                return entry;
+            }
+            entry = probation.remove(key);
+            if (entry != null) {
+                //second hit, promote it to the protected area
+                protectedEntries.put(key, entry);
+                demoteOverflow();
+            }
+            return entry;
+        }
+
+        //returns how many entries had to be evicted to make room
+        int put(Entry<K, V> entry) {
+            K key = entry.key;
+            expiryWheel.schedule(entry.expiryNode, entry.expiresAt);
+
+            Entry<K, V> replaced = protectedEntries.get(key);
+            if (replaced != null) {
+                protectedEntries.put(key, entry);
+            } else {
+                replaced = probation.put(key, entry);
+            }
+            if (replaced != null) {
+                discard(replaced);
+                return 0;
+            }
+
+            int evicted = 0;
+            while (probation.size() + protectedEntries.size() > capacity) {
+                //evict from probation first, only touch protected entries if there's nothing else
+                LinkedHashMap<K, Entry<K, V>> victims = probation.isEmpty() ? protectedEntries : probation;
+                Iterator<Map.Entry<K, Entry<K, V>>> eldest = victims.entrySet().iterator();
+                discard(eldest.next().getValue());
+                eldest.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        void remove(K key) {
+            Entry<K, V> removed = protectedEntries.remove(key);
+            if (removed == null) {
+                removed = probation.remove(key);
+            }
+            if (removed != null) {
+                discard(removed);
+            }
+        }
+
+        //drops everything the wheel says is due and returns how many entries that was
+        int expire(long now) {
+            int[] expired = new int[1];
+            expiryWheel.advance(now, entry -> {
+                //the wheel only ever holds live entries, replaced and removed ones are unlinked straight away
+                if (protectedEntries.remove(entry.key, entry) || probation.remove(entry.key, entry)) {
+                    discard(entry);
+                    expired[0]++;
+                }
+            });
+            return expired[0];
+        }
+
+        void clear() {
+            for (Entry<K, V> entry : probation.values()) {
+                expiryWheel.unlink(entry.expiryNode);
+            }
+            for (Entry<K, V> entry : protectedEntries.values()) {
+                expiryWheel.unlink(entry.expiryNode);
+            }
+            probation.clear();
+            protectedEntries.clear();
+        }
+
+        //bookkeeping for an entry that is leaving the segment
+        private void discard(Entry<K, V> entry) {
+            expiryWheel.unlink(entry.expiryNode);
+            //a refreshed entry that nobody asked for before it left was a wasted upstream query
+            Prefetcher<K> prefetcher = owner.prefetcher;
+            if (prefetcher != null && entry.fromPrefetch && entry.hits == 0) {
+                prefetcher.recordWasted();
+            }
+        }
+
+        //move the least recently used protected entries back to probation when the protected area is full
+        private void demoteOverflow() {
+            while (protectedEntries.size() > protectedCapacity) {
+                Iterator<Map.Entry<K, Entry<K, V>>> eldest = protectedEntries.entrySet().iterator();
+                Map.Entry<K, Entry<K, V>> entry = eldest.next();
+                eldest.remove();
+                probation.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package DNSHandling;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/* the cache written out to disk so a restarted server doesn't start cold
+    header:  magic "DNSC" (4 bytes) | version (4 bytes) | entry count (4 bytes)
+    entries: expires at (8 bytes) | received at (8 bytes) | length (4 bytes) | response (length bytes)
+   times are wall clock milliseconds since the epoch, since the nanoTime clock means nothing to another process
+   the response is the cached wire image with the TTLs it was stored with, its question section is the cache key
+*/
+public class CacheSnapshot {
+    static final int MAGIC = 0x444E5343; //"DNSC"
+    static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 12;
+    private static final int ENTRY_HEADER_LENGTH = 20;
+
+    //writes every live entry to path, going through a temporary file so a crash never leaves half a snapshot behind
+    //the periodic save and the one at shutdown can overlap, so saves take turns, and each gets a temporary file of its own
+    //returns how many entries were written
+    public static synchronized int save(Path path, CacheStore<DNSQuestion, CachedResponse> cache) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        try {
+            int count = write(temp, cache);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return count;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static int write(Path temp, CacheStore<DNSQuestion, CachedResponse> cache) throws IOException {
+        //line the two clocks up once, so every entry is converted the same way
+        long nowMillis = System.currentTimeMillis();
+        long nowNanos = System.nanoTime();
+        int[] count = new int[1];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            //the count is filled in at the end
+            out.writeInt(0);
+            IOException[] failure = new IOException[1];
+            cache.forEach((question, response) -> {
+                if (failure[0] != null) {
+                    return;
+                }
+                try {
+                    byte[] wire = response.getSnapshotWire();
+                    out.writeLong(nowMillis + (response.getExpiresAt() - nowNanos) / 1_000_000L);
+                    out.writeLong(nowMillis + (response.getReceivedAt() - nowNanos) / 1_000_000L);
+                    out.writeInt(wire.length);
+                    out.write(wire);
+                    count[0]++;
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, count[0]), 8);
+        }
+        return count[0];
+    }
+
+    //puts every entry from the snapshot that hasn't expired yet into the cache, returns how many that was
+    //the file is memory mapped, skipped over once to find the live entries, then those are parsed in parallel
+    public static int load(Path path, CacheStore<DNSQuestion, CachedResponse> cache) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too big to map: " + path);
+            }
+            MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (file.limit() < HEADER_LENGTH || file.getInt(0) != MAGIC) {
+                throw new IOException("Not a cache snapshot: " + path);
+            }
+            int version = file.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Snapshot version " + version + " isn't supported, expected " + VERSION);
+            }
+            int count = file.getInt(8);
+            if (count < 0) {
+                throw new IOException("Bad entry count " + count + " in " + path);
+            }
+
+            long nowMillis = System.currentTimeMillis();
+            long nowNanos = System.nanoTime();
+            //first pass: just the offsets of entries that are still good
+            int[] live = new int[count];
+            int liveCount = 0;
+            int position = HEADER_LENGTH;
+            for (int i = 0; i < count; i++) {
+                if (position + ENTRY_HEADER_LENGTH > file.limit()) {
+                    throw new IOException("Snapshot ends partway through entry " + i);
+                }
+                int length = file.getInt(position + 16);
+                if (length < MessageView.HEADER_LENGTH || position + ENTRY_HEADER_LENGTH + length > file.limit()) {
+                    throw new IOException("Bad entry length " + length + " at offset " + position);
+                }
+                //less than a second left isn't worth loading
+                if (file.getLong(position) - nowMillis >= 1000) {
+                    live[liveCount++] = position;
+                }
+                position += ENTRY_HEADER_LENGTH + length;
+            }
+
+            //second pass: parse and insert, the cache is segment locked so threads rarely wait on each other
+            AtomicInteger loaded = new AtomicInteger();
+            int[] offsets = Arrays.copyOf(live, liveCount);
+            IntStream.of(offsets).parallel().forEach(offset -> {
+                try {
+                    byte[] wire = new byte[file.getInt(offset + 16)];
+                    file.get(offset + ENTRY_HEADER_LENGTH, wire);
+                    long receivedAt = nowNanos - (nowMillis - file.getLong(offset + 8)) * 1_000_000L;
+                    MessageView view = MessageView.wrap(wire);
+                    CachedResponse response = CachedResponse.fromSnapshot(wire, view, receivedAt);
+                    if (view.getQuestionCount() == 0 || !response.isCacheable()) {
+                        return;
+                    }
+                    //not interned, with millions of names going in at once the intern table costs more than it saves
+                    DNSQuestion question = DNSQuestion.decodeQuestion(view);
+                    cache.put(question, response, response.getExpiresAt());
+                    loaded.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    //one bad entry doesn't spoil the rest
+                    Log.warn("Skipping bad snapshot entry at offset " + offset + ": " + e);
+                }
+            });
+            return loaded.get();
+        }
+    }
+}
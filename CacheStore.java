@@ -0,0 +1,43 @@
+package DNSHandling;
+import java.util.function.BiConsumer;
+
+//what DNSCache needs from the thing actually holding the entries
+//CacheEngine keeps them on the heap, OffHeapCacheEngine keeps them in direct buffers
+public interface CacheStore<K, V> extends AutoCloseable {
+    //returns the value for the key, or null if there isn't one or it has expired
+    V get(K key);
+
+    //stores the value until expiresAt, which is a System.nanoTime value
+    //fromPrefetch marks values that came from a background refresh rather than a client miss
+    void put(K key, V value, long expiresAt, boolean fromPrefetch);
+
+    default void put(K key, V value, long expiresAt) {
+        put(key, value, expiresAt, false);
+    }
+
+    void remove(K key);
+
+    void clear();
+
+    //calls action with every live entry
+    void forEach(BiConsumer<K, V> action);
+
+    void setPrefetcher(Prefetcher<K> prefetcher);
+
+    Prefetcher<K> getPrefetcher();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getExpirations();
+
+    int getMaxEntries();
+
+    int size();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,254 @@
+package DNSHandling;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//a complete upstream response kept as the encoded bytes it arrived as, answer, authority and additional sections included
+//serving it means copying the bytes, patching in the client's ID and counting the TTLs down,
+//nothing gets decoded or re-encoded, and compression pointers stay valid since no record moves
+//the upstream's OPT record is taken off, each client gets an OPT record of its own when it's written out
+//negative answers (NXDOMAIN, or NODATA where the name exists but has nothing of the asked type) are kept too,
+//for as long as the SOA in their authority section says (RFC 2308)
+public class CachedResponse {
+    static final int RCODE_NXDOMAIN = 3;
+    //RFC 2308 suggests one to three hours as the most a negative answer should be kept
+    static final int DEFAULT_MAX_NEGATIVE_TTL = 3600;
+
+    private final byte[] wire;
+    //where each TTL field is and what it said when the response arrived
+    private final int[] ttlOffsets;
+    private final int[] ttls;
+    private final long receivedAt;
+    private final long expiresAt;
+    private final int rcode;
+    private final int answerCount;
+    private final int questionNameLength;
+    //NXDOMAIN or NODATA
+    private final boolean negative;
+    //negative answers without an SOA can't be cached, since there's nothing saying for how long
+    private final boolean hasSoa;
+
+    private CachedResponse(byte[] wire, MessageView view, long receivedAt, int maxNegativeTtl) {
+        this.wire = wire;
+        this.receivedAt = receivedAt;
+        this.rcode = view.getRcode();
+        this.answerCount = view.getAnswerCount();
+        this.questionNameLength = view.getQuestionCount() > 0 ? view.skipName(view.getQuestionNameOffset()) - view.getQuestionNameOffset() : 0;
+
+        //remember every TTL except the OPT pseudo-record's, whose TTL field holds EDNS flags instead
+        int[] offsets = new int[view.getRecordCount()];
+        int[] values = new int[view.getRecordCount()];
+        int count = 0;
+        long minTtl = Long.MAX_VALUE;
+        this.negative = rcode == RCODE_NXDOMAIN || (rcode == 0 && answerCount == 0);
+        long soaTtl = -1;
+        for (int i = 0; i < view.getRecordCount(); i++) {
+            if (view.getRecordType(i) == OptRecord.TYPE_OPT) {
+                continue;
+            }
+            offsets[count] = view.getRecordTtlOffset(i);
+            values[count] = (int) view.getRecordTtl(i);
+            minTtl = Math.min(minTtl, values[count]);
+            count++;
+            boolean inAuthority = i >= view.getAnswerCount() && i < view.getAnswerCount() + view.getAuthorityCount();
+            if (negative && inAuthority && view.getRecordType(i) == DNSRecord.TYPE_SOA && view.getRdataLength(i) >= 22) {
+                //the negative TTL is the smaller of the SOA's own TTL and its MINIMUM field, the last four bytes of its data
+                long minimum = view.getBuffer().getInt(view.getRdataOffset(i) + view.getRdataLength(i) - 4) & 0xFFFFFFFFL;
+                soaTtl = Math.min(view.getRecordTtl(i), minimum);
+            }
+        }
+        this.hasSoa = soaTtl >= 0;
+        if (negative && hasSoa) {
+            //and never more than we're configured to allow, clients see the same TTL in the records
+            long negativeTtl = Math.min(soaTtl, maxNegativeTtl);
+            minTtl = Math.min(minTtl, negativeTtl);
+            for (int i = 0; i < count; i++) {
+                values[i] = (int) Math.min(values[i], negativeTtl);
+            }
+        }
+        this.ttlOffsets = Arrays.copyOf(offsets, count);
+        this.ttls = Arrays.copyOf(values, count);
+        //the whole response is only good for as long as its shortest lived record
+        this.expiresAt = receivedAt + (count == 0 ? 0 : minTtl * 1_000_000_000L);
+    }
+
+    //keeps the reply as is apart from its OPT record, the array must not be changed afterwards
+    public static CachedResponse fromReply(byte[] reply) throws IOException {
+        return fromReply(reply, DEFAULT_MAX_NEGATIVE_TTL);
+    }
+
+    //maxNegativeTtl caps how long, in seconds, an NXDOMAIN or NODATA answer is kept
+    public static CachedResponse fromReply(byte[] reply, int maxNegativeTtl) throws IOException {
+        MessageView view = MessageView.wrap(reply);
+        //it's nearly always the last record, so taking it off is just a shorter copy
+        //when something does come after it, that's moved up over it, which leaves compression pointers alone
+        //since they only ever point back to names earlier in the message, and the OPT record has none of those
+        for (int opt = OptRecord.findIndex(view); opt >= 0; opt = OptRecord.findIndex(view)) {
+            int start = view.getRecordNameOffset(opt);
+            int end = view.getRdataOffset(opt) + view.getRdataLength(opt);
+            byte[] without = Arrays.copyOf(reply, reply.length - (end - start));
+            System.arraycopy(reply, end, without, start, reply.length - end);
+            int additional = view.getAdditionalCount() - 1;
+            without[10] = (byte) (additional >>> 8);
+            without[11] = (byte) additional;
+            reply = without;
+            view = MessageView.wrap(reply);
+        }
+        return new CachedResponse(reply, view, System.nanoTime(), maxNegativeTtl);
+    }
+
+    //wraps a single record in a response of its own, for the older DNSCache.put(question, record)
+    public static CachedResponse fromRecord(DNSQuestion question, DNSRecord record) {
+        byte[] name = question.getQName().getWire();
+        byte[] recordName = record.getName().getWire();
+        ByteBuffer buffer = ByteBuffer.allocate(MessageView.HEADER_LENGTH + name.length + 4 + recordName.length + 10 + record.getRData().length);
+        MessageWriter writer = new MessageWriter().reset(buffer, 0);
+        writer.writeHeader(0, DNSHeader.responseFlags(DNSHeader.RECURSION_DESIRED), 1, 1, 0, 0);
+        writer.writeName(name);
+        writer.writeShort(question.getQType());
+        writer.writeShort(question.getQClass());
+        record.writeBytes(writer);
+        try {
+            //count the TTL from when the record arrived, not from now
+            long receivedAt = record.getExpiresAt() - record.getTimeToLive() * 1_000_000_000L;
+            return new CachedResponse(buffer.array(), MessageView.wrap(buffer.array()), receivedAt, DEFAULT_MAX_NEGATIVE_TTL);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't read back a response we just wrote", e);
+        }
+    }
+
+    //rebuilds a response from parts kept by an off-heap store, nothing gets parsed again
+    //the wire has to be one that was cacheable when it was stored
+    static CachedResponse fromStored(byte[] wire, int[] ttlOffsets, int[] ttls, int questionNameLength, long receivedAt, long expiresAt) {
+        return new CachedResponse(wire, ttlOffsets, ttls, questionNameLength, receivedAt, expiresAt);
+    }
+
+    private CachedResponse(byte[] wire, int[] ttlOffsets, int[] ttls, int questionNameLength, long receivedAt, long expiresAt) {
+        this.wire = wire;
+        this.ttlOffsets = ttlOffsets;
+        this.ttls = ttls;
+        this.questionNameLength = questionNameLength;
+        this.receivedAt = receivedAt;
+        this.expiresAt = expiresAt;
+        this.rcode = wire[3] & 0xF;
+        this.answerCount = (wire[6] & 0xFF) << 8 | (wire[7] & 0xFF);
+        this.negative = rcode == RCODE_NXDOMAIN || (rcode == 0 && answerCount == 0);
+        this.hasSoa = negative;
+    }
+
+    //rebuilds a response written out by getSnapshotWire, view has to be over wire
+    //receivedAt is on the System.nanoTime clock
+    static CachedResponse fromSnapshot(byte[] wire, MessageView view, long receivedAt) {
+        //the TTLs in a snapshot have already been capped, so nothing more to cap here
+        return new CachedResponse(wire, view, receivedAt, Integer.MAX_VALUE);
+    }
+
+    //the response with the TTLs it arrived with (after any negative TTL cap), for saving it to disk
+    byte[] getSnapshotWire() {
+        byte[] copy = Arrays.copyOf(wire, wire.length);
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            writeTtl(copy, ttlOffsets[i], ttls[i]);
+        }
+        return copy;
+    }
+
+    //copies the response into dst with the given ID and every TTL counted down, returns its length
+    //dst needs at least getLength() bytes
+    public int writeResponse(byte[] dst, int id) {
+        System.arraycopy(wire, 0, dst, 0, wire.length);
+        DNSHeader.writeId(dst, id);
+        long elapsed = (System.nanoTime() - receivedAt) / 1_000_000_000L;
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            writeTtl(dst, ttlOffsets[i], (int) Math.max(0, ttls[i] - elapsed));
+        }
+        return wire.length;
+    }
+
+    private static void writeTtl(byte[] dst, int offset, int ttl) {
+        dst[offset] = (byte) (ttl >>> 24);
+        dst[offset + 1] = (byte) (ttl >>> 16);
+        dst[offset + 2] = (byte) (ttl >>> 8);
+        dst[offset + 3] = (byte) ttl;
+    }
+
+    //worth keeping in the cache: a successful answer, or a negative one with an SOA, that lives for at least a second
+    public boolean isCacheable() {
+        boolean positive = rcode == 0 && answerCount > 0;
+        return (positive || (negative && hasSoa)) && expiresAt - receivedAt >= 1_000_000_000L;
+    }
+
+    //the first answer with its remaining TTL, for the older DNSCache.get(question)
+    public DNSRecord getFirstAnswer() {
+        if (answerCount == 0) {
+            return null;
+        }
+        try {
+            MessageView view = MessageView.wrap(wire);
+            int rdataOffset = view.getRdataOffset(0);
+            long remaining = Math.max(0, (expiresAt - System.nanoTime()) / 1_000_000_000L);
+            return new DNSRecord(DNSName.fromView(view, view.getRecordNameOffset(0)), view.getRecordType(0), view.getRecordClass(0),
+                    (int) Math.min(remaining, view.getRecordTtl(0)), view.getRdataLength(0),
+                    Arrays.copyOfRange(wire, rdataOffset, rdataOffset + view.getRdataLength(0)));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cached response no longer parses", e);
+        }
+    }
+
+    //the full response decoded into the object model
+    public DNSMessage getMessage() throws IOException {
+        return DNSMessage.decodeMessage(wire);
+    }
+
+    //the parts an off-heap store keeps, none of these arrays can be changed
+    byte[] getWire() {
+        return wire;
+    }
+
+    int[] getTtlOffsets() {
+        return ttlOffsets;
+    }
+
+    int[] getTtls() {
+        return ttls;
+    }
+
+    //getters
+    public int getLength() {
+        return wire.length;
+    }
+
+    public int getRcode() {
+        return rcode;
+    }
+
+    public boolean isNegative() {
+        return negative;
+    }
+
+    public int getAnswerCount() {
+        return answerCount;
+    }
+
+    //length of the question name as it sits in the response, so a client's spelling of it can be copied over it
+    public int getQuestionNameLength() {
+        return questionNameLength;
+    }
+
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public String toString() {
+        return "CachedResponse{" +
+                "length=" + wire.length +
+                ", rcode=" + rcode +
+                ", answers=" + answerCount +
+                ", negative=" + negative +
+                ", remainingTtl=" + Math.max(0, (expiresAt - System.nanoTime()) / 1_000_000_000L) +
+                '}';
+    }
+}
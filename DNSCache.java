@@ -1,35 +1,78 @@
 package DNSHandling;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Path;
 
 public class DNSCache {
-    private static HashMap<DNSQuestion, DNSRecord> cache;
+    private static final int DEFAULT_MAX_ENTRIES = 100_000;
+    //bounded, lock-striped cache engine shared by every worker thread
+    //each question maps to the whole encoded response for it, every record of every section
+    private static volatile CacheStore<DNSQuestion, CachedResponse> cache = new CacheEngine<>(DEFAULT_MAX_ENTRIES);
 
     public DNSCache() {
-        cache = new HashMap<>();
+        this(DEFAULT_MAX_ENTRIES);
     }
 
+    public DNSCache(int maxEntries) {
+        this(new CacheEngine<>(maxEntries));
+    }
+
+    //runs the cache on a particular engine, like the off-heap one
+    public DNSCache(CacheStore<DNSQuestion, CachedResponse> engine) {
+        //stop the old engine's expiry thread before replacing it
+        CacheStore<DNSQuestion, CachedResponse> old = cache;
+        cache = engine;
+        old.close();
+    }
+
+    //the first answer for the question, with however much of its TTL is left
     public static DNSRecord get(DNSQuestion question) {
-        System.out.println("Checking the cache...");
-        if (cache.containsKey(question)) {
-            DNSRecord record = cache.get(question);
-            //if the record is expired
-            if (record != null && record.isExpired()) {
-                //remove it from the cache
-                cache.remove(question);
-                return null;
-            }
-            else {
-                System.out.println("Cache contains the query!");
-                return record;
-            }
+        CachedResponse response = getResponse(question);
+        return response == null ? null : response.getFirstAnswer();
+    }
+
+    public static CachedResponse getResponse(DNSQuestion question) {
+        //expired responses are removed by the engine and come back as null
+        CachedResponse response = cache.get(question);
+        if (Log.isDebugEnabled()) {
+            Log.debug(response != null ? "Cache contains " + question : "Cache does not contain " + question);
         }
-        //if not found
-        System.out.println("Cache does not contain query");
-        return null;
+        return response;
     }
 
     public static void put(DNSQuestion question, DNSRecord record) {
-        System.out.println("Putting record in the cache\n");
-        cache.put(question, record);
+        put(question, record, false);
+    }
+
+    //fromPrefetch is true when the record came from a background refresh instead of a client's query
+    public static void put(DNSQuestion question, DNSRecord record, boolean fromPrefetch) {
+        putResponse(question, CachedResponse.fromRecord(question, record), fromPrefetch);
+    }
+
+    public static void putResponse(DNSQuestion question, CachedResponse response, boolean fromPrefetch) {
+        if (Log.isDebugEnabled()) {
+            Log.debug("Putting response for " + question + " in the cache");
+        }
+        //keys share their name bytes with every other entry for the same name
+        cache.put(question.intern(), response, response.getExpiresAt(), fromPrefetch);
+    }
+
+    //turns on refresh-ahead for hot entries
+    public static void setPrefetcher(Prefetcher<DNSQuestion> prefetcher) {
+        cache.setPrefetcher(prefetcher);
+    }
+
+    //writes the cache to a snapshot file, returns how many entries went in it
+    public static int saveSnapshot(Path path) throws IOException {
+        return CacheSnapshot.save(path, cache);
+    }
+
+    //fills the cache from a snapshot file, returns how many entries were still fresh enough to load
+    public static int loadSnapshot(Path path) throws IOException {
+        return CacheSnapshot.load(path, cache);
+    }
+
+    //hit, miss and eviction counters
+    public static CacheStore<DNSQuestion, CachedResponse> getStats() {
+        return cache;
     }
 }
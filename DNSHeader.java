@@ -21,6 +21,12 @@ import java.io.*;
  */
 
 public class DNSHeader {
+    static final int RESPONSE = 1 << 15;
+    static final int OPCODE_MASK = 0xF << 11;
+    static final int TRUNCATED = 1 << 9;
+    static final int RCODE_SERVFAIL = 2;
+    static final int RECURSION_DESIRED = 1 << 8;
+    static final int RECURSION_AVAILABLE = 1 << 7;
 
     private int id; //16-bit ID field
     private int flags; //holds all the flags
@@ -63,6 +69,54 @@ public class DNSHeader {
         return header;
     }
 
+    public static DNSHeader buildHeaderForQuery(int id) {
+        return buildHeaderForQuery(id, 0);
+    }
+
+    //additionalCount is 1 when the query carries an OPT record
+    public static DNSHeader buildHeaderForQuery(int id, int additionalCount) {
+        DNSHeader header = new DNSHeader();
+        header.id = id;
+        //only the RD bit is set so the upstream does the recursion for us
+        header.flags = RECURSION_DESIRED;
+        //one question and nothing else
+        header.questionCount = 1;
+        header.additionalCount = additionalCount;
+        return header;
+    }
+
+    //flags for a reply to a request with the given flags: QR and RA set, opcode and RD copied from the request
+    public static int responseFlags(int requestFlags) {
+        return RESPONSE | RECURSION_AVAILABLE | (requestFlags & (OPCODE_MASK | RECURSION_DESIRED));
+    }
+
+    //reads the ID out of an encoded message without decoding the rest of it
+    public static int readId(byte[] message) {
+        return ((message[0] & 0xFF) << 8) | (message[1] & 0xFF);
+    }
+
+    //overwrites the ID of an encoded message in place
+    public static void writeId(byte[] message, int id) {
+        message[0] = (byte) ((id >> 8) & 0xFF);
+        message[1] = (byte) (id & 0xFF);
+    }
+
+    //true if the TC bit is set, meaning the sender had to leave records out to fit the message in a datagram
+    public static boolean isTruncated(byte[] message) {
+        return (message[2] & (TRUNCATED >> 8)) != 0;
+    }
+
+    //cuts an encoded message down to its header and question and sets the TC bit, so the client asks again over TCP
+    //questionEnd is where the question section finishes, which is the new length of the message
+    public static int truncate(byte[] message, int questionEnd) {
+        message[2] |= (byte) (TRUNCATED >> 8);
+        //no answer, authority or additional records left
+        for (int i = 6; i < 12; i++) {
+            message[i] = 0;
+        }
+        return questionEnd;
+    }
+
     public void writeBytes(OutputStream outputStream) throws IOException {
         //write out the 12 bytes in order
         writeTwoBytes(outputStream, id);
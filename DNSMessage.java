@@ -26,7 +26,11 @@ public class DNSMessage {
     private ArrayList<DNSRecord> answers;
     private ArrayList<DNSRecord> authorityRecords;
     private ArrayList<DNSRecord> additionalRecords;
+    //the EDNS(0) OPT pseudo-record, kept apart from the real additional records, null if there isn't one
+    private OptRecord opt;
     private byte[] completeMessage;
+    //view over completeMessage, used to follow compression pointers while decoding
+    private MessageView view;
     HashMap<String, Integer> domains;
 
     //need to initialize with empty arrays to avoid errors
@@ -41,6 +45,8 @@ public class DNSMessage {
         DNSMessage dnsMessage = new DNSMessage();
         //holding onto the entire message in the completeMessage MV
         dnsMessage.completeMessage = Arrays.copyOf(bytes, bytes.length);
+        //wrapping it checks every name and pointer up front
+        dnsMessage.view = MessageView.wrap(dnsMessage.completeMessage);
 
         //put the bytes through a byte input stream
         ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
@@ -70,7 +76,13 @@ public class DNSMessage {
 
         int adSize = dnsMessage.header.getAdditionalCount();
         for (int i = 0; i < adSize; i++) {
-            dnsMessage.additionalRecords.add(DNSRecord.decodeRecord(inputStream, dnsMessage));
+            DNSRecord record = DNSRecord.decodeRecord(inputStream, dnsMessage);
+            //the OPT record describes the message rather than being part of the answer
+            if (record.getType() == OptRecord.TYPE_OPT) {
+                dnsMessage.opt = OptRecord.fromRecord(record);
+            } else {
+                dnsMessage.additionalRecords.add(record);
+            }
         }
 
         //return the whole message
@@ -127,18 +139,43 @@ public class DNSMessage {
         response.authorityRecords = request.authorityRecords;
         //fill in the additional records
         response.additionalRecords = request.additionalRecords;;
+        //answer an EDNS request with our own OPT record rather than echoing the client's
+        if (request.opt != null) {
+            response.opt = new OptRecord(OptRecord.DEFAULT_PAYLOAD_SIZE);
+        }
 
         //return the response
         return response;
     }
 
+    public static DNSMessage buildQuery(DNSQuestion question, int id) {
+        return buildQuery(question, id, 0);
+    }
+
+    //with a payload size the query carries an OPT record advertising it, 0 leaves EDNS out
+    public static DNSMessage buildQuery(DNSQuestion question, int id, int udpPayloadSize) {
+        //create a new message with just a header and the one question
+        DNSMessage query = new DNSMessage();
+        query.header = DNSHeader.buildHeaderForQuery(id, udpPayloadSize > 0 ? 1 : 0);
+        query.questions.add(question);
+        if (udpPayloadSize > 0) {
+            query.opt = new OptRecord(udpPayloadSize);
+        }
+        return query;
+    }
+
     public byte[] toBytes() throws IOException {
+        return toBytes(true);
+    }
+
+    //compress can be turned off to compare sizes with the plain encoding
+    public byte[] toBytes(boolean compress) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         //use the writeBytes function from the DNSHeader class to write out the header
         header.writeBytes(outputStream);
 
-        //initializing my hashmap of domains MV
-        domains = new HashMap<>();
+        //initializing my hashmap of domains MV, leaving it null means nothing gets compressed
+        domains = compress ? new HashMap<>() : null;
 
         //write out questions, answers, authority records, and additional records
         for (DNSQuestion question : questions) {
@@ -159,34 +196,78 @@ public class DNSMessage {
             additionalRecord.writeBytes(outputStream, domains);
         }
 
+        //the OPT record always goes last
+        if (opt != null) {
+            opt.writeBytes(outputStream);
+        }
+
         return outputStream.toByteArray();
     }
 
-    public static void writeDomainName(ByteArrayOutputStream outputStream, HashMap<String,Integer> domainLocations, String[] domainPieces) throws IOException {
-        //get the full domain name by joining the pieces
-        String domainName = joinDomainName(domainPieces);
-
-        if(domainName.length() == 0){
-            outputStream.write(0);
-        }
+    public static void writeDomainName(ByteArrayOutputStream outputStream, HashMap<String,Integer> domainLocations, DNSName domainName) throws IOException {
+        writeDomainName(outputStream, domainLocations, domainName, 0);
+    }
 
-        else{
-            //save the current position
-            Integer location = outputStream.size();
-            //add the name and location to domainLocations hash map
-            domainLocations.put(domainName, location);
-
-            //write the pieces to the ByteArrayOutputStream
-            for (String s : domainPieces) {
-                //write the length
-                outputStream.write(s.length());
-                //write the bytes
-                outputStream.write(s.getBytes());
+    //baseOffset is where outputStream starts in the message, for names written into a separate rdata buffer
+    //every suffix of the name gets its location saved, and the longest suffix that was already written
+    //gets replaced by a pointer to it, as described in RFC 1035 section 4.1.4
+    static void writeDomainName(ByteArrayOutputStream outputStream, HashMap<String,Integer> domainLocations, DNSName domainName, int baseOffset) throws IOException {
+        String[] pieces = domainName.getLabels();
+
+        for (int i = 0; i < pieces.length; i++) {
+            if (domainLocations != null) {
+                String suffix = joinDomainName(Arrays.copyOfRange(pieces, i, pieces.length));
+                Integer location = domainLocations.get(suffix);
+                if (location != null) {
+                    //seen it before, point back at it and we're done
+                    writeTwoBytes(outputStream, 0xC000 | location);
+                    return;
+                }
+                //pointers only have 14 bits, so anything further in can't be pointed at
+                int here = baseOffset + outputStream.size();
+                if (here < 0x4000) {
+                    domainLocations.put(suffix, here);
+                }
             }
 
-            //write null byte to terminate
-            outputStream.write(0);
+            //write the length then the bytes
+            byte[] label = pieces[i].getBytes(StandardCharsets.UTF_8);
+            outputStream.write(label.length);
+            outputStream.write(label);
         }
+
+        //write null byte to terminate
+        outputStream.write(0);
+    }
+
+    private static void writeTwoBytes(ByteArrayOutputStream outputStream, int value) {
+        outputStream.write((value >> 8) & 0xFF);
+        outputStream.write(value & 0xFF);
+    }
+
+    public static void writeDomainName(MessageWriter writer, DNSName domainName) {
+        writer.writeName(domainName.getWire());
+    }
+
+    //expands any compressed names inside a record's rdata, so the rdata still means the same thing once
+    //it's written into a different message, offset is where the rdata starts in completeMessage
+    byte[] expandRData(int type, int offset, int length) {
+        return DNSRecord.expandRData(view, type, offset, length);
+    }
+
+    //where the input stream is in completeMessage
+    int positionOf(InputStream inputStream) throws IOException {
+        return completeMessage.length - inputStream.available();
+    }
+
+    //the name at offset in completeMessage, following any pointers
+    DNSName readName(int offset) {
+        return DNSName.fromView(view, offset);
+    }
+
+    //how many bytes the name at offset takes up where it is, a pointer counts as two
+    int nameSize(int offset) {
+        return view.skipName(offset) - offset;
     }
 
     public static String joinDomainName(String[] pieces){
@@ -200,6 +281,7 @@ public class DNSMessage {
                 "Answers: " + answers + "\n" +
                 "Authority Records: " + authorityRecords + "\n" +
                 "Additional Records: " + additionalRecords + "\n" +
+                "OPT: " + opt + "\n" +
                 "Complete Message: " + completeMessage + "\n" +
                 "Domain Locations: " + domains + "\n";
     }
@@ -209,6 +291,11 @@ public class DNSMessage {
         return header;
     }
 
+    //the bytes this message was decoded from
+    public byte[] getCompleteMessage() {
+        return completeMessage;
+    }
+
     public ArrayList<DNSQuestion> getQuestions() {
         return questions;
     }
@@ -217,6 +304,10 @@ public class DNSMessage {
         return answers;
     }
 
+    public OptRecord getOpt() {
+        return opt;
+    }
+
     public void setAnswer(DNSRecord answer) {
         this.answers = new ArrayList<>();
         answers.add(answer);
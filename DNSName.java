@@ -0,0 +1,171 @@
+package DNSHandling;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+//a domain name stored the way it goes on the wire: length prefixed labels ending in a zero byte, all in one array
+//names are folded to lower case when they're made, so "GitHub.com" and "github.com" are the same name,
+//and the hash is worked out once up front so using a name as a map key costs one pass over the bytes at most
+public final class DNSName {
+    //the root name, just the terminating zero byte
+    public static final DNSName ROOT = new DNSName(new byte[]{0});
+
+    //names handed out by intern(), split into stripes so threads interning different names rarely wait on each other
+    //weak references let a name be collected once nothing in the cache uses it any more
+    private static final int INTERN_STRIPES = 32;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final WeakHashMap<DNSName, WeakReference<DNSName>>[] internTable = new WeakHashMap[INTERN_STRIPES];
+    static {
+        for (int i = 0; i < INTERN_STRIPES; i++) {
+            internTable[i] = new WeakHashMap<>();
+        }
+    }
+
+    private final byte[] wire;
+    private final int hash;
+
+    //wire has to already be lower case and uncompressed
+    private DNSName(byte[] wire) {
+        this.wire = wire;
+        this.hash = Arrays.hashCode(wire);
+    }
+
+    public static DNSName fromLabels(String[] labels) {
+        //work out the size first so the array only gets allocated once
+        byte[][] encoded = new byte[labels.length][];
+        int length = 1;
+        for (int i = 0; i < labels.length; i++) {
+            encoded[i] = labels[i].getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length == 0 || encoded[i].length > 63) {
+                throw new IllegalArgumentException("Bad label: '" + labels[i] + "'");
+            }
+            length += encoded[i].length + 1;
+        }
+        if (length > 255) {
+            throw new IllegalArgumentException("Name longer than 255 bytes: " + String.join(".", labels));
+        }
+
+        byte[] wire = new byte[length];
+        int position = 0;
+        for (byte[] label : encoded) {
+            wire[position++] = (byte) label.length;
+            for (byte b : label) {
+                wire[position++] = MessageView.toLowerCase(b);
+            }
+        }
+        wire[position] = 0;
+        return new DNSName(wire);
+    }
+
+    //parses a dotted name like "www.github.com", a trailing dot is allowed
+    public static DNSName fromString(String name) {
+        if (name.isEmpty() || name.equals(".")) {
+            return ROOT;
+        }
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return fromLabels(name.split("\\."));
+    }
+
+    //wraps a name that's already lower case, uncompressed wire format, like one read back from an off-heap cache
+    static DNSName fromCanonicalWire(byte[] wire) {
+        return new DNSName(wire);
+    }
+
+    //copies the (possibly compressed) name at offset out of an encoded message
+    public static DNSName fromView(MessageView view, int offset) {
+        byte[] wire = new byte[view.getNameLength(offset)];
+        view.copyName(offset, wire, 0, true);
+        return new DNSName(wire);
+    }
+
+    //the name in uncompressed wire format, the array is shared so don't change it
+    public byte[] getWire() {
+        return wire;
+    }
+
+    public int getWireLength() {
+        return wire.length;
+    }
+
+    public String[] getLabels() {
+        ArrayList<String> labels = new ArrayList<>();
+        int position = 0;
+        while (wire[position] != 0) {
+            int length = wire[position];
+            labels.add(new String(wire, position + 1, length, StandardCharsets.UTF_8));
+            position += length + 1;
+        }
+        return labels.toArray(new String[0]);
+    }
+
+    public int getLabelCount() {
+        int count = 0;
+        int position = 0;
+        while (wire[position] != 0) {
+            count++;
+            position += wire[position] + 1;
+        }
+        return count;
+    }
+
+    public boolean isRoot() {
+        return wire.length == 1;
+    }
+
+    //the name with its first label taken off, the root is its own parent
+    public DNSName parent() {
+        if (isRoot()) {
+            return this;
+        }
+        return new DNSName(Arrays.copyOfRange(wire, wire[0] + 1, wire.length));
+    }
+
+    //true if this is zone itself or any name below it, "www.example.com" is under "example.com" and the root
+    public boolean isUnder(DNSName zone) {
+        int offset = wire.length - zone.wire.length;
+        if (offset < 0) {
+            return false;
+        }
+        //the zone has to match whole labels, "badexample.com" isn't under "example.com"
+        int position = 0;
+        while (position < offset) {
+            position += wire[position] + 1;
+        }
+        return position == offset && Arrays.equals(wire, offset, wire.length, zone.wire, 0, zone.wire.length);
+    }
+
+    //the shared copy of this name, so every cache entry for the same name points at the same bytes
+    public DNSName intern() {
+        WeakHashMap<DNSName, WeakReference<DNSName>> stripe = internTable[(hash ^ (hash >>> 16)) & (INTERN_STRIPES - 1)];
+        synchronized (stripe) {
+            WeakReference<DNSName> existing = stripe.get(this);
+            DNSName interned = existing == null ? null : existing.get();
+            if (interned == null) {
+                stripe.put(this, new WeakReference<>(this));
+                interned = this;
+            }
+            return interned;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DNSName name)) return false;
+        return hash == name.hash && Arrays.equals(wire, name.wire);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return isRoot() ? "." : String.join(".", getLabels());
+    }
+}
@@ -1,8 +1,6 @@
 package DNSHandling;
 import java.io.*;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Objects;
 
 /*
 +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
@@ -16,25 +14,39 @@ import java.util.Objects;
  */
 
 public class DNSQuestion {
-    private String[] qName;
+    private DNSName qName;
     private int qType;
     private int qClass;
-    DNSMessage message;
 
     //empty constructor
     private DNSQuestion() {}
 
+    DNSQuestion(String[] qName, int qType, int qClass) {
+        this(DNSName.fromLabels(qName), qType, qClass);
+    }
+
+    DNSQuestion(DNSName qName, int qType, int qClass) {
+        this.qName = qName;
+        this.qType = qType;
+        this.qClass = qClass;
+    }
+
     public static DNSQuestion decodeQuestion(InputStream inputStream, DNSMessage dnsMessage) throws IOException {
         //create an object to return
         DNSQuestion dnsQuestion = new DNSQuestion();
         //get the name by calling the readDomainName method on the message
-        dnsQuestion.qName = DNSMessage.readDomainName(inputStream);
+        dnsQuestion.qName = DNSName.fromLabels(DNSMessage.readDomainName(inputStream));
         //read the next two bytes to get the type
         dnsQuestion.qType = readShort(inputStream);
         //and the next two to get the class
         dnsQuestion.qClass = readShort(inputStream);
         return dnsQuestion;
     }
+    //builds the question from the first question of an encoded message, without copying the message
+    public static DNSQuestion decodeQuestion(MessageView view) {
+        return new DNSQuestion(DNSName.fromView(view, view.getQuestionNameOffset()), view.getQuestionType(), view.getQuestionClass());
+    }
+
     public void writeBytes(ByteArrayOutputStream outputStream, HashMap<String,Integer> domainNameLocations) throws IOException {
         //write out the name
         DNSMessage.writeDomainName(outputStream, domainNameLocations, qName);
@@ -55,6 +67,25 @@ public class DNSQuestion {
         outputStream.write(value & 0xFF);
     }
 
+    //getters
+    public DNSName getQName() {
+        return qName;
+    }
+
+    public int getQType() {
+        return qType;
+    }
+
+    public int getQClass() {
+        return qClass;
+    }
+
+    //the same question with its name swapped for the shared interned copy, used for cache keys
+    public DNSQuestion intern() {
+        DNSName interned = qName.intern();
+        return interned == qName ? this : new DNSQuestion(interned, qType, qClass);
+    }
+
     //created by IDE
     @Override
     public String toString() {
@@ -69,14 +100,14 @@ public class DNSQuestion {
     public boolean equals(Object o) {
         if (this == o) return true;
         if (!(o instanceof DNSQuestion question)) return false;
-        return qType == question.qType && qClass == question.qClass && Arrays.equals(qName, question.qName) && Objects.equals(message, question.message);
+        //names are compared last since the type and class checks are cheaper
+        return qType == question.qType && qClass == question.qClass && qName.equals(question.qName);
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(qType, qClass, message);
-        result = 31 * result + Arrays.hashCode(qName);
-        return result;
+        //the name's hash is already worked out, so this is just a couple of multiplies
+        return 31 * (31 * qName.hashCode() + qType) + qClass;
     }
 
 }
@@ -1,7 +1,8 @@
 package DNSHandling;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashMap;
 
 /*    0  1  2  3  4  5  6  7  8  9  0  1  2  3  4  5
@@ -25,69 +26,73 @@ import java.util.HashMap;
     +--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
 */
 public class DNSRecord {
+    static final int TYPE_A = 1;
+    static final int TYPE_NS = 2;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_PTR = 12;
+    static final int TYPE_MX = 15;
+    static final int TYPE_AAAA = 28;
 
-    private String[] name;
+    private DNSName name;
     private int type;
     private int rClass;
     private int rLength;
     private byte[] rData;
-    private Date creationDate;
-    private long timeToLive; //in seconds
+    private long timeToLive; //in seconds, as it was when the record was received
+    private long expiresAt; //System.nanoTime() value the record stops being valid at
 
     private DNSRecord() {}
 
-    DNSRecord(String[] name, int type, int rClass, int ttl, int rdLength, byte[] rdata, Date date) {
+    DNSRecord(String[] name, int type, int rClass, int ttl, int rdLength, byte[] rdata) {
+        this(DNSName.fromLabels(name), type, rClass, ttl, rdLength, rdata);
+    }
+
+    DNSRecord(DNSName name, int type, int rClass, int ttl, int rdLength, byte[] rdata) {
         this.name = name;
         this.type = type;
         this.rClass = rClass;
         timeToLive = ttl;
         rLength = rdLength;
         rData = rdata;
-        creationDate = date;
+        expiresAt = System.nanoTime() + ttl * 1_000_000_000L;
     }
 
      static DNSRecord decodeRecord(InputStream inputStream, DNSMessage dnsMessage) throws IOException {
         DNSRecord record = new DNSRecord();
         DataInputStream dataInputStream = new DataInputStream(inputStream);
-        //String[] name;
-
-        //mark the current position in the input stream
-        dataInputStream.mark(2);
 
-         //read the next two bytes to get the id
-         short firstTwoBytes = dataInputStream.readShort();
+         //read the name through the message so pointers work wherever they show up in it,
+         //whether the whole name is a pointer or it's a few labels followed by one
+         int nameOffset = dnsMessage.positionOf(dataInputStream);
+         record.name = dnsMessage.readName(nameOffset).intern();
+         //System.out.println("Record name" + record.name);
 
-         //if it's been seen before...
-         if ((firstTwoBytes & 0xC000) == 0xC000) {
-             //handle compressed domain name
-             int offset = firstTwoBytes & 0x3FFF;
-             record.name = dnsMessage.readDomainName(offset);
-             //System.out.println("Record name" + Arrays.toString(record.name));
-
-         } else {
-             //reset the input stream to where we bookmarked to read the full domain name from the first two bytes
-             dataInputStream.reset();
-             record.name = DNSMessage.readDomainName(dataInputStream);
-         }
+         //then skip over the name as it sits in the stream
+         dataInputStream.skipBytes(dnsMessage.nameSize(nameOffset));
 
          //read sets of next two to get the type and class
-         record.type = dataInputStream.readShort();
-         record.rClass = dataInputStream.readShort();
+         record.type = dataInputStream.readUnsignedShort();
+         record.rClass = dataInputStream.readUnsignedShort();
 
-         //4 bytes for ttl
-         record.timeToLive = dataInputStream.readInt();
+         //4 bytes for ttl, values with the top bit set are treated as zero (RFC 2181)
+         record.timeToLive = Math.max(0, dataInputStream.readInt());
 
          //and last two for length
-         record.rLength = dataInputStream.readShort();
+         int wireLength = dataInputStream.readUnsignedShort();
 
-         //read the data from the byte array
-         record.rData = new byte[record.rLength];
+         //names inside the data can point anywhere in this message, so expand them before keeping it
+         int rDataOffset = dnsMessage.positionOf(dataInputStream);
+         record.rData = dnsMessage.expandRData(record.type, rDataOffset, wireLength);
+         record.rLength = record.rData.length;
 
-         //decode it with the data input stream
-         dataInputStream.readFully(record.rData);
+         //skip past the data as it was in the stream
+         if (dataInputStream.skipBytes(wireLength) != wireLength) {
+             throw new EOFException("Record data runs past the end of the message");
+         }
 
-         //initialize a new date object
-         record.creationDate = new Date();
+         //work out when the record expires on the monotonic clock so wall clock changes can't affect it
+         record.expiresAt = System.nanoTime() + record.timeToLive * 1_000_000_000L;
 
          return record;
      }
@@ -98,9 +103,47 @@ public class DNSRecord {
 
          dataOutputStream.writeShort(type);
          dataOutputStream.writeShort(rClass);
-         dataOutputStream.writeLong(timeToLive);
-         dataOutputStream.writeShort(rData.length);
-         dataOutputStream.write(rData);
+         //ttl is 4 bytes on the wire
+         dataOutputStream.writeInt((int) timeToLive);
+
+         //names inside the data of the well known types can be compressed too (RFC 3597 section 4)
+         byte[] data = rData;
+         if (domainNameLocations != null && hasNamesInRData(type)) {
+             //the data starts after the two length bytes
+             data = compressRData(byteArrayOutputStream.size() + 2, domainNameLocations);
+         }
+         dataOutputStream.writeShort(data.length);
+         dataOutputStream.write(data);
+     }
+
+     private byte[] compressRData(int rDataOffset, HashMap<String, Integer> domainNameLocations) throws IOException {
+         ByteArrayOutputStream rDataStream = new ByteArrayOutputStream();
+         int position = 0;
+         //MX starts with a two byte preference
+         if (type == TYPE_MX) {
+             rDataStream.write(rData, 0, 2);
+             position = 2;
+         }
+         //SOA has two names, everything else has one
+         int names = type == TYPE_SOA ? 2 : 1;
+         for (int i = 0; i < names; i++) {
+             int length = nameLength(rData, position);
+             DNSMessage.writeDomainName(rDataStream, domainNameLocations, DNSName.fromLabels(labelsOf(rData, position)), rDataOffset);
+             position += length;
+         }
+         //whatever comes after the names (the SOA serial and timers) is copied as is
+         rDataStream.write(rData, position, rData.length - position);
+         return rDataStream.toByteArray();
+     }
+
+     //same as above but straight into a buffer, used on the hot path
+     public void writeBytes(MessageWriter writer) {
+         DNSMessage.writeDomainName(writer, name);
+         writer.writeShort(type);
+         writer.writeShort(rClass);
+         writer.writeInt((int) timeToLive);
+         writer.writeShort(rData.length);
+         writer.writeBytes(rData);
      }
 
     //created by IDE
@@ -111,16 +154,105 @@ public class DNSRecord {
                 ", rClass=" + rClass +
                 ", rdLength=" + rLength +
                 ", rdata=" + Arrays.toString(rData) +
-                ", creationDate=" + creationDate +
                 ", timeToLive=" + timeToLive +
+                ", remainingTtl=" + getRemainingTtl() +
                 '}';
     }
 
     public boolean isExpired() {
-        creationDate = new Date();
-        long currentTime = System.currentTimeMillis();
-        //converting the time to live time into milliseconds so that it matches with current time
-        long expirationTime = creationDate.getTime() + (timeToLive * 1000L);
-        return currentTime > expirationTime;
+        //compare by subtracting so this still works if nanoTime wraps around
+        return System.nanoTime() - expiresAt >= 0;
+    }
+
+    //seconds left before the record expires, rounded down
+    public long getRemainingTtl() {
+        return Math.max(0, (expiresAt - System.nanoTime()) / 1_000_000_000L);
+    }
+
+    //copy of this record whose TTL is however long it has left, for serving it out of the cache
+    public DNSRecord withRemainingTtl() {
+        DNSRecord copy = new DNSRecord();
+        copy.name = name;
+        copy.type = type;
+        copy.rClass = rClass;
+        copy.rLength = rLength;
+        copy.rData = rData;
+        copy.expiresAt = expiresAt;
+        copy.timeToLive = getRemainingTtl();
+        return copy;
+    }
+
+    //record types whose data holds domain names that are allowed to be compressed
+    static boolean hasNamesInRData(int type) {
+        return type == TYPE_NS || type == TYPE_CNAME || type == TYPE_SOA || type == TYPE_PTR || type == TYPE_MX;
+    }
+
+    //copies the rdata at offset in the view with every name in it expanded
+    static byte[] expandRData(MessageView view, int type, int offset, int length) {
+        byte[] expanded = new byte[length];
+        view.getBuffer().get(offset, expanded);
+        if (!hasNamesInRData(type) || length == 0) {
+            return expanded;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int position = offset;
+        if (type == TYPE_MX) {
+            out.write(expanded, 0, 2);
+            position += 2;
+        }
+        int names = type == TYPE_SOA ? 2 : 1;
+        for (int i = 0; i < names; i++) {
+            byte[] name = new byte[view.getNameLength(position)];
+            view.copyName(position, name, 0, false);
+            out.writeBytes(name);
+            position = view.skipName(position);
+        }
+        out.write(expanded, position - offset, length - (position - offset));
+        return out.toByteArray();
+    }
+
+    //length of an uncompressed name at position in bytes
+    private static int nameLength(byte[] bytes, int position) {
+        int start = position;
+        while (bytes[position] != 0) {
+            position += (bytes[position] & 0xFF) + 1;
+        }
+        return position + 1 - start;
+    }
+
+    private static String[] labelsOf(byte[] bytes, int position) {
+        ArrayList<String> labels = new ArrayList<>();
+        while (bytes[position] != 0) {
+            int length = bytes[position] & 0xFF;
+            labels.add(new String(bytes, position + 1, length, StandardCharsets.UTF_8));
+            position += length + 1;
+        }
+        return labels.toArray(new String[0]);
+    }
+
+    //getters
+    public DNSName getName() {
+        return name;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getRClass() {
+        return rClass;
+    }
+
+    public byte[] getRData() {
+        return rData;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
     }
 }
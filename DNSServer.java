@@ -3,28 +3,129 @@ import java.io.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class DNSServer {
-    private static final int SERVER_PORT = 8053;
+    private static final int REPLY_BUFFER_SIZE = 4096;
+    //biggest reply a plain UDP client can take (RFC 1035 section 4.2.1), anything longer is truncated
+    static final int UDP_REPLY_LIMIT = OptRecord.MIN_PAYLOAD_SIZE;
+    //a TCP message's length has to fit in its two byte prefix
+    static final int MAX_TCP_REPLY = 0xFFFF;
+    //each thread reuses the same view and reply buffer for every request it handles
+    private static final ThreadLocal<MessageView> REQUEST_VIEW = ThreadLocal.withInitial(MessageView::new);
+    private static final ThreadLocal<byte[]> REPLY_BUFFER = ThreadLocal.withInitial(() -> new byte[REPLY_BUFFER_SIZE]);
     static DNSCache cache;
-    static ArrayList<DNSRecord> answers;
+
+    private final ServerConfig config;
+    private ExecutorService workers;
+    private DatagramSocket socket;
+    private UpstreamResolver upstream;
+    //the servers misses go to, picked per query by how fast and healthy they've been
+    private UpstreamPool upstreams;
+    //counts UDP replies per client subnet and cuts off the ones getting too many, null when it's off
+    private RateLimiter rateLimiter;
+    //names we won't resolve, null when there are no lists, swapped whole on reload like the local zones
+    private volatile Blocklist blocklist;
+    //names answered from local zone files and hosts overrides, null when there are none
+    //never changed once built, a reload swaps in a whole new one
+    private volatile LocalZones localZones;
+    //only set in iterative mode, when misses are resolved from the roots down instead of forwarded
+    private IterativeResolver iterative;
+    //identical questions that miss at the same time share one upstream query
+    private final SingleFlight<DNSQuestion, CachedResponse> upstreamQueries = new SingleFlight<>();
+    private final Metrics metrics = new Metrics(this);
+
+    public DNSServer() {
+        this(new ServerConfig());
+    }
+
+    public DNSServer(ServerConfig config) {
+        this.config = config;
+    }
 
     public void startServer() throws IOException {
-        System.out.println("Listening on port: " + SERVER_PORT);
+        Log.setLevel(config.getLogLevel());
+        Log.info("Listening on port: " + config.getPort());
+
+        if (config.getCacheEngine().equals("offheap")) {
+            cache = new DNSCache(new OffHeapCacheEngine(config.getCacheSize(), config.getOffHeapMegabytes() * 1024L * 1024L));
+        } else {
+            cache = new DNSCache(config.getCacheSize());
+        }
+        if (!config.getSnapshotFile().isEmpty()) {
+            startSnapshots(Path.of(config.getSnapshotFile()));
+        }
+        if (!config.getLocalZones().isEmpty() || !config.getHostsFiles().isEmpty()) {
+            startLocalZones();
+        }
+        if (!config.getBlocklists().isEmpty()) {
+            startBlocklist();
+        }
+        if (config.getRrlRate() > 0) {
+            rateLimiter = new RateLimiter(config.getRrlTableSize(), config.getRrlRate(), config.getRrlBurst(),
+                    RateLimiter.Action.valueOf(config.getRrlAction().toUpperCase()), config.getRrlSlip(),
+                    config.getRrlIpv4Prefix(), config.getRrlIpv6Prefix());
+            Log.info("Response rate limiting: " + rateLimiter);
+        }
+        metrics.registerMBean();
+        if (config.getStatsPort() > 0) {
+            StatsServer stats = new StatsServer(metrics, config.getStatsPort());
+            stats.start();
+            Log.info("Stats on http://127.0.0.1:" + stats.getPort() + "/stats");
+        }
+        if (config.getPrefetchThreshold() > 0) {
+            //refresh hot names in the background so clients don't wait on them expiring
+            DNSCache.setPrefetcher(new Prefetcher<>(config.getPrefetchThreshold(), config.getPrefetchMinHits(),
+                    config.getPrefetchMaxConcurrent(), q -> sendRequestUpstream(q, true)));
+        }
 
-        cache = new DNSCache();
-        answers = new ArrayList<>();
+        //with no worker threads requests are handled one at a time on this thread
+        if (config.getWorkerThreads() > 0) {
+            workers = Executors.newFixedThreadPool(config.getWorkerThreads());
+        }
+
+        upstreams = new UpstreamPool(UpstreamPool.parseAddresses(config.getUpstreams()), config.getHedgePercentile());
+        if (config.getResolution().equals("iterative")) {
+            iterative = new IterativeResolver(UpstreamPool.parseAddresses(config.getRootHints()),
+                    config.getAuthorityPort(), config.getDelegationCacheSize());
+        }
+        //upstream queries go out on their own socket so they never mix with client traffic
+        upstream = new UpstreamResolver(config.getUpstreamTimeoutMs(), config.getUpstreamRetries(), config.getEdnsPayloadSize());
+
+        //TCP shares the port number with UDP, for clients retrying truncated answers and for pipelined queries
+        if (config.getTcpMaxConnections() > 0) {
+            Executor executor = workers != null ? workers : Runnable::run;
+            TcpFrontEnd tcp = new TcpFrontEnd(this, executor, config.getPort(), upstream,
+                    config.getTcpMaxConnections(), config.getTcpIdleTimeoutMs(), config.getTcpWriteTimeoutMs());
+            Thread thread = new Thread(tcp, "tcp-listener");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        if (config.getFrontEnd().equals("nio")) {
+            runShards();
+            return;
+        }
 
-        DatagramSocket socket = new DatagramSocket(SERVER_PORT);
+        //the original blocking listener, kept as a fallback
+        socket = new DatagramSocket(config.getPort());
 
         //listen for incoming requests forever
         while (true) {
             //make a byte array to hold the incoming message data
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[getUdpBufferSize()];
 
             //create a datagram packet
             DatagramPacket requestPacket = new DatagramPacket(buffer, buffer.length);
@@ -32,65 +133,412 @@ public class DNSServer {
             //get the request packet through the socket
             socket.receive(requestPacket);
 
-            //decode the message
-            DNSMessage requestMessage = DNSMessage.decodeMessage(requestPacket.getData());
+            //hand the packet off so the listener can go back to receiving
+            if (workers != null) {
+                workers.execute(() -> handleRequest(requestPacket));
+            } else {
+                handleRequest(requestPacket);
+            }
+        }
+    }
+
+    //warms the cache up from the last snapshot, then keeps saving it every so often and once more on shutdown
+    private void startSnapshots(Path path) {
+        if (Files.exists(path)) {
+            long start = System.nanoTime();
+            try {
+                int loaded = DNSCache.loadSnapshot(path);
+                Log.info("Loaded " + loaded + " cache entries from " + path + " in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+            } catch (IOException e) {
+                //a bad snapshot only costs us a cold start
+                Log.warn("Couldn't load cache snapshot: " + e);
+            }
+        }
+
+        ScheduledExecutorService snapshotTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Runnable save = () -> {
+            try {
+                DNSCache.saveSnapshot(path);
+            } catch (IOException e) {
+                Log.warn("Couldn't save cache snapshot: " + e);
+            }
+        };
+        if (config.getSnapshotIntervalSeconds() > 0) {
+            snapshotTimer.scheduleWithFixedDelay(save, config.getSnapshotIntervalSeconds(), config.getSnapshotIntervalSeconds(), TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(save, "cache-snapshot-shutdown"));
+    }
 
-            //create a message type to respond with
-            DNSMessage responseMessage = new DNSMessage();
+    //loads the local zone and hosts files, then reloads them whenever they change
+    private void startLocalZones() throws IOException {
+        List<Path> zoneFiles = toPaths(config.getLocalZones());
+        List<Path> hostsFiles = toPaths(config.getHostsFiles());
+        List<Path> all = new ArrayList<>(zoneFiles);
+        all.addAll(hostsFiles);
+        localZones = loadLocalZones(zoneFiles, hostsFiles);
+        reloadOnChange("local-zones", all, config.getLocalReloadSeconds(), () -> localZones = loadLocalZones(zoneFiles, hostsFiles));
+    }
 
-            //parse each question from the request message
-            ArrayList<DNSQuestion> questions = requestMessage.getQuestions();
-            for (DNSQuestion q : questions) {
-                //pull the record from the cache
-                DNSRecord cRecord = DNSCache.get(q);
+    //loads the blocklists, then reloads them whenever they change
+    private void startBlocklist() throws IOException {
+        List<Path> files = toPaths(config.getBlocklists());
+        boolean sinkhole = config.getBlocklistResponse().equals("sinkhole");
+        blocklist = loadBlocklist(files, sinkhole);
+        reloadOnChange("blocklist", files, config.getBlocklistReloadSeconds(), () -> blocklist = loadBlocklist(files, sinkhole));
+    }
 
-                //check that the record is not null and not expired
-                if (cRecord != null && !cRecord.isExpired()) {
-                    //add cached record to response
-                    responseMessage = DNSMessage.buildResponse(requestMessage,  new ArrayList<DNSRecord>(List.of(cRecord)));
+    private static Blocklist loadBlocklist(List<Path> files, boolean sinkhole) throws IOException {
+        long start = System.nanoTime();
+        Blocklist loaded = Blocklist.load(files, sinkhole);
+        Log.info("Loaded blocklist in " + (System.nanoTime() - start) / 1_000_000 + "ms: " + loaded);
+        return loaded;
+    }
 
-                } else {
-                    byte[] requestBytes = requestMessage.toBytes();
-                    responseMessage = sendRequestToGoogle(socket, requestBytes, q);
+    interface Reload {
+        void run() throws IOException;
+    }
+
+    //checks every intervalSeconds whether any of the files changed and runs reload if so, 0 turns checking off
+    //reloads build their new data on the timer thread while queries carry on with the old, then swap it in
+    //a file that won't parse keeps the server from starting, but on reload it only gets a warning
+    private static void reloadOnChange(String name, List<Path> files, int intervalSeconds, Reload reload) throws IOException {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        long[] loadedVersion = {lastModified(files)};
+        ScheduledExecutorService reloadTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + "-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloadTimer.scheduleWithFixedDelay(() -> {
+            try {
+                long version = lastModified(files);
+                if (version == loadedVersion[0]) {
+                    return;
                 }
+                reload.run();
+                loadedVersion[0] = version;
+            } catch (IOException | RuntimeException e) {
+                //tried again next time round, in case the file was caught halfway through being written
+                Log.warn("Couldn't reload " + name + ", still using the old one: " + e);
             }
-            //send response back to client
-            //convert the message to bytes
-            byte[] responseData = responseMessage.toBytes();
-            //make a packet with the data
-            DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length,
-                    requestPacket.getAddress(), requestPacket.getPort());
-            //send it!
-            socket.send(responsePacket);
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private static LocalZones loadLocalZones(List<Path> zoneFiles, List<Path> hostsFiles) throws IOException {
+        long start = System.nanoTime();
+        List<ZoneFile.Entry> zoneEntries = new ArrayList<>();
+        for (Path path : zoneFiles) {
+            zoneEntries.addAll(ZoneFile.parse(path));
+        }
+        List<ZoneFile.Entry> hostsEntries = new ArrayList<>();
+        for (Path path : hostsFiles) {
+            hostsEntries.addAll(ZoneFile.parseHosts(path));
+        }
+        LocalZones zones = LocalZones.build(zoneEntries, hostsEntries);
+        Log.info("Loaded " + zones.getRecordCount() + " local records in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+        return zones;
+    }
+
+    //the newest modification time across the files, any change to any of them means reloading the lot
+    private static long lastModified(List<Path> paths) throws IOException {
+        long newest = 0;
+        for (Path path : paths) {
+            newest = Math.max(newest, Files.getLastModifiedTime(path).toMillis());
+        }
+        return newest;
+    }
+
+    private static List<Path> toPaths(String list) {
+        List<Path> paths = new ArrayList<>();
+        for (String entry : list.split(",")) {
+            if (!entry.isBlank()) {
+                paths.add(Path.of(entry.trim()));
+            }
+        }
+        return paths;
+    }
+
+    //opens one nio front end per shard, all on the same port with SO_REUSEPORT so the kernel spreads packets between them
+    //every shard has its own thread, buffers and upstream socket, the cache is shared
+    private void runShards() throws IOException {
+        int shards = config.getShards() > 0 ? config.getShards() : Runtime.getRuntime().availableProcessors();
+        //one selector thread moves the packets, the workers (or the shard's own thread) handle them
+        Executor executor = workers != null ? workers : Runnable::run;
+        NioFrontEnd[] frontEnds = new NioFrontEnd[shards];
+        for (int i = 0; i < shards; i++) {
+            //the first shard shares the server's upstream socket, the rest get their own
+            UpstreamResolver shardUpstream = i == 0 ? upstream
+                    : new UpstreamResolver(config.getUpstreamTimeoutMs(), config.getUpstreamRetries(), config.getEdnsPayloadSize());
+            frontEnds[i] = NioFrontEnd.open(this, executor, config.getPort(), shards > 1,
+                    new BufferPool(getUdpBufferSize(), config.getBufferPoolSize()), shardUpstream);
+        }
+        Log.info("Running " + shards + " shard(s)");
+
+        //the last shard runs on this thread so startServer keeps blocking like it always has
+        for (int i = 0; i < shards - 1; i++) {
+            Thread thread = new Thread(frontEnds[i], "shard-" + i);
+            thread.start();
         }
+        frontEnds[shards - 1].run();
     }
 
-    static DNSMessage sendRequestToGoogle(DatagramSocket socket, byte[] messageBytes, DNSQuestion question) throws IOException {
-        //get the address of Google
-        InetAddress googleDNS = InetAddress.getByName("8.8.8.8");
+    //no UDP message in or out is bigger than the payload size we advertise, or 512 without EDNS
+    private int getUdpBufferSize() {
+        return Math.max(UDP_REPLY_LIMIT, config.getEdnsPayloadSize());
+    }
+
+    void handleRequest(DatagramPacket requestPacket) {
+        handleQuery(ByteBuffer.wrap(requestPacket.getData()), requestPacket.getOffset(), requestPacket.getLength(),
+                upstream, true, requestPacket.getAddress(), (reply, length) -> sendResponse(reply, length, requestPacket));
+    }
+
+    //handles one query sitting at offset in data, whichever front end it came in on
+    //the request bytes are only read before this returns, so the caller can reuse the buffer straight after
+    //misses are sent upstream through the given resolver
+    //replies over UDP that don't fit are cut down and flagged truncated, over TCP they go out whole
+    //client is only needed over UDP, where replies to it may be rate limited
+    //returns false if the request was dropped and sender will never be called
+    boolean handleQuery(ByteBuffer data, int offset, int length, UpstreamResolver resolver, boolean overUdp, InetAddress client,
+                        Responder sender) {
+        long start = System.nanoTime();
+        metrics.recordQuery(overUdp);
+        try {
+            //read the request in place instead of decoding it into objects
+            MessageView request = REQUEST_VIEW.get().reset(data, offset, length);
+
+            //clients only ever send one question per query
+            if (request.getQuestionCount() == 0) {
+                metrics.recordDropped();
+                return false;
+            }
+            DNSQuestion q = DNSQuestion.decodeQuestion(request);
+            //TCP needs a real handshake so its source can't be spoofed, it's never limited
+            Responder responder = overUdp && rateLimiter != null && client != null ? rateLimiter.limit(client, q, sender) : sender;
+            int clientId = request.getId();
+            int clientFlags = request.getFlags();
+            //keep the client's spelling of the name, so clients that randomize the case of their queries still match
+            byte[] questionName = getUncompressedQuestionName(request);
+
+            //an OPT record means the client speaks EDNS(0) and says how big a UDP reply it can take
+            //with EDNS turned off the client's OPT record is ignored, which RFC 6891 allows
+            OptRecord clientOpt = config.getEdnsPayloadSize() > 0 ? OptRecord.find(request) : null;
+            //the payload size in our OPT record, 0 means the reply doesn't get one
+            int optSize = clientOpt != null ? config.getEdnsPayloadSize() : 0;
+            int replyLimit = !overUdp ? MAX_TCP_REPLY
+                    : clientOpt != null ? Math.min(clientOpt.getUdpLimit(), getUdpBufferSize()) : UDP_REPLY_LIMIT;
+            if (clientOpt != null && clientOpt.getVersion() != 0) {
+                //only version 0 exists, anything else gets BADVERS
+                byte[] failure = errorReply(clientId, clientFlags, q, questionName, OptRecord.RCODE_BADVERS, optSize);
+                responder.respond(failure, failure.length);
+                metrics.recordClientLatency(start);
+                return true;
+            }
+
+            //names we answer for ourselves never reach the cache or go upstream
+            //they come before the blocklist, so a local override can let a blocked name through
+            LocalZones local = localZones;
+            if (local != null) {
+                if (answerLocally(local, q, questionName, clientId, clientFlags, replyLimit, optSize, responder)) {
+                    metrics.recordLocalAnswer();
+                    metrics.recordClientLatency(start);
+                    return true;
+                }
+            }
+
+            Blocklist blocked = blocklist;
+            if (blocked != null && blocked.isBlocked(q.getQName())) {
+                byte[] reply = REPLY_BUFFER.get();
+                int blockedLength = blocked.writeReply(q, questionName, clientId, clientFlags, reply);
+                responder.respond(reply, finishReply(reply, blockedLength, q.getQName().getWireLength(), replyLimit, optSize));
+                metrics.recordBlocked();
+                metrics.recordClientLatency(start);
+                return true;
+            }
 
-        //create the request packet
-        DatagramPacket requestPacket = new DatagramPacket(messageBytes, messageBytes.length, googleDNS, 53);
+            //pull the whole response from the cache
+            CachedResponse cached = DNSCache.getResponse(q);
 
-        //send it to Google
-        socket.send(requestPacket);
-        System.out.println("Sent request to Google");
+            if (cached != null) {
+                //copy the cached bytes into this thread's reply buffer, only the ID and TTLs change
+                byte[] reply = REPLY_BUFFER.get();
+                if (reply.length < cached.getLength() + OptRecord.EMPTY_LENGTH) {
+                    reply = new byte[cached.getLength() + OptRecord.EMPTY_LENGTH];
+                }
+                responder.respond(reply, writeResponse(cached, reply, clientId, questionName, replyLimit, optSize));
+                metrics.recordClientLatency(start);
+            } else {
+                //don't hold this thread while the upstream answers, reply once the upstream query completes
+                sendRequestUpstream(q, false, resolver).whenComplete((response, error) -> {
+                    if (error != null) {
+                        Log.warn("Upstream query for " + q + " failed: " + error);
+                        //tell the client now instead of leaving it to time out
+                        byte[] failure = errorReply(clientId, clientFlags, q, questionName, DNSHeader.RCODE_SERVFAIL, optSize);
+                        responder.respond(failure, failure.length);
+                        metrics.recordServfail();
+                        metrics.recordClientLatency(start);
+                        return;
+                    }
+                    //the upstream reply may be shared with other clients, so each client gets its own copy with its own ID
+                    byte[] reply = new byte[response.getLength() + OptRecord.EMPTY_LENGTH];
+                    responder.respond(reply, writeResponse(response, reply, clientId, questionName, replyLimit, optSize));
+                    metrics.recordClientLatency(start);
+                });
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            //one bad request shouldn't take down the server
+            metrics.recordDropped();
+            Log.warn("Dropping bad request: " + e);
+            return false;
+        }
+    }
+
+    //a reply with the given rcode carrying just the client's question
+    //rcodes above 15 only fit with EDNS, their top bits go in the OPT record
+    private static byte[] errorReply(int clientId, int clientFlags, DNSQuestion question, byte[] questionName, int rcode, int optSize) {
+        byte[] name = questionName != null ? questionName : question.getQName().getWire();
+        byte[] reply = new byte[MessageView.HEADER_LENGTH + name.length + 4 + (optSize > 0 ? OptRecord.EMPTY_LENGTH : 0)];
+        MessageWriter writer = new MessageWriter().reset(ByteBuffer.wrap(reply), 0);
+        writer.writeHeader(clientId, DNSHeader.responseFlags(clientFlags) | (rcode & 0xF), 1, 0, 0, 0);
+        writer.writeName(name);
+        writer.writeShort(question.getQType());
+        writer.writeShort(question.getQClass());
+        if (optSize > 0) {
+            OptRecord.append(reply, writer.getLength(), optSize, rcode >>> 4);
+        }
+        return reply;
+    }
+
+    //reply needs room for the response plus an OPT record
+    private static int writeResponse(CachedResponse response, byte[] reply, int clientId, byte[] questionName, int replyLimit, int optSize) {
+        int length = response.writeResponse(reply, clientId);
+        if (questionName != null && questionName.length == response.getQuestionNameLength()) {
+            System.arraycopy(questionName, 0, reply, MessageView.HEADER_LENGTH, questionName.length);
+        }
+        return finishReply(reply, length, response.getQuestionNameLength(), replyLimit, optSize);
+    }
+
+    //answers from the local zones, returns false without responding if the name isn't one of ours
+    private static boolean answerLocally(LocalZones local, DNSQuestion q, byte[] questionName, int clientId, int clientFlags,
+                                       int replyLimit, int optSize, Responder responder) {
+        byte[] reply = REPLY_BUFFER.get();
+        int length;
+        try {
+            length = local.writeReply(q, questionName, clientId, clientFlags, reply, reply.length - OptRecord.EMPTY_LENGTH);
+        } catch (BufferOverflowException e) {
+            //a big record set, only worth a bigger buffer when it's going over TCP
+            reply = new byte[MAX_TCP_REPLY + OptRecord.EMPTY_LENGTH];
+            length = local.writeReply(q, questionName, clientId, clientFlags, reply, MAX_TCP_REPLY);
+        }
+        if (length < 0) {
+            return false;
+        }
+        responder.respond(reply, finishReply(reply, length, q.getQName().getWireLength(), replyLimit, optSize));
+        return true;
+    }
 
-        //create a byte array to receive the response in
-        byte[] buffer = new byte[1024];
+    //truncates a reply that's too big for the client and adds our OPT record if it gets one
+    private static int finishReply(byte[] reply, int length, int questionNameLength, int replyLimit, int optSize) {
+        int optLength = optSize > 0 ? OptRecord.EMPTY_LENGTH : 0;
+        if (length + optLength > replyLimit) {
+            //just the header and question, the client will ask again over TCP
+            length = DNSHeader.truncate(reply, MessageView.HEADER_LENGTH + questionNameLength + 4);
+        }
+        if (optSize > 0) {
+            length = OptRecord.append(reply, length, optSize, 0);
+        }
+        return length;
+    }
 
-        //create a datagram packet to receive it by passing in the buffer
-        DatagramPacket responsePacket = new DatagramPacket(buffer, buffer.length);
-        socket.receive(responsePacket);
-        System.out.println("Received: " + responsePacket);
+    //the question name exactly as the client sent it, or null if the client compressed it
+    private static byte[] getUncompressedQuestionName(MessageView request) {
+        int offset = request.getQuestionNameOffset();
+        int length = request.skipName(offset) - offset;
+        if (request.getNameLength(offset) != length) {
+            return null;
+        }
+        byte[] name = new byte[length];
+        request.getBuffer().get(offset, name);
+        return name;
+    }
 
-        //decode the message to cache answers
-        DNSMessage response = DNSMessage.decodeMessage(responsePacket.getData());
-        for (DNSRecord answer : response.getAnswers()) {
-            DNSCache.put(question, answer);
+    private void sendResponse(byte[] responseData, int length, DatagramPacket requestPacket) {
+        //make a packet with the data
+        DatagramPacket responsePacket = new DatagramPacket(responseData, length,
+                requestPacket.getAddress(), requestPacket.getPort());
+        try {
+            //send it! DatagramSocket.send is safe to call from several threads
+            socket.send(responsePacket);
+        } catch (IOException e) {
+            Log.warn("Couldn't send reply to " + requestPacket.getSocketAddress(), e);
         }
+    }
+
+    //prefetch is true for background refreshes, so the cache can tell them apart from client misses
+    //if the same question is already being asked upstream this waits on that query instead of sending another
+    CompletableFuture<CachedResponse> sendRequestUpstream(DNSQuestion question, boolean prefetch) {
+        return sendRequestUpstream(question, prefetch, upstream);
+    }
+
+    //same as above through a particular resolver, so each shard sends its misses from its own socket
+    CompletableFuture<CachedResponse> sendRequestUpstream(DNSQuestion question, boolean prefetch, UpstreamResolver resolver) {
+        return upstreamQueries.run(question, q -> queryUpstream(q, prefetch, resolver));
+    }
+
+    private CompletableFuture<CachedResponse> queryUpstream(DNSQuestion question, boolean prefetch, UpstreamResolver resolver) {
+        Log.debug("Sending request upstream");
+        CompletableFuture<byte[]> query = iterative != null ? iterative.resolve(question, resolver) : upstreams.query(question, resolver);
+        return query.thenApply(reply -> {
+            try {
+                CachedResponse response = CachedResponse.fromReply(reply, config.getMaxNegativeTtl());
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Received: " + response);
+                }
+                //cache the whole response, every record in every section, negative answers included
+                if (response.isCacheable()) {
+                    DNSCache.putResponse(question, response, prefetch);
+                }
+                return response;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
 
-        return response;
+    //how a front end gets a reply back to the client that asked
+    //reply may be reused once respond returns, so anything that sends later has to copy it
+    interface Responder {
+        void respond(byte[] reply, int length);
     }
 
-}
\ No newline at end of file
+    //RTTs and failover counts for each upstream server
+    public UpstreamPool getUpstreams() {
+        return upstreams;
+    }
+
+    //referral and delegation cache counts, null unless resolution is iterative
+    public IterativeResolver getIterativeResolver() {
+        return iterative;
+    }
+
+    //limited, dropped and truncated reply counts, null unless rate limiting is on
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    //query counts, latencies and cache numbers, also available over JMX and the stats endpoint
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    //counters for how many upstream queries were saved by sharing them
+    public SingleFlight<DNSQuestion, CachedResponse> getUpstreamQueries() {
+        return upstreamQueries;
+    }
+}
@@ -0,0 +1,127 @@
+package DNSHandling;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//zone cuts learned from referrals: which servers answer for a zone and how long we can keep asking them
+//kept apart from the answer cache since these are never handed to clients, they only shorten later lookups
+//a lookup takes the closest enclosing zone we know, so once "example.com" is learned nothing under it goes near the roots
+public class DelegationCache {
+    static final int DEFAULT_MAX_ZONES = 10_000;
+
+    private final ConcurrentHashMap<DNSName, Entry> zones = new ConcurrentHashMap<>();
+    //the root hints never expire, they're where every lookup starts when nothing closer is known
+    private final Delegation roots;
+    private final int maxZones;
+    //hits found a zone below the root, misses had to start from the root hints
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    //zones dropped while they were still good, to make room for new ones
+    private final LongAdder evictions = new LongAdder();
+
+    public DelegationCache(List<InetSocketAddress> rootHints, int maxZones) {
+        this.roots = new Delegation(DNSName.ROOT, List.of(), List.copyOf(rootHints), Long.MAX_VALUE);
+        this.maxZones = maxZones;
+    }
+
+    //the closest delegation that name falls under, walking up one label at a time
+    public Delegation closest(DNSName name) {
+        long now = System.nanoTime();
+        for (DNSName zone = name; !zone.isRoot(); zone = zone.parent()) {
+            Entry entry = zones.get(zone);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.delegation.isExpired(now)) {
+                zones.remove(zone, entry);
+                continue;
+            }
+            entry.lastUsed = now;
+            hits.increment();
+            return entry.delegation;
+        }
+        misses.increment();
+        return roots;
+    }
+
+    public void put(Delegation delegation) {
+        if (delegation.zone().isRoot()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (zones.size() >= maxZones && !zones.containsKey(delegation.zone())) {
+            makeRoom(now);
+        }
+        zones.put(delegation.zone(), new Entry(delegation, now));
+    }
+
+    //drops everything that's expired, or if nothing has, the zone that went longest without being used
+    //that's a walk over every zone, but it only happens when a new zone is learned on a full cache,
+    //which already cost at least one round trip to an authority
+    private void makeRoom(long now) {
+        Entry oldest = null;
+        boolean removed = false;
+        for (Entry entry : zones.values()) {
+            if (entry.delegation.isExpired(now)) {
+                removed |= zones.remove(entry.delegation.zone(), entry);
+            } else if (oldest == null || entry.lastUsed - oldest.lastUsed < 0) {
+                oldest = entry;
+            }
+        }
+        if (!removed && oldest != null && zones.remove(oldest.delegation.zone(), oldest)) {
+            evictions.increment();
+        }
+    }
+
+    //getters
+    public Delegation getRoots() {
+        return roots;
+    }
+
+    public int getSize() {
+        return zones.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public String toString() {
+        return "Zones: " + getSize() +
+                ", Hits: " + getHits() +
+                ", Misses: " + getMisses() +
+                ", Evictions: " + getEvictions();
+    }
+
+    //a delegation and when a lookup last went through it
+    private static final class Entry {
+        final Delegation delegation;
+        volatile long lastUsed;
+
+        Entry(Delegation delegation, long lastUsed) {
+            this.delegation = delegation;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    //the servers for one zone, names from the NS records and addresses from glue or from looking the names up
+    //addresses can be empty when the referral came without glue
+    public record Delegation(DNSName zone, List<DNSName> nameServers, List<InetSocketAddress> addresses, long expiresAt) {
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+
+        Delegation withAddresses(List<InetSocketAddress> found) {
+            return new Delegation(zone, nameServers, List.copyOf(found), expiresAt);
+        }
+    }
+}
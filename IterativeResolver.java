@@ -0,0 +1,404 @@
+package DNSHandling;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+//answers questions by walking down from the roots ourselves instead of asking a recursive resolver
+//each step asks a server for the zone we've got to, and either gets the answer or a referral to a zone further down
+//referrals go into the delegation cache, so the next question under the same zone starts at that zone's servers
+//all of it runs on the upstream resolver's futures, nothing blocks while waiting on a server
+public class IterativeResolver {
+    //most referrals one lookup will follow before giving up, real names need a handful at most
+    private static final int MAX_REFERRALS = 16;
+    //most CNAMEs followed across zones for one question
+    private static final int MAX_CNAME_HOPS = 8;
+    //how deep lookups for the addresses of name servers that came without glue can nest
+    private static final int MAX_GLUELESS_DEPTH = 3;
+    private static final int TYPE_DNAME = 39;
+    private static final int TYPE_SRV = 33;
+    private static final int AUTHORITATIVE_ANSWER = 1 << 10;
+
+    private final DelegationCache delegations;
+    //the port addresses learned from glue are asked on, 53 apart from tests against local servers
+    private final int authorityPort;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder referrals = new LongAdder();
+    private final LongAdder gluelessLookups = new LongAdder();
+    //replies from servers that turned out not to serve the zone they were asked about
+    private final LongAdder lameReplies = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public IterativeResolver(List<InetSocketAddress> rootHints, int authorityPort, int maxZones) {
+        this.delegations = new DelegationCache(rootHints, maxZones);
+        this.authorityPort = authorityPort;
+    }
+
+    //completes with a reply that looks like it came from a recursive resolver: RD and RA set, AA cleared
+    //fails with an IOException if no server for some zone on the way down would answer
+    public CompletableFuture<byte[]> resolve(DNSQuestion question, UpstreamResolver resolver) {
+        lookups.increment();
+        Lookup lookup = new Lookup(question, resolver, 0, 0);
+        lookup.start();
+        return lookup.result.thenApply(reply -> {
+            reply[2] &= ~(AUTHORITATIVE_ANSWER >>> 8);
+            reply[2] |= DNSHeader.RECURSION_DESIRED >>> 8;
+            reply[3] |= DNSHeader.RECURSION_AVAILABLE;
+            return reply;
+        });
+    }
+
+    //one question being chased down the tree
+    private class Lookup {
+        final DNSQuestion question;
+        final UpstreamResolver resolver;
+        //how many glueless lookups this one is nested inside, and how many CNAMEs led to it
+        final int depth;
+        final int cnameHops;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        int referralCount;
+        DelegationCache.Delegation delegation;
+        //servers are tried starting from a random one so the load is spread across a zone's servers
+        int firstServer;
+        int serversTried;
+
+        Lookup(DNSQuestion question, UpstreamResolver resolver, int depth, int cnameHops) {
+            this.question = question;
+            this.resolver = resolver;
+            this.depth = depth;
+            this.cnameHops = cnameHops;
+        }
+
+        void start() {
+            ask(delegations.closest(question.getQName()));
+        }
+
+        void ask(DelegationCache.Delegation next) {
+            delegation = next;
+            serversTried = 0;
+            if (next.addresses().isEmpty()) {
+                findNameServerAddresses(next, 0);
+                return;
+            }
+            firstServer = ThreadLocalRandom.current().nextInt(next.addresses().size());
+            askNextServer();
+        }
+
+        void askNextServer() {
+            List<InetSocketAddress> addresses = delegation.addresses();
+            if (serversTried >= addresses.size()) {
+                fail("No server for " + delegation.zone() + " answered " + question);
+                return;
+            }
+            InetSocketAddress server = addresses.get((firstServer + serversTried++) % addresses.size());
+            resolver.query(question, server, false).whenComplete((reply, error) -> {
+                if (error != null) {
+                    Log.debug("No reply from " + server + " for " + question + ": " + error);
+                    askNextServer();
+                    return;
+                }
+                try {
+                    handleReply(reply);
+                } catch (IOException | RuntimeException e) {
+                    Log.debug("Bad reply from " + server + " for " + question + ": " + e);
+                    askNextServer();
+                }
+            });
+        }
+
+        void handleReply(byte[] reply) throws IOException {
+            MessageView view = MessageView.wrap(reply);
+            int rcode = view.getRcode();
+            //SERVFAIL, REFUSED and the rest mean this server is broken or doesn't serve the zone, another might
+            if (rcode != 0 && rcode != CachedResponse.RCODE_NXDOMAIN) {
+                askNextServer();
+                return;
+            }
+            if (rcode == CachedResponse.RCODE_NXDOMAIN || view.getAnswerCount() > 0) {
+                finish(reply, view);
+                return;
+            }
+            DelegationCache.Delegation referral = readReferral(view);
+            if (referral == null) {
+                if ((view.getFlags() & AUTHORITATIVE_ANSWER) != 0 || hasSoa(view)) {
+                    //no answer and no referral further down: the name exists with nothing of this type
+                    result.complete(reply);
+                    return;
+                }
+                //not authoritative and not sending us any closer, like a referral back up to the roots:
+                //this server is lame for the zone, and its empty answer means nothing
+                lameReplies.increment();
+                Log.debug("Lame reply for " + delegation.zone() + " to " + question);
+                askNextServer();
+                return;
+            }
+            if (++referralCount > MAX_REFERRALS) {
+                fail("Too many referrals for " + question);
+                return;
+            }
+            referrals.increment();
+            delegations.put(referral);
+            ask(referral);
+        }
+
+        //the answer, unless it's a CNAME into a zone this server doesn't have, then the target gets a lookup of its own
+        void finish(byte[] reply, MessageView view) {
+            DNSName target = cnameTarget(view, question);
+            if (target == null || cnameHops >= MAX_CNAME_HOPS) {
+                result.complete(reply);
+                return;
+            }
+            Lookup next = new Lookup(new DNSQuestion(target, question.getQType(), question.getQClass()), resolver, depth, cnameHops + 1);
+            next.start();
+            next.result.whenComplete((targetReply, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                    return;
+                }
+                try {
+                    result.complete(joinChain(view, MessageView.wrap(targetReply)));
+                } catch (IOException | RuntimeException e) {
+                    //too big to join, the CNAME on its own is still a real answer
+                    result.complete(reply);
+                }
+            });
+        }
+
+        //the NS records in the authority section, if they're for a zone closer to the name than the one we asked
+        //glue is only taken for name servers inside the zone we asked, anything else the server isn't trusted for
+        DelegationCache.Delegation readReferral(MessageView view) {
+            DNSName asked = delegation.zone();
+            DNSName zone = null;
+            List<DNSName> nameServers = new ArrayList<>();
+            long ttl = Long.MAX_VALUE;
+            int authorityStart = view.getAnswerCount();
+            int authorityEnd = authorityStart + view.getAuthorityCount();
+            for (int i = authorityStart; i < authorityEnd; i++) {
+                if (view.getRecordType(i) != DNSRecord.TYPE_NS) {
+                    continue;
+                }
+                DNSName owner = DNSName.fromView(view, view.getRecordNameOffset(i));
+                if (owner.equals(asked) || !owner.isUnder(asked) || !question.getQName().isUnder(owner)) {
+                    continue;
+                }
+                if (zone == null) {
+                    zone = owner;
+                } else if (!owner.equals(zone)) {
+                    continue;
+                }
+                nameServers.add(DNSName.fromView(view, view.getRdataOffset(i)));
+                ttl = Math.min(ttl, view.getRecordTtl(i));
+            }
+            if (zone == null) {
+                return null;
+            }
+
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            for (int i = authorityEnd; i < view.getRecordCount(); i++) {
+                //only A records, an IPv6 glue address is no use if this host can't reach it
+                if (view.getRecordType(i) != DNSRecord.TYPE_A || view.getRdataLength(i) != 4) {
+                    continue;
+                }
+                DNSName owner = DNSName.fromView(view, view.getRecordNameOffset(i));
+                if (!nameServers.contains(owner) || !owner.isUnder(asked)) {
+                    continue;
+                }
+                addresses.add(new InetSocketAddress(readAddress(view, i), authorityPort));
+            }
+            return new DelegationCache.Delegation(zone, List.copyOf(nameServers), List.copyOf(addresses), System.nanoTime() + ttl * 1_000_000_000L);
+        }
+
+        //a referral without glue: look up the name servers' addresses one at a time until one of them has some
+        void findNameServerAddresses(DelegationCache.Delegation glueless, int index) {
+            List<DNSName> nameServers = glueless.nameServers();
+            //a name server inside the zone it serves can't be found without glue, asking would just come back here
+            while (index < nameServers.size() && nameServers.get(index).isUnder(glueless.zone())) {
+                index++;
+            }
+            if (index >= nameServers.size() || depth >= MAX_GLUELESS_DEPTH) {
+                fail("Couldn't find an address for any server of " + glueless.zone());
+                return;
+            }
+            gluelessLookups.increment();
+            int current = index;
+            Lookup lookup = new Lookup(new DNSQuestion(nameServers.get(current), DNSRecord.TYPE_A, 1), resolver, depth + 1, 0);
+            lookup.start();
+            lookup.result.whenComplete((reply, error) -> {
+                List<InetSocketAddress> found = error == null ? readAnswerAddresses(reply) : List.of();
+                if (found.isEmpty()) {
+                    findNameServerAddresses(glueless, current + 1);
+                    return;
+                }
+                DelegationCache.Delegation withAddresses = glueless.withAddresses(found);
+                delegations.put(withAddresses);
+                ask(withAddresses);
+            });
+        }
+
+        void fail(String message) {
+            failures.increment();
+            result.completeExceptionally(new IOException(message));
+        }
+    }
+
+    //true if the authority section has an SOA, which only a server for the zone would send with a negative answer
+    private static boolean hasSoa(MessageView view) {
+        int authorityEnd = view.getAnswerCount() + view.getAuthorityCount();
+        for (int i = view.getAnswerCount(); i < authorityEnd; i++) {
+            if (view.getRecordType(i) == DNSRecord.TYPE_SOA) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //where a CNAME chain in the answer section ends, if the answer has nothing of the asked type there
+    //null when the answer is complete, or when the question was for the CNAME itself
+    static DNSName cnameTarget(MessageView view, DNSQuestion question) {
+        if (question.getQType() == DNSRecord.TYPE_CNAME || view.getRcode() != 0) {
+            return null;
+        }
+        DNSName name = question.getQName();
+        boolean followed = false;
+        //each pass follows one link, a chain can't be longer than the answer section
+        for (int hop = 0; hop <= view.getAnswerCount(); hop++) {
+            DNSName next = null;
+            for (int i = 0; i < view.getAnswerCount(); i++) {
+                if (!view.nameEquals(view.getRecordNameOffset(i), name.getWire())) {
+                    continue;
+                }
+                if (view.getRecordType(i) == question.getQType()) {
+                    return null;
+                }
+                if (view.getRecordType(i) == DNSRecord.TYPE_CNAME) {
+                    next = DNSName.fromView(view, view.getRdataOffset(i));
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            name = next;
+            followed = true;
+        }
+        return followed ? name : null;
+    }
+
+    //the CNAME answer followed by the answer for its target, under the target's rcode and authority section
+    static byte[] joinChain(MessageView first, MessageView second) {
+        MessageWriter writer = new MessageWriter().reset(ByteBuffer.allocate(0xFFFF), 0);
+        int answers = first.getAnswerCount() + second.getAnswerCount();
+        int flags = (first.getFlags() & ~0xF) | second.getRcode();
+        writer.writeHeader(first.getId(), flags, 1, answers, second.getAuthorityCount(), 0);
+        writer.writeQuestion(first);
+        for (int i = 0; i < first.getAnswerCount(); i++) {
+            copyRecord(writer, first, i);
+        }
+        for (int i = 0; i < second.getAnswerCount() + second.getAuthorityCount(); i++) {
+            copyRecord(writer, second, i);
+        }
+        ByteBuffer buffer = writer.getBuffer();
+        byte[] joined = new byte[writer.getLength()];
+        buffer.get(0, joined);
+        return joined;
+    }
+
+    //copies one record into another message, expanding names in the rdata whose compression pointers would break
+    private static void copyRecord(MessageWriter writer, MessageView view, int index) {
+        int type = view.getRecordType(index);
+        ByteBuffer buffer = view.getBuffer();
+        int rdata = view.getRdataOffset(index);
+        int rdataLength = view.getRdataLength(index);
+        writer.writeName(view, view.getRecordNameOffset(index));
+        writer.writeShort(type);
+        writer.writeShort(view.getRecordClass(index));
+        writer.writeInt((int) view.getRecordTtl(index));
+        int lengthAt = writer.getLength();
+        writer.writeShort(0);
+        switch (type) {
+            case DNSRecord.TYPE_CNAME, DNSRecord.TYPE_NS, DNSRecord.TYPE_PTR, TYPE_DNAME -> writer.writeName(view, rdata);
+            case DNSRecord.TYPE_MX -> {
+                writer.writeBytes(buffer, rdata, 2);
+                writer.writeName(view, rdata + 2);
+            }
+            case TYPE_SRV -> {
+                writer.writeBytes(buffer, rdata, 6);
+                writer.writeName(view, rdata + 6);
+            }
+            case DNSRecord.TYPE_SOA -> {
+                writer.writeName(view, rdata);
+                int rname = view.skipName(rdata);
+                writer.writeName(view, rname);
+                writer.writeBytes(buffer, view.skipName(rname), 20);
+            }
+            default -> writer.writeBytes(buffer, rdata, rdataLength);
+        }
+        writer.patchShort(lengthAt, writer.getLength() - lengthAt - 2);
+    }
+
+    //the A records at the end of the answer's CNAME chain, as addresses on the authority port
+    private List<InetSocketAddress> readAnswerAddresses(byte[] reply) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        try {
+            MessageView view = MessageView.wrap(reply);
+            for (int i = 0; i < view.getAnswerCount(); i++) {
+                if (view.getRecordType(i) == DNSRecord.TYPE_A && view.getRdataLength(i) == 4) {
+                    addresses.add(new InetSocketAddress(readAddress(view, i), authorityPort));
+                }
+            }
+        } catch (IOException e) {
+            //no usable addresses
+        }
+        return addresses;
+    }
+
+    private static InetAddress readAddress(MessageView view, int index) {
+        byte[] address = new byte[4];
+        view.getBuffer().get(view.getRdataOffset(index), address);
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            //can't happen with four bytes
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //getters
+    public DelegationCache getDelegations() {
+        return delegations;
+    }
+
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    public long getReferrals() {
+        return referrals.sum();
+    }
+
+    public long getGluelessLookups() {
+        return gluelessLookups.sum();
+    }
+
+    public long getLameReplies() {
+        return lameReplies.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public String toString() {
+        return "Lookups: " + getLookups() +
+                ", Referrals: " + getReferrals() +
+                ", Glueless lookups: " + getGluelessLookups() +
+                ", Lame replies: " + getLameReplies() +
+                ", Failures: " + getFailures() +
+                ", Delegations: " + delegations;
+    }
+}
@@ -0,0 +1,99 @@
+package DNSHandling;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//latency histogram in microseconds with buckets that widen as the values grow, the way HdrHistogram does it
+//values below 64 get a bucket each, and every power of two above that is split into 32 equal buckets,
+//so a value is never counted more than about 3% away from what it really was
+//recording is a couple of shifts and one atomic add, and the whole thing is a fixed 8KB no matter how much goes in
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    //anything over 2^36 microseconds (about 19 hours) goes in the last bucket
+    private static final int MAX_BITS = 36;
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_BITS - SUB_BUCKET_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        record(Math.max(0, nanos / 1000));
+    }
+
+    public void record(long micros) {
+        counts.incrementAndGet(bucketFor(micros));
+        count.increment();
+        total.add(micros);
+        if (micros > max.get()) {
+            max.accumulateAndGet(micros, Math::max);
+        }
+    }
+
+    static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        //shift so the top SUB_BUCKET_BITS bits are left, which puts the result between HALF and SUB_BUCKETS
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int index = SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    //the biggest value that lands in the bucket
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+        long top = (bucket - SUB_BUCKETS) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+
+    //the value that percent of recorded values are at or below, 0 when nothing has been recorded
+    public long getPercentile(double percent) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long recorded = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            recorded += snapshot[i];
+        }
+        if (recorded == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percent / 100 * recorded));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(highestValueIn(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    //getters
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public String toString() {
+        return "Count: " + getCount() +
+                ", p50: " + getPercentile(50) + "us" +
+                ", p99: " + getPercentile(99) + "us" +
+                ", p99.9: " + getPercentile(99.9) + "us" +
+                ", Max: " + getMax() + "us";
+    }
+}
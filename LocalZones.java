@@ -0,0 +1,326 @@
+package DNSHandling;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+//names we answer for ourselves, from local zone files and hosts overrides, kept in a trie keyed by label
+//the trie is built once and never changed, so lookups take no locks, a reload builds a whole new one and swaps it in
+//each node keeps its children as a sorted array searched by binary search, and each record set already encoded
+//as it goes on the wire minus the owner name, so answering is a walk down the labels and a few array copies
+/*
+    a name under a zone's apex (the owner of its SOA) is always answered here: the records if it has them,
+    NODATA if it exists with nothing of that type, a "*" wildcard beside the closest existing name if there is one,
+    otherwise NXDOMAIN, the negative answers carrying the zone's SOA
+    a hosts override outside any zone only answers for the exact name, anything else goes on to the cache
+*/
+public class LocalZones {
+    private static final int AUTHORITATIVE_ANSWER = 1 << 10;
+    private static final int MAX_CNAME_HOPS = 8;
+    //pointer to the question name, which always starts straight after the header
+    private static final int QUESTION_POINTER = 0xC000 | MessageView.HEADER_LENGTH;
+    private static final byte[] WILDCARD = {'*'};
+
+    private final Node root;
+    private final int recordCount;
+
+    private LocalZones(Node root, int recordCount) {
+        this.root = root;
+        this.recordCount = recordCount;
+    }
+
+    //hosts entries go in after the zones, so an override replaces the zone's records of that type for that name
+    public static LocalZones build(List<ZoneFile.Entry> zoneEntries, List<ZoneFile.Entry> hostsEntries) {
+        Builder root = new Builder();
+        for (ZoneFile.Entry entry : zoneEntries) {
+            Builder node = root.descend(entry.name());
+            node.add(entry);
+            if (entry.type() == DNSRecord.TYPE_SOA) {
+                node.apex = true;
+            }
+        }
+        //several names on one hosts line or several lines for one name add up, but replace any zone records
+        HashMap<Builder, List<Integer>> overridden = new HashMap<>();
+        for (ZoneFile.Entry entry : hostsEntries) {
+            Builder node = root.descend(entry.name());
+            List<Integer> types = overridden.computeIfAbsent(node, n -> new ArrayList<>());
+            if (!types.contains(entry.type())) {
+                types.add(entry.type());
+                node.records.remove(entry.type());
+            }
+            node.add(entry);
+        }
+        return new LocalZones(root.freeze(), zoneEntries.size() + hostsEntries.size());
+    }
+
+    //writes the whole reply for question into reply and returns its length, or returns -1 if the name isn't ours
+    //questionName is the client's spelling of the name, null to write the lower case one
+    //throws BufferOverflowException if it doesn't fit in the first limit bytes of reply
+    public int writeReply(DNSQuestion question, byte[] questionName, int clientId, int clientFlags, byte[] reply, int limit) {
+        byte[] wire = question.getQName().getWire();
+        int[] labels = labelOffsets(question.getQName());
+        int labelCount = labels.length;
+
+        //walk down from the last label, remembering the deepest zone apex on the way
+        Node node = root;
+        Node apex = root.soa != null ? root : null;
+        boolean exact = true;
+        for (int i = labelCount - 1; i >= 0; i--) {
+            Node child = node.child(wire, labels[i]);
+            if (child == null) {
+                exact = false;
+                break;
+            }
+            node = child;
+            if (node.soa != null) {
+                apex = node;
+            }
+        }
+
+        Node source;
+        if (exact) {
+            //an empty node outside a zone is only on the way to some other override
+            if (apex == null && node.types.length == 0) {
+                return -1;
+            }
+            source = node;
+        } else if (node.wildcard != null && (apex != null || node.wildcard.types.length > 0)) {
+            //the wildcard's records, with the question name as their owner
+            source = node.wildcard;
+        } else if (apex != null) {
+            source = null;
+        } else {
+            return -1;
+        }
+
+        MessageWriter writer = new MessageWriter().reset(ByteBuffer.wrap(reply, 0, limit), 0);
+        byte[] name = questionName != null ? questionName : wire;
+        int rcode = source == null ? CachedResponse.RCODE_NXDOMAIN : 0;
+        writer.writeHeader(clientId, DNSHeader.responseFlags(clientFlags) | AUTHORITATIVE_ANSWER | rcode, 1, 0, 0, 0);
+        writer.writeName(name);
+        writer.writeShort(question.getQType());
+        writer.writeShort(question.getQClass());
+
+        int answers = 0;
+        if (source != null) {
+            int type = question.getQType();
+            byte[] records = source.get(type);
+            if (records != null) {
+                answers += writeRecords(writer, null, records);
+            } else if (type != DNSRecord.TYPE_CNAME && (records = source.get(DNSRecord.TYPE_CNAME)) != null) {
+                answers += writeRecords(writer, null, records);
+                answers += followCname(writer, records, type);
+            }
+        }
+        int authority = 0;
+        if (answers == 0 && apex != null) {
+            //the SOA goes with NXDOMAIN and NODATA so the client knows how long it can cache the negative answer
+            writer.writeName(apex.name);
+            writer.writeBytes(apex.soa);
+            authority = 1;
+        }
+        writer.patchShort(6, answers);
+        writer.patchShort(8, authority);
+        return writer.getLength();
+    }
+
+    //adds whatever the CNAME points at, as long as the target is here too
+    private int followCname(MessageWriter writer, byte[] cname, int type) {
+        int written = 0;
+        for (int hop = 0; hop < MAX_CNAME_HOPS; hop++) {
+            //the target is the rdata of the only CNAME record, straight after its 10 byte fixed part
+            int length = ((cname[8] & 0xFF) << 8) | (cname[9] & 0xFF);
+            DNSName target = DNSName.fromCanonicalWire(Arrays.copyOfRange(cname, 10, 10 + length));
+            Node node = find(target);
+            if (node == null) {
+                return written;
+            }
+            byte[] records = node.get(type);
+            if (records != null) {
+                return written + writeRecords(writer, target.getWire(), records);
+            }
+            cname = node.get(DNSRecord.TYPE_CNAME);
+            if (cname == null) {
+                return written;
+            }
+            written += writeRecords(writer, target.getWire(), cname);
+        }
+        return written;
+    }
+
+    //the node for name, or the wildcard that covers it
+    private Node find(DNSName name) {
+        byte[] wire = name.getWire();
+        int[] labels = labelOffsets(name);
+        Node node = root;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            Node child = node.child(wire, labels[i]);
+            if (child == null) {
+                return node.wildcard;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    //where each label starts in the name's wire format, so the trie can be walked from the last label
+    private static int[] labelOffsets(DNSName name) {
+        byte[] wire = name.getWire();
+        int[] labels = new int[name.getLabelCount()];
+        for (int i = 0, position = 0; i < labels.length; i++) {
+            labels[i] = position;
+            position += wire[position] + 1;
+        }
+        return labels;
+    }
+
+    //writes each record of a set, owner is null for the question name
+    private static int writeRecords(MessageWriter writer, byte[] owner, byte[] records) {
+        int count = 0;
+        int position = 0;
+        while (position < records.length) {
+            int length = 10 + (((records[position + 8] & 0xFF) << 8) | (records[position + 9] & 0xFF));
+            if (owner == null) {
+                writer.writeShort(QUESTION_POINTER);
+            } else {
+                writer.writeName(owner);
+            }
+            writer.writeBytes(ByteBuffer.wrap(records), position, length);
+            position += length;
+            count++;
+        }
+        return count;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public String toString() {
+        return "Records: " + recordCount;
+    }
+
+    //a frozen trie node
+    private static final class Node {
+        //children sorted by label, compared as raw lower case bytes
+        final byte[][] labels;
+        final Node[] children;
+        final Node wildcard;
+        //record types here, each with its records encoded back to back as type, class, TTL, length and rdata
+        final int[] types;
+        final byte[][] records;
+        //for a zone apex, the full name and the SOA record encoded the same way, null everywhere else
+        final byte[] name;
+        final byte[] soa;
+
+        Node(byte[][] labels, Node[] children, Node wildcard, int[] types, byte[][] records, byte[] name, byte[] soa) {
+            this.labels = labels;
+            this.children = children;
+            this.wildcard = wildcard;
+            this.types = types;
+            this.records = records;
+            this.name = name;
+            this.soa = soa;
+        }
+
+        Node child(byte[] wire, int label) {
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int compare = compareLabel(labels[middle], wire, label);
+                if (compare < 0) {
+                    low = middle + 1;
+                } else if (compare > 0) {
+                    high = middle - 1;
+                } else {
+                    return children[middle];
+                }
+            }
+            return null;
+        }
+
+        byte[] get(int type) {
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == type) {
+                    return records[i];
+                }
+            }
+            return null;
+        }
+    }
+
+    //orders labels by length first, then byte by byte
+    private static int compareLabel(byte[] label, byte[] wire, int offset) {
+        int length = wire[offset];
+        if (label.length != length) {
+            return label.length - length;
+        }
+        return Arrays.compare(label, 0, length, wire, offset + 1, offset + 1 + length);
+    }
+
+    //a node while the trie is being built
+    private static final class Builder {
+        final TreeMap<byte[], Builder> children = new TreeMap<>((a, b) -> a.length != b.length ? a.length - b.length : Arrays.compare(a, b));
+        final TreeMap<Integer, ByteArrayOutputStream> records = new TreeMap<>();
+        byte[] name;
+        boolean apex;
+
+        Builder descend(DNSName name) {
+            byte[] wire = name.getWire();
+            Builder node = this;
+            List<byte[]> labels = new ArrayList<>();
+            for (int position = 0; wire[position] != 0; position += wire[position] + 1) {
+                labels.add(Arrays.copyOfRange(wire, position + 1, position + 1 + wire[position]));
+            }
+            for (int i = labels.size() - 1; i >= 0; i--) {
+                node = node.children.computeIfAbsent(labels.get(i), label -> new Builder());
+            }
+            node.name = wire;
+            return node;
+        }
+
+        void add(ZoneFile.Entry entry) {
+            ByteBuffer record = ByteBuffer.allocate(10 + entry.rdata().length);
+            record.putShort((short) entry.type()).putShort((short) 1).putInt(entry.ttl())
+                    .putShort((short) entry.rdata().length).put(entry.rdata());
+            records.computeIfAbsent(entry.type(), type -> new ByteArrayOutputStream()).writeBytes(record.array());
+        }
+
+        Node freeze() {
+            byte[][] labels = new byte[children.size()][];
+            Node[] frozen = new Node[children.size()];
+            Node wildcard = null;
+            int i = 0;
+            for (Map.Entry<byte[], Builder> child : children.entrySet()) {
+                labels[i] = child.getKey();
+                frozen[i] = child.getValue().freeze();
+                if (Arrays.equals(labels[i], WILDCARD)) {
+                    wildcard = frozen[i];
+                }
+                i++;
+            }
+            int[] types = new int[records.size()];
+            byte[][] encoded = new byte[records.size()][];
+            i = 0;
+            for (Map.Entry<Integer, ByteArrayOutputStream> set : records.entrySet()) {
+                types[i] = set.getKey();
+                encoded[i++] = set.getValue().toByteArray();
+            }
+            return new Node(labels, frozen, wildcard, types, encoded, apex ? name : null, apex ? negativeSoa() : null);
+        }
+
+        //the first SOA, with its TTL lowered to its minimum field as RFC 2308 asks for negative answers
+        byte[] negativeSoa() {
+            byte[] set = records.get(DNSRecord.TYPE_SOA).toByteArray();
+            int length = 10 + (((set[8] & 0xFF) << 8) | (set[9] & 0xFF));
+            ByteBuffer soa = ByteBuffer.wrap(Arrays.copyOf(set, length));
+            soa.putInt(4, Math.min(soa.getInt(4), soa.getInt(length - 4)));
+            return soa.array();
+        }
+    }
+}
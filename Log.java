@@ -0,0 +1,132 @@
+package DNSHandling;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+//asynchronous, level controlled logging
+//callers only check the level and queue the message, a background thread does the formatting and the console output,
+//so a slow terminal never holds up a query
+//when the queue is full messages are dropped and counted rather than making the caller wait
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int QUEUE_SIZE = 8192;
+    private static volatile Level level = Level.INFO;
+    private static final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final LongAdder dropped = new LongAdder();
+    //drops already mentioned in the log, only touched by the writer thread
+    private static long reportedDrops;
+
+    static {
+        Thread writer = new Thread(Log::writeEntries, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        //whatever is still queued goes out before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {}
+
+    public static void setLevel(String name) {
+        level = Level.valueOf(name.toUpperCase());
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    //for messages that cost something to build, check first so nothing is built when it wouldn't be written
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void warn(String message, Throwable error) {
+        log(Level.WARN, message, error);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    //messages lost because the queue was full
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void log(Level messageLevel, String message, Throwable error) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), messageLevel, Thread.currentThread().getName(), message, error);
+        if (!queue.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    private static void writeEntries() {
+        ArrayList<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private static synchronized void flush() {
+        ArrayList<Entry> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        write(batch);
+    }
+
+    //one line per message: time, level, thread, then the message, with any stack trace after it
+    private static synchronized void write(ArrayList<Entry> batch) {
+        StringBuilder out = new StringBuilder();
+        for (Entry entry : batch) {
+            out.append(Instant.ofEpochMilli(entry.time)).append(' ')
+                    .append(entry.level).append(' ')
+                    .append('[').append(entry.thread).append("] ")
+                    .append(entry.message).append('\n');
+            if (entry.error != null) {
+                StringWriter trace = new StringWriter();
+                entry.error.printStackTrace(new PrintWriter(trace));
+                out.append(trace);
+            }
+        }
+        long lost = dropped.sum() - reportedDrops;
+        if (lost > 0) {
+            reportedDrops += lost;
+            out.append(Instant.now()).append(" WARN [log-writer] ").append(lost).append(" log messages dropped, the queue was full\n");
+        }
+        //looked up every time, since System.out can be swapped out while running
+        PrintStream console = System.out;
+        console.print(out);
+        console.flush();
+    }
+
+    private record Entry(long time, Level level, String thread, String message, Throwable error) {}
+}
@@ -1,12 +1,13 @@
 import DNSHandling.DNSServer;
+import DNSHandling.ServerConfig;
 
 public class Main {
     public static void main(String[] args) {
         try {
-            DNSServer dnsServer = new DNSServer();
+            DNSServer dnsServer = new DNSServer(ServerConfig.fromArgs(args));
             dnsServer.startServer();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,348 @@
+package DNSHandling;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//read-only view of an encoded DNS message that reads straight out of a ByteBuffer at absolute offsets
+//reset() checks the whole message once and remembers where each record starts, after that every field is read
+//in place when it's asked for, and the same view can be reset onto the next packet so the hot path allocates nothing
+//all offsets taken and returned by this class are absolute positions in the buffer
+public class MessageView {
+    static final int HEADER_LENGTH = 12;
+    //more pointer hops than this means the name loops back on itself
+    private static final int MAX_POINTER_HOPS = 64;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+    private int questionEnd;
+    //where each resource record and its rdata start, reused between packets and only grown when needed
+    private int[] recordOffsets = new int[16];
+    private int[] rdataOffsets = new int[16];
+    private int recordCount;
+
+    public MessageView() {}
+
+    public static MessageView wrap(byte[] bytes) throws IOException {
+        return new MessageView().reset(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    //points this view at the message in buffer[start, start + length)
+    public MessageView reset(ByteBuffer buffer, int start, int length) throws IOException {
+        if (length < HEADER_LENGTH || start + length > buffer.limit()) {
+            throw new IOException("Message too short: " + length + " bytes");
+        }
+        this.buffer = buffer;
+        this.start = start;
+        this.end = start + length;
+
+        //walk the question section
+        int offset = start + HEADER_LENGTH;
+        for (int i = 0; i < getQuestionCount(); i++) {
+            offset = checkName(offset) + 4;
+            checkBounds(offset);
+        }
+        questionEnd = offset;
+
+        //walk every record once, so later lookups can jump straight to them
+        recordCount = getAnswerCount() + getAuthorityCount() + getAdditionalCount();
+        if (recordOffsets.length < recordCount) {
+            recordOffsets = new int[recordCount];
+            rdataOffsets = new int[recordCount];
+        }
+        for (int i = 0; i < recordCount; i++) {
+            recordOffsets[i] = offset;
+            //type, class, ttl and rdlength come after the name
+            offset = checkName(offset) + 10;
+            checkBounds(offset);
+            rdataOffsets[i] = offset;
+            offset += readShort(offset - 2);
+            checkBounds(offset);
+        }
+        return this;
+    }
+
+    //header fields
+    public int getId() {
+        return readShort(start);
+    }
+
+    public int getFlags() {
+        return readShort(start + 2);
+    }
+
+    public int getRcode() {
+        return getFlags() & 0xF;
+    }
+
+    public int getQuestionCount() {
+        return readShort(start + 4);
+    }
+
+    public int getAnswerCount() {
+        return readShort(start + 6);
+    }
+
+    public int getAuthorityCount() {
+        return readShort(start + 8);
+    }
+
+    public int getAdditionalCount() {
+        return readShort(start + 10);
+    }
+
+    //the first question, which is the only one clients ever send
+    public int getQuestionNameOffset() {
+        return start + HEADER_LENGTH;
+    }
+
+    public int getQuestionType() {
+        return readShort(skipName(getQuestionNameOffset()));
+    }
+
+    public int getQuestionClass() {
+        return readShort(skipName(getQuestionNameOffset()) + 2);
+    }
+
+    //offset just past the question section, where the answers start
+    public int getQuestionEnd() {
+        return questionEnd;
+    }
+
+    //records are numbered across the answer, authority and additional sections in that order
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public int getRecordNameOffset(int index) {
+        return recordOffsets[checkIndex(index)];
+    }
+
+    public int getRecordType(int index) {
+        return readShort(rdataOffsets[checkIndex(index)] - 10);
+    }
+
+    public int getRecordClass(int index) {
+        return readShort(rdataOffsets[checkIndex(index)] - 8);
+    }
+
+    //offset of the 4 byte TTL field, for patching it in place
+    public int getRecordTtlOffset(int index) {
+        return rdataOffsets[checkIndex(index)] - 6;
+    }
+
+    public long getRecordTtl(int index) {
+        //values with the top bit set are treated as zero (RFC 2181)
+        return Math.max(0, buffer.getInt(getRecordTtlOffset(index)));
+    }
+
+    public int getRdataOffset(int index) {
+        return rdataOffsets[checkIndex(index)];
+    }
+
+    public int getRdataLength(int index) {
+        return readShort(rdataOffsets[checkIndex(index)] - 2);
+    }
+
+    public int getRecordEnd(int index) {
+        return getRdataOffset(index) + getRdataLength(index);
+    }
+
+    //name helpers, all of them follow compression pointers
+
+    //offset just past the name that starts at offset, a pointer counts as its two bytes
+    public int skipName(int offset) {
+        while (true) {
+            int length = buffer.get(offset) & 0xFF;
+            if (length == 0) {
+                return offset + 1;
+            }
+            if ((length & 0xC0) == 0xC0) {
+                return offset + 2;
+            }
+            offset += length + 1;
+        }
+    }
+
+    //length of the name once pointers are expanded, including the final zero byte
+    //names inside rdata aren't checked by reset(), so this also guards the other name helpers against pointer loops
+    public int getNameLength(int offset) {
+        int nameLength = 1;
+        offset = followPointers(offset);
+        int length;
+        while ((length = buffer.get(offset) & 0xFF) != 0) {
+            nameLength += length + 1;
+            if (nameLength > MAX_NAME_LENGTH || length > MAX_LABEL_LENGTH) {
+                throw new IllegalArgumentException("Malformed name at " + (offset - start));
+            }
+            offset = followPointers(offset + length + 1);
+        }
+        return nameLength;
+    }
+
+    //writes the expanded wire format name into dst, folding it to lower case if asked, and returns the offset after it
+    public int copyName(int offset, byte[] dst, int dstOffset, boolean lowerCase) {
+        getNameLength(offset);
+        offset = followPointers(offset);
+        int length;
+        while ((length = buffer.get(offset) & 0xFF) != 0) {
+            dst[dstOffset++] = (byte) length;
+            for (int i = 1; i <= length; i++) {
+                byte b = buffer.get(offset + i);
+                dst[dstOffset++] = lowerCase ? toLowerCase(b) : b;
+            }
+            offset = followPointers(offset + length + 1);
+        }
+        dst[dstOffset++] = 0;
+        return dstOffset;
+    }
+
+    //writes the expanded wire format name into dst at dstOffset and returns the offset after it
+    public int copyName(int offset, ByteBuffer dst, int dstOffset) {
+        getNameLength(offset);
+        offset = followPointers(offset);
+        int length;
+        while ((length = buffer.get(offset) & 0xFF) != 0) {
+            dst.put(dstOffset, buffer, offset, length + 1);
+            dstOffset += length + 1;
+            offset = followPointers(offset + length + 1);
+        }
+        dst.put(dstOffset++, (byte) 0);
+        return dstOffset;
+    }
+
+    //case insensitive comparison against an uncompressed wire format name
+    public boolean nameEquals(int offset, byte[] wireName) {
+        int position = 0;
+        offset = followPointers(offset);
+        while (true) {
+            int length = buffer.get(offset) & 0xFF;
+            if (position >= wireName.length || wireName[position] != length) {
+                return false;
+            }
+            if (length == 0) {
+                return position == wireName.length - 1;
+            }
+            for (int i = 1; i <= length; i++) {
+                if (toLowerCase(buffer.get(offset + i)) != toLowerCase(wireName[position + i])) {
+                    return false;
+                }
+            }
+            position += length + 1;
+            offset = followPointers(offset + length + 1);
+        }
+    }
+
+    //the labels of the name as strings, for building the older object model
+    public String[] readLabels(int offset) {
+        getNameLength(offset);
+        int count = 0;
+        int position = followPointers(offset);
+        int length;
+        while ((length = buffer.get(position) & 0xFF) != 0) {
+            count++;
+            position = followPointers(position + length + 1);
+        }
+
+        String[] labels = new String[count];
+        position = followPointers(offset);
+        for (int i = 0; i < count; i++) {
+            length = buffer.get(position) & 0xFF;
+            byte[] label = new byte[length];
+            buffer.get(position + 1, label);
+            labels[i] = new String(label, StandardCharsets.UTF_8);
+            position = followPointers(position + length + 1);
+        }
+        return labels;
+    }
+
+    public String getNameString(int offset) {
+        return String.join(".", readLabels(offset));
+    }
+
+    //access to the underlying bytes for copying them out
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getLength() {
+        return end - start;
+    }
+
+    int readShort(int offset) {
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    //if offset holds a pointer, the offset it points to, otherwise offset itself
+    private int followPointers(int offset) {
+        int hops = 0;
+        int b = buffer.get(offset) & 0xFF;
+        while ((b & 0xC0) == 0xC0) {
+            int target = start + (readShort(offset) & 0x3FFF);
+            if (target >= offset || ++hops > MAX_POINTER_HOPS) {
+                throw new IllegalArgumentException("Bad compression pointer at " + (offset - start));
+            }
+            offset = target;
+            b = buffer.get(offset) & 0xFF;
+        }
+        return offset;
+    }
+
+    //checks the name at offset is well formed and returns the offset after it
+    private int checkName(int offset) throws IOException {
+        int nameEnd = -1;
+        int nameLength = 1;
+        int hops = 0;
+        while (true) {
+            checkBounds(offset + 1);
+            int length = buffer.get(offset) & 0xFF;
+            if (length == 0) {
+                return nameEnd < 0 ? offset + 1 : nameEnd;
+            }
+            if ((length & 0xC0) == 0xC0) {
+                checkBounds(offset + 2);
+                int target = start + (readShort(offset) & 0x3FFF);
+                //pointers can only point back at something earlier in the message
+                if (target >= offset || ++hops > MAX_POINTER_HOPS) {
+                    throw new IOException("Bad compression pointer at " + (offset - start));
+                }
+                if (nameEnd < 0) {
+                    nameEnd = offset + 2;
+                }
+                offset = target;
+                continue;
+            }
+            if (length > MAX_LABEL_LENGTH) {
+                throw new IOException("Bad label length " + length + " at " + (offset - start));
+            }
+            nameLength += length + 1;
+            if (nameLength > MAX_NAME_LENGTH) {
+                throw new IOException("Name longer than " + MAX_NAME_LENGTH + " bytes at " + (offset - start));
+            }
+            offset += length + 1;
+        }
+    }
+
+    private void checkBounds(int offset) throws IOException {
+        if (offset > end) {
+            throw new IOException("Message truncated at " + (offset - start) + " of " + (end - start) + " bytes");
+        }
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= recordCount) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + recordCount);
+        }
+        return index;
+    }
+
+    static byte toLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + 32) : b;
+    }
+}
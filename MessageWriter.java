@@ -0,0 +1,111 @@
+package DNSHandling;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+//writes a DNS message straight into a ByteBuffer at absolute offsets, the companion to MessageView
+//the writer never changes the buffer's own position, so one buffer and one writer can be reused for every reply
+//running past the end of the buffer throws BufferOverflowException, which callers treat as "doesn't fit"
+public class MessageWriter {
+    private ByteBuffer buffer;
+    private int start;
+    private int position;
+
+    public MessageWriter() {}
+
+    //starts a new message at buffer[start]
+    public MessageWriter reset(ByteBuffer buffer, int start) {
+        this.buffer = buffer;
+        this.start = start;
+        this.position = start;
+        return this;
+    }
+
+    public void writeHeader(int id, int flags, int questionCount, int answerCount, int authorityCount, int additionalCount) {
+        writeShort(id);
+        writeShort(flags);
+        writeShort(questionCount);
+        writeShort(answerCount);
+        writeShort(authorityCount);
+        writeShort(additionalCount);
+    }
+
+    //copies the first question of a request as is, name and all
+    public void writeQuestion(MessageView request) {
+        int questionStart = request.getQuestionNameOffset();
+        int questionEnd = request.skipName(questionStart) + 4;
+        //a compressed question name has to be expanded since its pointer would mean something else here
+        if (request.getNameLength(questionStart) != request.skipName(questionStart) - questionStart) {
+            writeName(request, questionStart);
+            writeBytes(request.getBuffer(), questionEnd - 4, 4);
+        } else {
+            writeBytes(request.getBuffer(), questionStart, questionEnd - questionStart);
+        }
+    }
+
+    //writes the name at offset in the view with every pointer expanded
+    public void writeName(MessageView view, int offset) {
+        checkSpace(view.getNameLength(offset));
+        position = view.copyName(offset, buffer, position);
+    }
+
+    //writes a name that is already in uncompressed wire format
+    public void writeName(byte[] wireName) {
+        checkSpace(wireName.length);
+        buffer.put(position, wireName);
+        position += wireName.length;
+    }
+
+    public void writeByte(int value) {
+        checkSpace(1);
+        buffer.put(position, (byte) value);
+        position += 1;
+    }
+
+    public void writeShort(int value) {
+        checkSpace(2);
+        buffer.putShort(position, (short) value);
+        position += 2;
+    }
+
+    public void writeInt(int value) {
+        checkSpace(4);
+        buffer.putInt(position, value);
+        position += 4;
+    }
+
+    public void writeBytes(byte[] bytes) {
+        checkSpace(bytes.length);
+        buffer.put(position, bytes);
+        position += bytes.length;
+    }
+
+    public void writeBytes(ByteBuffer source, int offset, int length) {
+        checkSpace(length);
+        buffer.put(position, source, offset, length);
+        position += length;
+    }
+
+    //overwrites a two byte field that was already written, offset is from the start of the message
+    public void patchShort(int offset, int value) {
+        buffer.putShort(start + offset, (short) value);
+    }
+
+    //offset of the next byte to be written, from the start of the message
+    public int getLength() {
+        return position - start;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    private void checkSpace(int length) {
+        if (position + length > buffer.limit()) {
+            throw new BufferOverflowException();
+        }
+    }
+}
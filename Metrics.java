@@ -0,0 +1,289 @@
+package DNSHandling;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+//counters and latencies for the whole server, cheap enough to update on every query
+//counters are LongAdders so threads bump their own cell instead of fighting over one value
+//cache and upstream numbers are read from the cache engine and the upstream pool, which already keep them
+public class Metrics implements MetricsMXBean {
+    static final String OBJECT_NAME = "DNSHandling:type=Metrics";
+
+    private final DNSServer server;
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder tcpQueries = new LongAdder();
+    private final LongAdder droppedQueries = new LongAdder();
+    private final LongAdder servfails = new LongAdder();
+    //answered from the local zones and hosts overrides, these never touch the cache
+    private final LongAdder localAnswers = new LongAdder();
+    //stopped by the blocklist
+    private final LongAdder blocked = new LongAdder();
+    //from the query arriving to its reply being handed to the front end
+    private final LatencyHistogram clientLatency = new LatencyHistogram();
+
+    public Metrics(DNSServer server) {
+        this.server = server;
+    }
+
+    //registers with the platform MBean server, replacing whatever an earlier server in this JVM registered
+    public void registerMBean() {
+        try {
+            MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (beans.isRegistered(name)) {
+                beans.unregisterMBean(name);
+            }
+            beans.registerMBean(this, name);
+        } catch (JMException e) {
+            Log.warn("Couldn't register metrics over JMX", e);
+        }
+    }
+
+    void recordQuery(boolean overUdp) {
+        queries.increment();
+        if (!overUdp) {
+            tcpQueries.increment();
+        }
+    }
+
+    void recordDropped() {
+        droppedQueries.increment();
+    }
+
+    void recordServfail() {
+        servfails.increment();
+    }
+
+    void recordLocalAnswer() {
+        localAnswers.increment();
+    }
+
+    void recordBlocked() {
+        blocked.increment();
+    }
+
+    void recordClientLatency(long startNanos) {
+        clientLatency.recordNanos(System.nanoTime() - startNanos);
+    }
+
+    //every metric as "name value" lines, for the stats endpoint
+    public String toText() {
+        StringBuilder out = new StringBuilder();
+        line(out, "queries_total", getQueries());
+        line(out, "queries_tcp_total", getTcpQueries());
+        line(out, "queries_dropped_total", getDroppedQueries());
+        line(out, "servfail_total", getServfails());
+        line(out, "local_answers_total", getLocalAnswers());
+        line(out, "blocked_total", getBlockedQueries());
+        line(out, "rate_limited_total", getRateLimitedResponses());
+        line(out, "rate_limit_dropped_total", getRateLimitDropped());
+        line(out, "rate_limit_truncated_total", getRateLimitTruncated());
+        RateLimiter limiter = server.getRateLimiter();
+        if (limiter != null) {
+            limiter.getLimitedSubnets().forEach((subnet, count) -> line(out, "rate_limited_total{subnet=\"" + subnet + "\"}", count));
+        }
+        line(out, "cache_hits_total", getCacheHits());
+        line(out, "cache_misses_total", getCacheMisses());
+        line(out, "cache_hit_ratio", getCacheHitRatio());
+        line(out, "cache_evictions_total", getCacheEvictions());
+        line(out, "cache_expirations_total", getCacheExpirations());
+        line(out, "cache_entries", getCacheEntries());
+        line(out, "cache_max_entries", getCacheMaxEntries());
+        line(out, "upstream_queries_total", getUpstreamQueries());
+        line(out, "upstream_errors_total", getUpstreamErrors());
+        line(out, "upstream_failovers_total", getUpstreamFailovers());
+        line(out, "upstream_hedges_total", getUpstreamHedges());
+        latencyLines(out, "client_latency_us", clientLatency);
+        if (server.getUpstreams() != null) {
+            latencyLines(out, "upstream_latency_us", server.getUpstreams().getLatency());
+        }
+        IterativeResolver iterative = server.getIterativeResolver();
+        if (iterative != null) {
+            line(out, "iterative_lookups_total", iterative.getLookups());
+            line(out, "iterative_referrals_total", iterative.getReferrals());
+            line(out, "iterative_glueless_lookups_total", iterative.getGluelessLookups());
+            line(out, "iterative_lame_replies_total", iterative.getLameReplies());
+            line(out, "iterative_failures_total", iterative.getFailures());
+            line(out, "delegation_cache_zones", iterative.getDelegations().getSize());
+            line(out, "delegation_cache_hits_total", iterative.getDelegations().getHits());
+            line(out, "delegation_cache_misses_total", iterative.getDelegations().getMisses());
+            line(out, "delegation_cache_evictions_total", iterative.getDelegations().getEvictions());
+        }
+        line(out, "log_messages_dropped_total", getLogMessagesDropped());
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, Object value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void latencyLines(StringBuilder out, String name, LatencyHistogram histogram) {
+        line(out, name + "{quantile=\"0.5\"}", histogram.getPercentile(50));
+        line(out, name + "{quantile=\"0.9\"}", histogram.getPercentile(90));
+        line(out, name + "{quantile=\"0.99\"}", histogram.getPercentile(99));
+        line(out, name + "{quantile=\"0.999\"}", histogram.getPercentile(99.9));
+        line(out, name + "_max", histogram.getMax());
+        line(out, name + "_count", histogram.getCount());
+    }
+
+    //getters
+    public LatencyHistogram getClientLatency() {
+        return clientLatency;
+    }
+
+    @Override
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    @Override
+    public long getTcpQueries() {
+        return tcpQueries.sum();
+    }
+
+    @Override
+    public long getDroppedQueries() {
+        return droppedQueries.sum();
+    }
+
+    @Override
+    public long getServfails() {
+        return servfails.sum();
+    }
+
+    @Override
+    public long getLocalAnswers() {
+        return localAnswers.sum();
+    }
+
+    @Override
+    public long getBlockedQueries() {
+        return blocked.sum();
+    }
+
+    @Override
+    public long getRateLimitedResponses() {
+        return server.getRateLimiter() == null ? 0 : server.getRateLimiter().getLimited();
+    }
+
+    @Override
+    public long getRateLimitDropped() {
+        return server.getRateLimiter() == null ? 0 : server.getRateLimiter().getDropped();
+    }
+
+    @Override
+    public long getRateLimitTruncated() {
+        return server.getRateLimiter() == null ? 0 : server.getRateLimiter().getTruncated();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return DNSCache.getStats().getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return DNSCache.getStats().getMisses();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = getCacheHits();
+        long lookups = hits + getCacheMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return DNSCache.getStats().getEvictions();
+    }
+
+    @Override
+    public long getCacheExpirations() {
+        return DNSCache.getStats().getExpirations();
+    }
+
+    @Override
+    public int getCacheEntries() {
+        return DNSCache.getStats().size();
+    }
+
+    @Override
+    public int getCacheMaxEntries() {
+        return DNSCache.getStats().getMaxEntries();
+    }
+
+    @Override
+    public long getUpstreamQueries() {
+        return server.getUpstreams() == null ? 0 : server.getUpstreams().getQueries();
+    }
+
+    @Override
+    public long getUpstreamErrors() {
+        return server.getUpstreams() == null ? 0 : server.getUpstreams().getErrors();
+    }
+
+    @Override
+    public long getUpstreamFailovers() {
+        return server.getUpstreams() == null ? 0 : server.getUpstreams().getFailovers();
+    }
+
+    @Override
+    public long getUpstreamHedges() {
+        return server.getUpstreams() == null ? 0 : server.getUpstreams().getHedges();
+    }
+
+    @Override
+    public long getClientLatencyP50() {
+        return clientLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getClientLatencyP99() {
+        return clientLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getClientLatencyP999() {
+        return clientLatency.getPercentile(99.9);
+    }
+
+    @Override
+    public long getClientLatencyMax() {
+        return clientLatency.getMax();
+    }
+
+    @Override
+    public long getUpstreamLatencyP50() {
+        return server.getUpstreams() == null ? 0 : server.getUpstreams().getLatency().getPercentile(50);
+    }
+
+    @Override
+    public long getUpstreamLatencyP99() {
+        return server.getUpstreams() == null ? 0 : server.getUpstreams().getLatency().getPercentile(99);
+    }
+
+    @Override
+    public long getUpstreamLatencyP999() {
+        return server.getUpstreams() == null ? 0 : server.getUpstreams().getLatency().getPercentile(99.9);
+    }
+
+    @Override
+    public long getUpstreamLatencyMax() {
+        return server.getUpstreams() == null ? 0 : server.getUpstreams().getLatency().getMax();
+    }
+
+    @Override
+    public long getLogMessagesDropped() {
+        return Log.getDropped();
+    }
+
+    public String toString() {
+        return "Queries: " + getQueries() +
+                ", Hit ratio: " + getCacheHitRatio() +
+                ", Client latency: " + clientLatency +
+                ", Upstream errors: " + getUpstreamErrors();
+    }
+}
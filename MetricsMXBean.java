@@ -0,0 +1,63 @@
+package DNSHandling;
+
+//what the server reports over JMX, under DNSHandling:type=Metrics
+//latencies are in microseconds
+public interface MetricsMXBean {
+    long getQueries();
+
+    long getTcpQueries();
+
+    long getDroppedQueries();
+
+    long getServfails();
+
+    long getLocalAnswers();
+
+    long getBlockedQueries();
+
+    long getRateLimitedResponses();
+
+    long getRateLimitDropped();
+
+    long getRateLimitTruncated();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    long getCacheEvictions();
+
+    long getCacheExpirations();
+
+    int getCacheEntries();
+
+    int getCacheMaxEntries();
+
+    long getUpstreamQueries();
+
+    long getUpstreamErrors();
+
+    long getUpstreamFailovers();
+
+    long getUpstreamHedges();
+
+    long getClientLatencyP50();
+
+    long getClientLatencyP99();
+
+    long getClientLatencyP999();
+
+    long getClientLatencyMax();
+
+    long getUpstreamLatencyP50();
+
+    long getUpstreamLatencyP99();
+
+    long getUpstreamLatencyP999();
+
+    long getUpstreamLatencyMax();
+
+    long getLogMessagesDropped();
+}
@@ -0,0 +1,128 @@
+package DNSHandling;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//non-blocking UDP front end: one selector thread receives and sends, the handling happens on the executor
+//every wakeup drains all the datagrams that are waiting, and replies queued up by the workers are sent in one batch
+//packets live in pooled direct buffers from the moment they're received until the reply has gone out
+public class NioFrontEnd implements Runnable {
+    private final DNSServer server;
+    private final Executor executor;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final BufferPool pool;
+    //where this front end's cache misses go
+    private final UpstreamResolver upstream;
+    //replies waiting for the selector thread to send them
+    private final ConcurrentLinkedQueue<Outgoing> outgoing = new ConcurrentLinkedQueue<>();
+    //set while a wakeup is already on its way, so a burst of replies only wakes the selector once
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final SelectionKey key;
+
+    public NioFrontEnd(DNSServer server, Executor executor, DatagramChannel channel, BufferPool pool, UpstreamResolver upstream) throws IOException {
+        this.server = server;
+        this.executor = executor;
+        this.channel = channel;
+        this.pool = pool;
+        this.upstream = upstream;
+        this.selector = Selector.open();
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    //opens a channel on the port and builds a front end for it
+    //with reusePort several front ends can bind the same port and the kernel shares the packets out between them
+    public static NioFrontEnd open(DNSServer server, Executor executor, int port, boolean reusePort,
+                                   BufferPool pool, UpstreamResolver upstream) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        if (reusePort) {
+            if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                channel.close();
+                throw new IOException("SO_REUSEPORT isn't supported here, run with --shards=1");
+            }
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(port));
+        return new NioFrontEnd(server, executor, channel, pool, upstream);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (channel.isOpen()) {
+                selector.select();
+                wakeupPending.set(false);
+                selector.selectedKeys().clear();
+                receiveAll();
+                sendAll();
+            }
+        } catch (IOException e) {
+            Log.error("UDP front end stopped", e);
+        }
+    }
+
+    //reads every datagram that is ready right now and hands each one to a worker
+    private void receiveAll() throws IOException {
+        while (true) {
+            ByteBuffer buffer = pool.acquire();
+            SocketAddress client = channel.receive(buffer);
+            if (client == null) {
+                //nothing left to read
+                pool.release(buffer);
+                return;
+            }
+            buffer.flip();
+            executor.execute(() -> handle(buffer, client));
+        }
+    }
+
+    private void handle(ByteBuffer request, SocketAddress client) {
+        try {
+            server.handleQuery(request, 0, request.limit(), upstream, true, ((InetSocketAddress) client).getAddress(),
+                    (reply, length) -> queueReply(reply, length, client));
+        } finally {
+            pool.release(request);
+        }
+    }
+
+    //called from worker threads, the reply array may be reused by the caller as soon as this returns
+    private void queueReply(byte[] reply, int length, SocketAddress client) {
+        ByteBuffer buffer = length <= pool.getBufferSize() ? pool.acquire() : ByteBuffer.allocateDirect(length);
+        buffer.put(reply, 0, length).flip();
+        outgoing.offer(new Outgoing(buffer, client));
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    //sends everything the workers have queued, stopping early if the socket's send buffer is full
+    private void sendAll() throws IOException {
+        Outgoing next;
+        while ((next = outgoing.peek()) != null) {
+            if (channel.send(next.buffer, next.client) == 0) {
+                //no room right now, ask to be told when there is
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            outgoing.poll();
+            pool.release(next.buffer);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        selector.wakeup();
+    }
+
+    private record Outgoing(ByteBuffer buffer, SocketAddress client) {}
+}
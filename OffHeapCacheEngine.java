@@ -0,0 +1,650 @@
+package DNSHandling;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/* cache engine that keeps every entry in direct buffers outside the Java heap, for caches big enough that
+   millions of small objects would make the garbage collector pause for too long
+   the heap only holds a handful of arrays per segment no matter how many entries there are
+   each of the 16 segments has its own lock and:
+    an index:  open addressing with linear probing, 16 byte slots of  hash (4) | unused (4) | entry address + 1 (8)
+    a slab:    1MB pages, each one carved into chunks of a single size class (64 bytes, 128, ... up to 128KB),
+               freed chunks go on a free list for their class and get reused before any new page is taken
+   an entry is one chunk laid out as:
+    size class (1) | flags (1) | key length (2) | hits (4) | expires at (8) | received at (8) | inserted at (8) |
+    wire length (2) | TTL count (2) | key | TTL table, offset (2) and TTL (4) per record | response wire
+   the key is the question name in wire format followed by its type and class
+   once a segment is out of pages, entries are evicted CLOCK style: the hand sweeps the index, giving anything
+   that was hit since it last came round a second chance
+*/
+public class OffHeapCacheEngine implements CacheStore<DNSQuestion, CachedResponse> {
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MIN_CHUNK_BITS = 6;
+    private static final int CLASS_COUNT = 12;
+    private static final int MAX_CHUNK_SIZE = 1 << (MIN_CHUNK_BITS + CLASS_COUNT - 1);
+    private static final int SLOT_SIZE = 16;
+
+    //entry header offsets
+    private static final int SIZE_CLASS = 0;
+    private static final int FLAGS = 1;
+    private static final int KEY_LENGTH = 2;
+    private static final int HITS = 4;
+    private static final int EXPIRES_AT = 8;
+    private static final int RECEIVED_AT = 16;
+    private static final int INSERTED_AT = 24;
+    private static final int WIRE_LENGTH = 32;
+    private static final int TTL_COUNT = 34;
+    private static final int ENTRY_HEADER_LENGTH = 36;
+    //a free chunk keeps the address of the next free one where the expiry time used to be
+    private static final int NEXT_FREE = 8;
+
+    private static final int REFERENCED = 1;
+    private static final int FROM_PREFETCH = 2;
+    private static final int REFRESHING = 4;
+
+    private final Segment[] segments;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    //entries too big for the largest chunk, or that couldn't find room
+    private final LongAdder rejected = new LongAdder();
+
+    private final ScheduledExecutorService expiryTimer;
+    private volatile Prefetcher<DNSQuestion> prefetcher;
+
+    public OffHeapCacheEngine(int maxEntries, long maxBytes) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1: " + maxEntries);
+        }
+        if (maxBytes < (long) SEGMENT_COUNT * PAGE_SIZE) {
+            throw new IllegalArgumentException("Off-heap cache needs at least " + SEGMENT_COUNT + "MB: " + maxBytes);
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        int perSegment = (maxEntries + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(perSegment, (int) Math.min(Integer.MAX_VALUE, maxBytes / SEGMENT_COUNT / PAGE_SIZE));
+        }
+
+        expiryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiryTimer.scheduleAtFixedRate(this::expireEntries, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public CachedResponse get(DNSQuestion key) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        CachedResponse value = null;
+        boolean refresh = false;
+        Prefetcher<DNSQuestion> prefetcher = this.prefetcher;
+        segment.lock.lock();
+        try {
+            int slot = segment.find(hash, key);
+            if (slot >= 0) {
+                long address = segment.addressAt(slot);
+                ByteBuffer page = segment.page(address);
+                int entry = offset(address);
+                long now = System.nanoTime();
+                long expiresAt = page.getLong(entry + EXPIRES_AT);
+                if (now - expiresAt >= 0) {
+                    segment.removeAt(slot);
+                    expirations.increment();
+                } else {
+                    int entryHits = page.getInt(entry + HITS) + 1;
+                    page.putInt(entry + HITS, entryHits);
+                    int flags = page.get(entry + FLAGS) | REFERENCED;
+                    if (prefetcher != null) {
+                        if ((flags & FROM_PREFETCH) != 0) {
+                            prefetcher.recordPrefetchHit();
+                        }
+                        long insertedAt = page.getLong(entry + INSERTED_AT);
+                        if ((flags & REFRESHING) == 0 && prefetcher.isDue(entryHits, expiresAt - now, expiresAt - insertedAt)) {
+                            flags |= REFRESHING;
+                            refresh = true;
+                        }
+                    }
+                    page.put(entry + FLAGS, (byte) flags);
+                    value = segment.readResponse(address);
+                }
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        if (refresh) {
+            prefetcher.refresh(key, () -> clearRefreshing(segment, hash, key));
+        }
+        return value;
+    }
+
+    //the refresh is done, so whichever entry is under the key now can be refreshed again later
+    private void clearRefreshing(Segment segment, int hash, DNSQuestion key) {
+        segment.lock.lock();
+        try {
+            int slot = segment.find(hash, key);
+            if (slot >= 0) {
+                long address = segment.addressAt(slot);
+                ByteBuffer page = segment.page(address);
+                int entry = offset(address);
+                page.put(entry + FLAGS, (byte) (page.get(entry + FLAGS) & ~REFRESHING));
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(DNSQuestion key, CachedResponse value, long expiresAt, boolean fromPrefetch) {
+        byte[] name = key.getQName().getWire();
+        byte[] wire = value.getWire();
+        int[] ttlOffsets = value.getTtlOffsets();
+        long length = (long) ENTRY_HEADER_LENGTH + name.length + 4 + 6L * ttlOffsets.length + wire.length;
+        if (length > MAX_CHUNK_SIZE) {
+            rejected.increment();
+            return;
+        }
+        int sizeClass = sizeClassFor((int) length);
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(hash, key);
+            if (slot >= 0) {
+                segment.removeAt(slot);
+            } else if (segment.count >= segment.capacity) {
+                segment.evict(-1);
+            }
+            long address = segment.allocate(sizeClass);
+            if (address < 0) {
+                rejected.increment();
+                return;
+            }
+            segment.writeEntry(address, sizeClass, name, key, value, expiresAt, fromPrefetch);
+            segment.insert(hash, address);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void setPrefetcher(Prefetcher<DNSQuestion> prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    @Override
+    public Prefetcher<DNSQuestion> getPrefetcher() {
+        return prefetcher;
+    }
+
+    @Override
+    public void remove(DNSQuestion key) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(hash, key);
+            if (slot >= 0) {
+                segment.removeAt(slot);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    //every entry of a segment is copied back onto the heap under its lock and the action runs outside it,
+    //so only one segment's worth is on the heap at a time
+    @Override
+    public void forEach(BiConsumer<DNSQuestion, CachedResponse> action) {
+        for (Segment segment : segments) {
+            List<DNSQuestion> keys = new ArrayList<>();
+            List<CachedResponse> values = new ArrayList<>();
+            long now = System.nanoTime();
+            segment.lock.lock();
+            try {
+                for (int slot = 0; slot < segment.slotCount; slot++) {
+                    long address = segment.addressAt(slot);
+                    if (address >= 0 && now - segment.page(address).getLong(offset(address) + EXPIRES_AT) < 0) {
+                        keys.add(segment.readKey(address));
+                        values.add(segment.readResponse(address));
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                action.accept(keys.get(i), values.get(i));
+            }
+        }
+    }
+
+    //runs once a second, each run looks at a sixteenth of every index so the whole cache is swept every 16 seconds
+    private void expireEntries() {
+        long now = System.nanoTime();
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                expirations.add(segment.sweep(now, Math.max(1, segment.slotCount / 16)));
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        expiryTimer.shutdownNow();
+    }
+
+    private static int hash(DNSQuestion key) {
+        return key.hashCode() * 0x9E3779B9;
+    }
+
+    //top bits pick the segment, the index inside it uses the low ones
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    private static int sizeClassFor(int length) {
+        int bits = 32 - Integer.numberOfLeadingZeros(length - 1);
+        return Math.max(0, bits - MIN_CHUNK_BITS);
+    }
+
+    private static int chunkSize(int sizeClass) {
+        return 1 << (MIN_CHUNK_BITS + sizeClass);
+    }
+
+    private static int offset(long address) {
+        return (int) (address & (PAGE_SIZE - 1));
+    }
+
+    //getters for the counters
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    //bytes of pages taken so far, whether or not they're full
+    public long getAllocatedBytes() {
+        long pages = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                pages += segment.pages.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return pages * PAGE_SIZE;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.count;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public String toString() {
+        return "Entries: " + size() + "/" + maxEntries +
+                ", Off-heap: " + getAllocatedBytes() / (1024 * 1024) + "/" + maxBytes / (1024 * 1024) + "MB" +
+                ", Hits: " + getHits() +
+                ", Misses: " + getMisses() +
+                ", Evictions: " + getEvictions() +
+                ", Expirations: " + getExpirations() +
+                ", Rejected: " + getRejected();
+    }
+
+    private class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final int capacity;
+        int maxPages;
+        final ByteBuffer index;
+        final int slotCount;
+        final int mask;
+        int count;
+        //where the CLOCK hand and the expiry sweep are in the index
+        int hand;
+        int sweepCursor;
+
+        final List<ByteBuffer> pages = new ArrayList<>();
+        //pages handed out since the last clear, the rest of the list is kept for reuse
+        int pagesInUse;
+        //per size class: head of the free list (address + 1, 0 when empty) and the page being carved up
+        final long[] freeHeads = new long[CLASS_COUNT];
+        final long[] bump = new long[CLASS_COUNT];
+        final int[] bumpLeft = new int[CLASS_COUNT];
+
+        Segment(int capacity, int maxPages) {
+            this.capacity = capacity;
+            this.maxPages = maxPages;
+            //keep the index at most three quarters full so probe runs stay short
+            int slots = Integer.highestOneBit(Math.max(16, capacity + capacity / 3 + 1) - 1) << 1;
+            this.slotCount = slots;
+            this.mask = slots - 1;
+            this.index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        }
+
+        //where a hash would sit with no collisions, the top bits already went on picking the segment
+        int home(int hash) {
+            return (hash ^ hash >>> 15) & mask;
+        }
+
+        ByteBuffer page(long address) {
+            return pages.get((int) (address >>> PAGE_BITS));
+        }
+
+        //the entry address in a slot, or -1 if it's empty
+        long addressAt(int slot) {
+            return index.getLong(slot * SLOT_SIZE + 8) - 1;
+        }
+
+        int find(int hash, DNSQuestion key) {
+            for (int slot = home(hash); ; slot = (slot + 1) & mask) {
+                long address = addressAt(slot);
+                if (address < 0) {
+                    return -1;
+                }
+                if (index.getInt(slot * SLOT_SIZE) == hash && keyMatches(address, key)) {
+                    return slot;
+                }
+            }
+        }
+
+        boolean keyMatches(long address, DNSQuestion key) {
+            ByteBuffer page = page(address);
+            int entry = offset(address);
+            byte[] name = key.getQName().getWire();
+            if (page.getShort(entry + KEY_LENGTH) != name.length + 4) {
+                return false;
+            }
+            int keyStart = entry + ENTRY_HEADER_LENGTH;
+            for (int i = 0; i < name.length; i++) {
+                if (page.get(keyStart + i) != name[i]) {
+                    return false;
+                }
+            }
+            return (page.getShort(keyStart + name.length) & 0xFFFF) == key.getQType() &&
+                    (page.getShort(keyStart + name.length + 2) & 0xFFFF) == key.getQClass();
+        }
+
+        void insert(int hash, long address) {
+            int slot = home(hash);
+            while (addressAt(slot) >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            index.putInt(slot * SLOT_SIZE, hash);
+            index.putLong(slot * SLOT_SIZE + 8, address + 1);
+            count++;
+        }
+
+        //frees the entry in slot and closes the gap by shifting later entries of the probe run back,
+        //so lookups never need tombstones
+        void removeAt(int slot) {
+            free(addressAt(slot));
+            count--;
+            int gap = slot;
+            for (int next = (gap + 1) & mask; ; next = (next + 1) & mask) {
+                long address = addressAt(next);
+                if (address < 0) {
+                    break;
+                }
+                int home = home(index.getInt(next * SLOT_SIZE));
+                //an entry can fill the gap if the gap lies between its home slot and where it is now
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    index.putInt(gap * SLOT_SIZE, index.getInt(next * SLOT_SIZE));
+                    index.putLong(gap * SLOT_SIZE + 8, address + 1);
+                    gap = next;
+                }
+            }
+            index.putLong(gap * SLOT_SIZE + 8, 0);
+        }
+
+        //a chunk of the size class, or -1 if the segment is out of room and nothing of that size could be evicted
+        long allocate(int sizeClass) {
+            while (true) {
+                long head = freeHeads[sizeClass];
+                if (head != 0) {
+                    long address = head - 1;
+                    freeHeads[sizeClass] = page(address).getLong(offset(address) + NEXT_FREE);
+                    return address;
+                }
+                int size = chunkSize(sizeClass);
+                if (bumpLeft[sizeClass] >= size) {
+                    long address = bump[sizeClass];
+                    bump[sizeClass] += size;
+                    bumpLeft[sizeClass] -= size;
+                    return address;
+                }
+                if (pagesInUse < maxPages) {
+                    if (pagesInUse == pages.size()) {
+                        try {
+                            pages.add(ByteBuffer.allocateDirect(PAGE_SIZE));
+                        } catch (OutOfMemoryError e) {
+                            //the JVM's direct memory limit (-XX:MaxDirectMemorySize) is lower than offheap-mb,
+                            //so this segment has all the pages it's going to get
+                            maxPages = pagesInUse;
+                            continue;
+                        }
+                    }
+                    bump[sizeClass] = (long) pagesInUse++ << PAGE_BITS;
+                    bumpLeft[sizeClass] = PAGE_SIZE;
+                    continue;
+                }
+                //out of pages, make room by pushing out an entry that uses the same size of chunk
+                if (!evict(sizeClass)) {
+                    return -1;
+                }
+            }
+        }
+
+        void free(long address) {
+            ByteBuffer page = page(address);
+            int entry = offset(address);
+            int flags = page.get(entry + FLAGS);
+            //a refreshed entry that nobody asked for before it left was a wasted upstream query
+            Prefetcher<DNSQuestion> prefetcher = OffHeapCacheEngine.this.prefetcher;
+            if (prefetcher != null && (flags & FROM_PREFETCH) != 0 && page.getInt(entry + HITS) == 0) {
+                prefetcher.recordWasted();
+            }
+            int sizeClass = page.get(entry + SIZE_CLASS);
+            page.putLong(entry + NEXT_FREE, freeHeads[sizeClass]);
+            freeHeads[sizeClass] = address + 1;
+        }
+
+        //moves the CLOCK hand until it finds an entry of the size class (any class for -1) that hasn't been hit
+        //since the hand last passed it, and removes it, expired entries on the way are dropped as well
+        //returns false if two full turns found nothing to evict
+        boolean evict(int sizeClass) {
+            long now = System.nanoTime();
+            for (int steps = 0; steps < 2 * slotCount; steps++) {
+                int slot = hand;
+                long address = addressAt(slot);
+                if (address < 0) {
+                    hand = (slot + 1) & mask;
+                    continue;
+                }
+                ByteBuffer page = page(address);
+                int entry = offset(address);
+                int entryClass = page.get(entry + SIZE_CLASS);
+                if (now - page.getLong(entry + EXPIRES_AT) >= 0) {
+                    //the shift may move another entry into this slot, so the hand stays put
+                    removeAt(slot);
+                    expirations.increment();
+                    if (sizeClass < 0 || entryClass == sizeClass) {
+                        return true;
+                    }
+                    continue;
+                }
+                hand = (slot + 1) & mask;
+                int flags = page.get(entry + FLAGS);
+                if ((flags & REFERENCED) != 0) {
+                    page.put(entry + FLAGS, (byte) (flags & ~REFERENCED));
+                } else if (sizeClass < 0 || entryClass == sizeClass) {
+                    removeAt(slot);
+                    evictions.increment();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        //removes expired entries from the next slots of the index, returns how many
+        int sweep(long now, int slots) {
+            int expired = 0;
+            for (int i = 0; i < slots; i++) {
+                int slot = sweepCursor;
+                long address = addressAt(slot);
+                if (address >= 0 && now - page(address).getLong(offset(address) + EXPIRES_AT) >= 0) {
+                    removeAt(slot);
+                    expired++;
+                    //look at the same slot again, something may have been shifted into it
+                    continue;
+                }
+                sweepCursor = (slot + 1) & mask;
+            }
+            return expired;
+        }
+
+        void clear() {
+            //the pages stay allocated and get handed out again
+            for (int slot = 0; slot < slotCount; slot++) {
+                index.putLong(slot * SLOT_SIZE + 8, 0);
+            }
+            count = 0;
+            pagesInUse = 0;
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                freeHeads[i] = 0;
+                bump[i] = 0;
+                bumpLeft[i] = 0;
+            }
+        }
+
+        void writeEntry(long address, int sizeClass, byte[] name, DNSQuestion key, CachedResponse value, long expiresAt, boolean fromPrefetch) {
+            ByteBuffer page = page(address);
+            int entry = offset(address);
+            byte[] wire = value.getWire();
+            int[] ttlOffsets = value.getTtlOffsets();
+            int[] ttls = value.getTtls();
+            page.put(entry + SIZE_CLASS, (byte) sizeClass);
+            page.put(entry + FLAGS, (byte) (fromPrefetch ? FROM_PREFETCH : 0));
+            page.putShort(entry + KEY_LENGTH, (short) (name.length + 4));
+            page.putInt(entry + HITS, 0);
+            page.putLong(entry + EXPIRES_AT, expiresAt);
+            page.putLong(entry + RECEIVED_AT, value.getReceivedAt());
+            page.putLong(entry + INSERTED_AT, System.nanoTime());
+            page.putShort(entry + WIRE_LENGTH, (short) wire.length);
+            page.putShort(entry + TTL_COUNT, (short) ttlOffsets.length);
+            int position = entry + ENTRY_HEADER_LENGTH;
+            page.put(position, name);
+            position += name.length;
+            page.putShort(position, (short) key.getQType());
+            page.putShort(position + 2, (short) key.getQClass());
+            position += 4;
+            for (int i = 0; i < ttlOffsets.length; i++) {
+                page.putShort(position, (short) ttlOffsets[i]);
+                page.putInt(position + 2, ttls[i]);
+                position += 6;
+            }
+            page.put(position, wire);
+        }
+
+        DNSQuestion readKey(long address) {
+            ByteBuffer page = page(address);
+            int entry = offset(address);
+            byte[] name = new byte[page.getShort(entry + KEY_LENGTH) - 4];
+            page.get(entry + ENTRY_HEADER_LENGTH, name);
+            int typeOffset = entry + ENTRY_HEADER_LENGTH + name.length;
+            return new DNSQuestion(DNSName.fromCanonicalWire(name), page.getShort(typeOffset) & 0xFFFF, page.getShort(typeOffset + 2) & 0xFFFF);
+        }
+
+        //copies the entry back onto the heap as a response ready to send
+        CachedResponse readResponse(long address) {
+            ByteBuffer page = page(address);
+            int entry = offset(address);
+            int keyLength = page.getShort(entry + KEY_LENGTH);
+            int ttlCount = page.getShort(entry + TTL_COUNT) & 0xFFFF;
+            int[] ttlOffsets = new int[ttlCount];
+            int[] ttls = new int[ttlCount];
+            int position = entry + ENTRY_HEADER_LENGTH + keyLength;
+            for (int i = 0; i < ttlCount; i++) {
+                ttlOffsets[i] = page.getShort(position) & 0xFFFF;
+                ttls[i] = page.getInt(position + 2);
+                position += 6;
+            }
+            byte[] wire = new byte[page.getShort(entry + WIRE_LENGTH) & 0xFFFF];
+            page.get(position, wire);
+            return CachedResponse.fromStored(wire, ttlOffsets, ttls, keyLength - 4,
+                    page.getLong(entry + RECEIVED_AT), page.getLong(entry + EXPIRES_AT));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package DNSHandling;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/* the OPT pseudo-record from EDNS(0) (RFC 6891), it sits in the additional section and reuses the record fields:
+    NAME      root, a single zero byte
+    TYPE      41
+    CLASS     the biggest UDP payload the sender can take
+    TTL       extended RCODE (8 bits) | version (8 bits) | flags (16 bits, DO is the top one)
+    RDLENGTH  length of the options
+    RDATA     options, as {code, length, data} triples
+*/
+public class OptRecord {
+    static final int TYPE_OPT = 41;
+    //root name, type, class, TTL and a zero RDLENGTH
+    static final int EMPTY_LENGTH = 11;
+    //what plain DNS over UDP allows when there's no OPT record (RFC 1035)
+    static final int MIN_PAYLOAD_SIZE = 512;
+    //the size recommended by DNS flag day 2020, small enough to avoid IP fragmentation on almost every path
+    static final int DEFAULT_PAYLOAD_SIZE = 1232;
+    //extended RCODE for a version we don't speak
+    static final int RCODE_BADVERS = 16;
+
+    private int payloadSize;
+    private int extendedRcode;
+    private int version;
+    private int flags;
+    private byte[] options;
+
+    public OptRecord(int payloadSize) {
+        this(payloadSize, 0, 0, 0, new byte[0]);
+    }
+
+    OptRecord(int payloadSize, int extendedRcode, int version, int flags, byte[] options) {
+        this.payloadSize = payloadSize;
+        this.extendedRcode = extendedRcode;
+        this.version = version;
+        this.flags = flags;
+        this.options = options;
+    }
+
+    //the OPT record in a message's additional section, or null if it doesn't have one
+    public static OptRecord find(MessageView view) {
+        int index = findIndex(view);
+        if (index < 0) {
+            return null;
+        }
+        int ttl = view.getBuffer().getInt(view.getRecordTtlOffset(index));
+        int rdataOffset = view.getRdataOffset(index);
+        byte[] options = new byte[view.getRdataLength(index)];
+        view.getBuffer().get(rdataOffset, options);
+        return new OptRecord(view.getRecordClass(index), ttl >>> 24, (ttl >>> 16) & 0xFF, ttl & 0xFFFF, options);
+    }
+
+    //index of the OPT record among the view's records, or -1
+    static int findIndex(MessageView view) {
+        int first = view.getAnswerCount() + view.getAuthorityCount();
+        for (int i = first; i < view.getRecordCount(); i++) {
+            if (view.getRecordType(i) == TYPE_OPT) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //builds it from a record decoded the ordinary way
+    static OptRecord fromRecord(DNSRecord record) {
+        long ttl = record.getTimeToLive();
+        return new OptRecord(record.getRClass(), (int) (ttl >>> 24) & 0xFF, (int) (ttl >>> 16) & 0xFF, (int) ttl & 0xFFFF, record.getRData());
+    }
+
+    //adds an empty OPT record to the end of an encoded message and bumps its additional count
+    //dst needs EMPTY_LENGTH bytes free after length, returns the new length
+    public static int append(byte[] dst, int length, int payloadSize, int extendedRcode) {
+        dst[length] = 0;
+        dst[length + 1] = 0;
+        dst[length + 2] = (byte) TYPE_OPT;
+        dst[length + 3] = (byte) (payloadSize >>> 8);
+        dst[length + 4] = (byte) payloadSize;
+        dst[length + 5] = (byte) extendedRcode;
+        //version 0, no flags, no options
+        Arrays.fill(dst, length + 6, length + EMPTY_LENGTH, (byte) 0);
+        int additional = ((dst[10] & 0xFF) << 8 | (dst[11] & 0xFF)) + 1;
+        dst[10] = (byte) (additional >>> 8);
+        dst[11] = (byte) additional;
+        return length + EMPTY_LENGTH;
+    }
+
+    public void writeBytes(ByteArrayOutputStream outputStream) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeByte(0);
+        dataOutputStream.writeShort(TYPE_OPT);
+        dataOutputStream.writeShort(payloadSize);
+        dataOutputStream.writeInt(extendedRcode << 24 | version << 16 | flags);
+        dataOutputStream.writeShort(options.length);
+        dataOutputStream.write(options);
+    }
+
+    //what the sender can take over UDP, the spec says anything below 512 means 512
+    public int getUdpLimit() {
+        return Math.max(MIN_PAYLOAD_SIZE, payloadSize);
+    }
+
+    //getters
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    public int getExtendedRcode() {
+        return extendedRcode;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public byte[] getOptions() {
+        return options;
+    }
+
+    public String toString() {
+        return "OptRecord{" +
+                "payloadSize=" + payloadSize +
+                ", extendedRcode=" + extendedRcode +
+                ", version=" + version +
+                ", flags=" + flags +
+                ", options=" + Arrays.toString(options) +
+                '}';
+    }
+}
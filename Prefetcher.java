@@ -0,0 +1,100 @@
+package DNSHandling;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+//refreshes popular cache entries in the background before they expire
+//an entry gets refreshed once it has been hit at least minHits times and is in the last thresholdPercent of its TTL,
+//so clients asking for hot names almost never have to wait on the upstream
+public class Prefetcher<K> {
+    private final int thresholdPercent;
+    private final int minHits;
+    //caps how many refreshes can be waiting on the upstream at once
+    private final Semaphore permits;
+    private final Function<K, CompletableFuture<?>> refresher;
+
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder prefetchHits = new LongAdder();
+    private final LongAdder wasted = new LongAdder();
+
+    public Prefetcher(int thresholdPercent, int minHits, int maxConcurrent, Function<K, CompletableFuture<?>> refresher) {
+        if (thresholdPercent < 1 || thresholdPercent > 100) {
+            throw new IllegalArgumentException("Prefetch threshold must be between 1 and 100 percent: " + thresholdPercent);
+        }
+        this.thresholdPercent = thresholdPercent;
+        this.minHits = minHits;
+        this.permits = new Semaphore(maxConcurrent);
+        this.refresher = refresher;
+    }
+
+    //true if an entry with this many hits and this much of its lifetime left should be refreshed now
+    boolean isDue(int hits, long remainingNanos, long lifetimeNanos) {
+        return hits >= minHits && remainingNanos * 100 <= lifetimeNanos * thresholdPercent;
+    }
+
+    //starts a background refresh, onDone runs once it has finished either way
+    void refresh(K key, Runnable onDone) {
+        if (!permits.tryAcquire()) {
+            //too many refreshes already running, a later hit can try again
+            skipped.increment();
+            onDone.run();
+            return;
+        }
+        issued.increment();
+        CompletableFuture<?> refresh;
+        try {
+            refresh = refresher.apply(key);
+        } catch (RuntimeException e) {
+            refresh = CompletableFuture.failedFuture(e);
+        }
+        refresh.whenComplete((result, error) -> {
+            if (error != null) {
+                failed.increment();
+            }
+            permits.release();
+            onDone.run();
+        });
+    }
+
+    //called by the cache when it serves an entry that was put there by a refresh
+    void recordPrefetchHit() {
+        prefetchHits.increment();
+    }
+
+    //called by the cache when an entry that was put there by a refresh leaves without ever being hit
+    void recordWasted() {
+        wasted.increment();
+    }
+
+    //getters for the counters
+    public long getIssued() {
+        return issued.sum();
+    }
+
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getPrefetchHits() {
+        return prefetchHits.sum();
+    }
+
+    public long getWasted() {
+        return wasted.sum();
+    }
+
+    public String toString() {
+        return "Prefetches: " + getIssued() +
+                ", Skipped: " + getSkipped() +
+                ", Failed: " + getFailed() +
+                ", Prefetch hits: " + getPrefetchHits() +
+                ", Wasted: " + getWasted();
+    }
+}
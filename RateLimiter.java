@@ -0,0 +1,202 @@
+package DNSHandling;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//response rate limiting for UDP, so one client, or a flood with a victim's spoofed address, can't take every answer we have
+//responses are counted per client subnet and per response: the name and type for answers, and for NXDOMAIN, NODATA and
+//errors just the last two labels, so a flood of random names under one domain all lands on the same count
+/*
+    the counts live in a fixed table of token buckets, one long each, updated with compareAndSet so no thread ever waits
+    each key takes a token from two buckets picked by different bits of its hash, the way a count-min sketch does,
+    and is only limited once both are empty, so a key sharing one bucket with a busy neighbour still gets through
+    the table never grows however many sources there are, a million buckets is 8MB
+    bucket: last refill time in milliseconds (32 bits, wrapping) | tokens in thousandths (32 bits)
+*/
+public class RateLimiter {
+    //"drop" sends nothing, "truncate" sends an empty reply with TC set so a real client retries over TCP,
+    //"slip" drops most and truncates one in every slip, so a real client still gets through eventually
+    public enum Action { DROP, TRUNCATE, SLIP }
+
+    //most subnets listed in the stats, a flood from spoofed addresses can't grow it past this
+    private static final int MAX_TRACKED_SUBNETS = 1024;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final AtomicLongArray buckets;
+    private final int mask;
+    //tokens come back at rate a second, which is also thousandths of a token a millisecond, up to burst tokens
+    private final long rate;
+    private final long capacity;
+    //past this many milliseconds without a response any bucket is full again
+    private final long refillMillis;
+    private final Action action;
+    private final int slip;
+    private final int ipv4Prefix;
+    private final int ipv6Prefix;
+    //a millisecond back, so the clock never reads 0 and an emptied bucket can't look like one never used
+    private final long startMillis = System.nanoTime() / 1_000_000 - 1;
+
+    private final LongAdder limited = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> limitedSubnets = new ConcurrentHashMap<>();
+
+    public RateLimiter(int tableSize, int rate, int burst, Action action, int slip, int ipv4Prefix, int ipv6Prefix) {
+        int size = Integer.highestOneBit(Math.max(2, tableSize) * 2 - 1);
+        this.buckets = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.rate = rate;
+        this.capacity = Math.max(1, burst) * 1000L;
+        this.refillMillis = capacity / Math.max(1, rate) + 1;
+        this.action = action;
+        this.slip = Math.max(1, slip);
+        this.ipv4Prefix = ipv4Prefix;
+        this.ipv6Prefix = ipv6Prefix;
+    }
+
+    //wraps responder so replies to client go out, get truncated or get dropped depending on how many it's had
+    DNSServer.Responder limit(InetAddress client, DNSQuestion question, DNSServer.Responder responder) {
+        return (reply, length) -> {
+            if (allow(client, question, reply)) {
+                responder.respond(reply, length);
+                return;
+            }
+            limited.increment();
+            recordSubnet(client);
+            boolean truncate = action == Action.TRUNCATE || (action == Action.SLIP && ThreadLocalRandom.current().nextInt(slip) == 0);
+            if (!truncate) {
+                dropped.increment();
+                return;
+            }
+            truncated.increment();
+            //the question is always written out whole straight after the header
+            responder.respond(reply, DNSHeader.truncate(reply, MessageView.HEADER_LENGTH + question.getQName().getWireLength() + 4));
+        };
+    }
+
+    //takes a token for this response, false if there wasn't one
+    boolean allow(InetAddress client, DNSQuestion question, byte[] reply) {
+        long key = key(client, question, reply);
+        int now = (int) (System.nanoTime() / 1_000_000 - startMillis);
+        //either bucket having a token is enough, but both pay for it
+        boolean first = take(((int) key) & mask, now);
+        boolean second = take(((int) (key >>> 32)) & mask, now);
+        return first || second;
+    }
+
+    private boolean take(int index, int now) {
+        while (true) {
+            long old = buckets.get(index);
+            long tokens;
+            if (old == 0) {
+                //never used
+                tokens = capacity;
+            } else {
+                long elapsed = now - (int) (old >>> 32);
+                tokens = elapsed < 0 || elapsed > refillMillis ? capacity : Math.min(capacity, (old & 0xFFFFFFFFL) + elapsed * rate);
+            }
+            boolean available = tokens >= 1000;
+            long updated = ((long) now << 32) | (available ? tokens - 1000 : tokens);
+            if (buckets.compareAndSet(index, old, updated)) {
+                return available;
+            }
+        }
+    }
+
+    //hash of the client's subnet, the kind of response and the name it's counted under
+    private long key(InetAddress client, DNSQuestion question, byte[] reply) {
+        long hash = 0xcbf29ce484222325L;
+        byte[] address = client.getAddress();
+        int prefix = address.length == 4 ? ipv4Prefix : ipv6Prefix;
+        for (int i = 0; i < address.length; i++) {
+            int bits = Math.max(0, Math.min(8, prefix - i * 8));
+            hash = (hash ^ (address[i] & (0xFF00 >>> bits) & 0xFF)) * FNV_PRIME;
+        }
+        int rcode = reply[3] & 0xF;
+        boolean answered = rcode == 0 && (reply[6] != 0 || reply[7] != 0);
+        byte[] name = question.getQName().getWire();
+        int start = 0;
+        if (answered) {
+            hash = (hash ^ question.getQType()) * FNV_PRIME;
+        } else {
+            //negative answers and errors count against the domain, not the exact name
+            hash = (hash ^ (0x10000 | rcode)) * FNV_PRIME;
+            int labels = question.getQName().getLabelCount();
+            for (int i = 0; i < labels - 2; i++) {
+                start += name[start] + 1;
+            }
+        }
+        for (int i = start; i < name.length; i++) {
+            hash = (hash ^ (name[i] & 0xFF)) * FNV_PRIME;
+        }
+        //the murmur3 finisher, so both halves are well mixed for picking buckets
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private void recordSubnet(InetAddress client) {
+        String subnet = subnet(client);
+        LongAdder count = limitedSubnets.get(subnet);
+        if (count == null) {
+            if (limitedSubnets.size() >= MAX_TRACKED_SUBNETS) {
+                return;
+            }
+            count = limitedSubnets.computeIfAbsent(subnet, s -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    //the client's address cut down to its prefix, like "192.0.2.0/24"
+    private String subnet(InetAddress client) {
+        byte[] address = client.getAddress();
+        int prefix = address.length == 4 ? ipv4Prefix : ipv6Prefix;
+        for (int i = 0; i < address.length; i++) {
+            int bits = Math.max(0, Math.min(8, prefix - i * 8));
+            address[i] &= (byte) (0xFF00 >>> bits);
+        }
+        try {
+            return InetAddress.getByAddress(address).getHostAddress() + "/" + prefix;
+        } catch (UnknownHostException e) {
+            //can't happen, the address came from an InetAddress
+            return client.getHostAddress();
+        }
+    }
+
+    //getters
+    public long getLimited() {
+        return limited.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getTruncated() {
+        return truncated.sum();
+    }
+
+    //limited responses for each subnet that's been limited, up to MAX_TRACKED_SUBNETS of them
+    public Map<String, Long> getLimitedSubnets() {
+        Map<String, Long> counts = new TreeMap<>();
+        limitedSubnets.forEach((subnet, count) -> counts.put(subnet, count.sum()));
+        return counts;
+    }
+
+    public String toString() {
+        return "Rate: " + rate + "/s" +
+                ", Burst: " + capacity / 1000 +
+                ", Action: " + action.toString().toLowerCase() + (action == Action.SLIP ? " 1 in " + slip : "") +
+                ", Buckets: " + buckets.length() +
+                ", Limited: " + getLimited() +
+                ", Dropped: " + getDropped() +
+                ", Truncated: " + getTruncated();
+    }
+}
@@ -0,0 +1,405 @@
+package DNSHandling;
+
+//holds the settings the server is started with
+//every setting can be passed on the command line as --name=value
+public class ServerConfig {
+    private int port = 8053;
+    //"nio" for the selector based front end, "blocking" for the original one thread receive loop
+    private String frontEnd = "nio";
+    //how many spare packet buffers the nio front end keeps around
+    private int bufferPoolSize = 1024;
+    //how many nio front ends share the port through SO_REUSEPORT, 0 means one per core
+    private int shards = 1;
+    //most TCP connections held open at once (0 turns TCP off), and how long one can sit with nothing to do
+    private int tcpMaxConnections = 256;
+    private int tcpIdleTimeoutMs = 10_000;
+    //how long a reply can sit half written to a TCP client that isn't reading before its connection is closed
+    private int tcpWriteTimeoutMs = 5000;
+    //UDP payload size advertised with EDNS(0), both to upstreams and to clients, 0 turns EDNS off
+    private int ednsPayloadSize = OptRecord.DEFAULT_PAYLOAD_SIZE;
+    //number of threads that handle requests, 0 means handle them on the listener thread
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 4;
+    //"forward" sends misses to the upstreams, "iterative" walks down from the root hints itself
+    private String resolution = "forward";
+    //comma separated root server addresses for iterative mode, host or host:port
+    private String rootHints = ROOT_SERVERS;
+    //port the servers found through referrals are asked on, only worth changing to test against local servers
+    private int authorityPort = 53;
+    //most zone delegations remembered in iterative mode
+    private int delegationCacheSize = DelegationCache.DEFAULT_MAX_ZONES;
+    //comma separated upstream servers, host or host:port
+    private String upstreams = "8.8.8.8:53";
+    //ask a second upstream once the first has taken longer than this percentile of its RTTs, 0 turns hedging off
+    private int hedgePercentile = 0;
+    //how long to wait on an upstream reply before sending again, and how many times to send again
+    private int upstreamTimeoutMs = 2000;
+    private int upstreamRetries = 2;
+    //comma separated RFC 1035 zone files and hosts style override files, answered before the cache is looked at
+    private String localZones = "";
+    private String hostsFiles = "";
+    //seconds between checks for changes to those files, 0 means they're only read at startup
+    private int localReloadSeconds = 5;
+    //comma separated block list files, names in them get NXDOMAIN or, with "sinkhole", an unspecified address
+    private String blocklists = "";
+    private String blocklistResponse = "nxdomain";
+    //seconds between checks for changes to the block lists, 0 means they're only read at startup
+    private int blocklistReloadSeconds = 60;
+    //UDP responses a second allowed to each client subnet for each name, with bursts up to rrlBurst, 0 turns limiting off
+    private int rrlRate = 0;
+    private int rrlBurst = 0;
+    //what happens to responses over the limit: drop, truncate, or slip (truncate one in rrlSlip and drop the rest)
+    private String rrlAction = "slip";
+    private int rrlSlip = 2;
+    //how much of the client's address counts as its subnet
+    private int rrlIpv4Prefix = 24;
+    private int rrlIpv6Prefix = 56;
+    //token buckets in the limiter's table, 8 bytes each
+    private int rrlTableSize = 1 << 20;
+    //most entries the cache will hold before it starts evicting
+    private int cacheSize = 100_000;
+    //heap keeps entries as Java objects, offheap packs them into direct buffers for very large caches
+    private String cacheEngine = "heap";
+    //most direct memory the off-heap engine may take for entries, in megabytes
+    private int offHeapMegabytes = 1024;
+    //longest an NXDOMAIN or NODATA answer is kept in seconds, even if its SOA allows more
+    private int maxNegativeTtl = CachedResponse.DEFAULT_MAX_NEGATIVE_TTL;
+    //where the cache is saved between restarts, empty means it isn't
+    private String snapshotFile = "";
+    //seconds between snapshots while running, one is always written on shutdown
+    private int snapshotIntervalSeconds = 300;
+    //refresh entries hit at least prefetchMinHits times once they're in the last prefetchThreshold percent of their TTL
+    //a threshold of 0 turns prefetching off
+    private int prefetchThreshold = 0;
+    private int prefetchMinHits = 5;
+    private int prefetchMaxConcurrent = 16;
+    //debug, info, warn, error or off
+    private String logLevel = "info";
+    //port for the plain text stats endpoint on loopback, 0 turns it off
+    private int statsPort = 0;
+
+    //the IPv4 addresses of a.root-servers.net through m.root-servers.net
+    static final String ROOT_SERVERS = "198.41.0.4,170.247.170.2,192.33.4.12,199.7.91.13,192.203.230.10,192.5.5.241," +
+            "192.112.36.4,198.97.190.53,192.36.148.17,192.58.128.30,193.0.14.129,199.7.83.42,202.12.27.33";
+
+    public ServerConfig() {}
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            //split each argument into its name and value
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Arguments must look like --name=value: " + arg);
+            }
+            config.set(arg.substring(2, split), arg.substring(split + 1));
+        }
+        return config;
+    }
+
+    void set(String name, String value) {
+        switch (name) {
+            case "port" -> port = Integer.parseInt(value);
+            case "frontend" -> {
+                if (!value.equals("nio") && !value.equals("blocking")) {
+                    throw new IllegalArgumentException("frontend must be nio or blocking: " + value);
+                }
+                frontEnd = value;
+            }
+            case "buffer-pool-size" -> bufferPoolSize = Integer.parseInt(value);
+            case "shards" -> shards = Integer.parseInt(value);
+            case "tcp-max-connections" -> tcpMaxConnections = Integer.parseInt(value);
+            case "tcp-idle-timeout-ms" -> tcpIdleTimeoutMs = Integer.parseInt(value);
+            case "tcp-write-timeout-ms" -> tcpWriteTimeoutMs = Integer.parseInt(value);
+            case "edns-payload-size" -> {
+                ednsPayloadSize = Integer.parseInt(value);
+                if (ednsPayloadSize != 0 && (ednsPayloadSize < OptRecord.MIN_PAYLOAD_SIZE || ednsPayloadSize > 0xFFFF)) {
+                    throw new IllegalArgumentException("edns-payload-size must be 0 or between 512 and 65535: " + value);
+                }
+            }
+            case "workers" -> workerThreads = Integer.parseInt(value);
+            case "resolution" -> {
+                if (!value.equals("forward") && !value.equals("iterative")) {
+                    throw new IllegalArgumentException("resolution must be forward or iterative: " + value);
+                }
+                resolution = value;
+            }
+            case "root-hints" -> rootHints = value;
+            case "authority-port" -> authorityPort = Integer.parseInt(value);
+            case "delegation-cache-size" -> delegationCacheSize = Integer.parseInt(value);
+            case "upstreams" -> upstreams = value;
+            case "hedge-percentile" -> {
+                hedgePercentile = Integer.parseInt(value);
+                if (hedgePercentile < 0 || hedgePercentile > 99) {
+                    throw new IllegalArgumentException("hedge-percentile must be between 0 and 99: " + value);
+                }
+            }
+            case "upstream-timeout-ms" -> upstreamTimeoutMs = Integer.parseInt(value);
+            case "upstream-retries" -> upstreamRetries = Integer.parseInt(value);
+            case "local-zones" -> localZones = value;
+            case "hosts-files" -> hostsFiles = value;
+            case "local-reload-s" -> localReloadSeconds = Integer.parseInt(value);
+            case "blocklists" -> blocklists = value;
+            case "blocklist-response" -> {
+                if (!value.equals("nxdomain") && !value.equals("sinkhole")) {
+                    throw new IllegalArgumentException("blocklist-response must be nxdomain or sinkhole: " + value);
+                }
+                blocklistResponse = value;
+            }
+            case "blocklist-reload-s" -> blocklistReloadSeconds = Integer.parseInt(value);
+            case "rrl-rate" -> rrlRate = Integer.parseInt(value);
+            case "rrl-burst" -> rrlBurst = Integer.parseInt(value);
+            case "rrl-action" -> {
+                if (!value.equals("drop") && !value.equals("truncate") && !value.equals("slip")) {
+                    throw new IllegalArgumentException("rrl-action must be drop, truncate or slip: " + value);
+                }
+                rrlAction = value;
+            }
+            case "rrl-slip" -> rrlSlip = Integer.parseInt(value);
+            case "rrl-ipv4-prefix" -> {
+                rrlIpv4Prefix = Integer.parseInt(value);
+                if (rrlIpv4Prefix < 0 || rrlIpv4Prefix > 32) {
+                    throw new IllegalArgumentException("rrl-ipv4-prefix must be between 0 and 32: " + value);
+                }
+            }
+            case "rrl-ipv6-prefix" -> {
+                rrlIpv6Prefix = Integer.parseInt(value);
+                if (rrlIpv6Prefix < 0 || rrlIpv6Prefix > 128) {
+                    throw new IllegalArgumentException("rrl-ipv6-prefix must be between 0 and 128: " + value);
+                }
+            }
+            case "rrl-table-size" -> rrlTableSize = Integer.parseInt(value);
+            case "cache-size" -> cacheSize = Integer.parseInt(value);
+            case "cache-engine" -> {
+                if (!value.equals("heap") && !value.equals("offheap")) {
+                    throw new IllegalArgumentException("cache-engine must be heap or offheap: " + value);
+                }
+                cacheEngine = value;
+            }
+            case "offheap-mb" -> {
+                offHeapMegabytes = Integer.parseInt(value);
+                if (offHeapMegabytes < 16) {
+                    throw new IllegalArgumentException("offheap-mb must be at least 16: " + value);
+                }
+            }
+            case "negative-ttl-max" -> maxNegativeTtl = Integer.parseInt(value);
+            case "snapshot-file" -> snapshotFile = value;
+            case "snapshot-interval-s" -> snapshotIntervalSeconds = Integer.parseInt(value);
+            case "prefetch-threshold" -> prefetchThreshold = Integer.parseInt(value);
+            case "prefetch-min-hits" -> prefetchMinHits = Integer.parseInt(value);
+            case "prefetch-max-concurrent" -> prefetchMaxConcurrent = Integer.parseInt(value);
+            case "log-level" -> {
+                try {
+                    Log.Level.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("log-level must be debug, info, warn, error or off: " + value);
+                }
+                logLevel = value;
+            }
+            case "stats-port" -> statsPort = Integer.parseInt(value);
+            default -> throw new IllegalArgumentException("Unknown setting: " + name);
+        }
+    }
+
+    //getters
+    public int getPort() {
+        return port;
+    }
+
+    public String getFrontEnd() {
+        return frontEnd;
+    }
+
+    public int getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public int getTcpMaxConnections() {
+        return tcpMaxConnections;
+    }
+
+    public int getTcpIdleTimeoutMs() {
+        return tcpIdleTimeoutMs;
+    }
+
+    public int getTcpWriteTimeoutMs() {
+        return tcpWriteTimeoutMs;
+    }
+
+    public int getEdnsPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public String getResolution() {
+        return resolution;
+    }
+
+    public String getRootHints() {
+        return rootHints;
+    }
+
+    public int getAuthorityPort() {
+        return authorityPort;
+    }
+
+    public int getDelegationCacheSize() {
+        return delegationCacheSize;
+    }
+
+    public String getUpstreams() {
+        return upstreams;
+    }
+
+    public int getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public int getUpstreamTimeoutMs() {
+        return upstreamTimeoutMs;
+    }
+
+    public int getUpstreamRetries() {
+        return upstreamRetries;
+    }
+
+    public String getLocalZones() {
+        return localZones;
+    }
+
+    public String getHostsFiles() {
+        return hostsFiles;
+    }
+
+    public int getLocalReloadSeconds() {
+        return localReloadSeconds;
+    }
+
+    public String getBlocklists() {
+        return blocklists;
+    }
+
+    public String getBlocklistResponse() {
+        return blocklistResponse;
+    }
+
+    public int getBlocklistReloadSeconds() {
+        return blocklistReloadSeconds;
+    }
+
+    public int getRrlRate() {
+        return rrlRate;
+    }
+
+    //a burst of 0 means a second's worth
+    public int getRrlBurst() {
+        return rrlBurst > 0 ? rrlBurst : rrlRate;
+    }
+
+    public String getRrlAction() {
+        return rrlAction;
+    }
+
+    public int getRrlSlip() {
+        return rrlSlip;
+    }
+
+    public int getRrlIpv4Prefix() {
+        return rrlIpv4Prefix;
+    }
+
+    public int getRrlIpv6Prefix() {
+        return rrlIpv6Prefix;
+    }
+
+    public int getRrlTableSize() {
+        return rrlTableSize;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public String getCacheEngine() {
+        return cacheEngine;
+    }
+
+    public int getOffHeapMegabytes() {
+        return offHeapMegabytes;
+    }
+
+    public int getMaxNegativeTtl() {
+        return maxNegativeTtl;
+    }
+
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public int getSnapshotIntervalSeconds() {
+        return snapshotIntervalSeconds;
+    }
+
+    public int getPrefetchThreshold() {
+        return prefetchThreshold;
+    }
+
+    public int getPrefetchMinHits() {
+        return prefetchMinHits;
+    }
+
+    public int getPrefetchMaxConcurrent() {
+        return prefetchMaxConcurrent;
+    }
+
+    public String getLogLevel() {
+        return logLevel;
+    }
+
+    public int getStatsPort() {
+        return statsPort;
+    }
+
+    public String toString() {
+        return "Port: " + port +
+                ", Front end: " + frontEnd +
+                ", Buffer pool size: " + bufferPoolSize +
+                ", Shards: " + shards +
+                ", TCP max connections: " + tcpMaxConnections +
+                ", TCP idle timeout: " + tcpIdleTimeoutMs + "ms" +
+                ", TCP write timeout: " + tcpWriteTimeoutMs + "ms" +
+                ", EDNS payload size: " + ednsPayloadSize +
+                ", Workers: " + workerThreads +
+                ", Resolution: " + resolution +
+                (resolution.equals("iterative") ? ", Root hints: " + rootHints + ", Authority port: " + authorityPort +
+                        ", Delegation cache size: " + delegationCacheSize : "") +
+                ", Upstreams: " + upstreams +
+                ", Hedge percentile: " + hedgePercentile +
+                ", Upstream timeout: " + upstreamTimeoutMs + "ms" +
+                ", Upstream retries: " + upstreamRetries +
+                ", Local zones: " + (localZones.isEmpty() ? "none" : localZones) +
+                ", Hosts files: " + (hostsFiles.isEmpty() ? "none" : hostsFiles) +
+                ", Local reload interval: " + localReloadSeconds + "s" +
+                ", Blocklists: " + (blocklists.isEmpty() ? "none" : blocklists + " (" + blocklistResponse + ")") +
+                ", Blocklist reload interval: " + blocklistReloadSeconds + "s" +
+                ", Rate limit: " + (rrlRate > 0 ? rrlRate + "/s, burst " + getRrlBurst() + ", " + rrlAction +
+                        (rrlAction.equals("slip") ? " 1 in " + rrlSlip : "") + ", /" + rrlIpv4Prefix + " /" + rrlIpv6Prefix +
+                        ", " + rrlTableSize + " buckets" : "off") +
+                ", Cache size: " + cacheSize +
+                ", Cache engine: " + cacheEngine + (cacheEngine.equals("offheap") ? " (" + offHeapMegabytes + "MB)" : "") +
+                ", Max negative TTL: " + maxNegativeTtl + "s" +
+                ", Snapshot file: " + (snapshotFile.isEmpty() ? "none" : snapshotFile) +
+                ", Snapshot interval: " + snapshotIntervalSeconds + "s" +
+                ", Prefetch threshold: " + prefetchThreshold + "%" +
+                ", Prefetch min hits: " + prefetchMinHits +
+                ", Prefetch max concurrent: " + prefetchMaxConcurrent +
+                ", Log level: " + logLevel +
+                ", Stats port: " + (statsPort > 0 ? statsPort : "off");
+    }
+}
@@ -0,0 +1,60 @@
+package DNSHandling;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+//makes sure only one call per key is running at a time
+//anyone asking for a key that already has a call in flight gets that call's result instead of starting another one
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public CompletableFuture<V> run(K key, Function<K, CompletableFuture<V>> call) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, result);
+        if (existing != null) {
+            //someone else is already on it, wait for their result
+            coalesced.increment();
+            return existing;
+        }
+
+        started.increment();
+        CompletableFuture<V> pending;
+        try {
+            pending = call.apply(key);
+        } catch (RuntimeException e) {
+            pending = CompletableFuture.failedFuture(e);
+        }
+        pending.whenComplete((value, error) -> {
+            //take the key out before completing so anyone arriving after this starts a fresh call
+            inFlight.remove(key, result);
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    //getters for the counters
+    public long getStarted() {
+        return started.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public String toString() {
+        return "Started: " + getStarted() +
+                ", Coalesced: " + getCoalesced() +
+                ", In flight: " + getInFlight();
+    }
+}
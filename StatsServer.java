@@ -0,0 +1,49 @@
+package DNSHandling;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+//a small HTTP endpoint on loopback that returns the metrics as plain text, one "name value" per line
+//  curl http://127.0.0.1:<stats-port>/stats
+//only listens on loopback, the numbers aren't meant for anyone outside the machine
+public class StatsServer {
+    private final HttpServer http;
+
+    public StatsServer(Metrics metrics, int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/stats", exchange -> respond(exchange, metrics.toText()));
+        //a single thread is plenty, and keeps it from competing with the query workers
+        http.setExecutor(null);
+    }
+
+    public void start() {
+        http.start();
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    public void stop() {
+        http.stop(0);
+    }
+}
@@ -0,0 +1,237 @@
+package DNSHandling;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//DNS over TCP on the same port as UDP (RFC 7766)
+//every message is framed with a two byte length, and a connection stays open for as many queries as the client wants to send
+//queries on one connection are handled concurrently, so replies go back in whatever order they're ready in
+//replies are queued and written by the connection's own writer thread, never by whichever thread finished the query,
+//which is often the one reading every upstream reply, so a client that stops reading only ever holds up itself
+public class TcpFrontEnd implements Runnable {
+    //most replies waiting to be written on one connection, a client that lets more than this pile up isn't reading them
+    static final int MAX_QUEUED_REPLIES = 64;
+
+    private final DNSServer server;
+    private final Executor executor;
+    private final ServerSocket listener;
+    private final UpstreamResolver upstream;
+    private final int idleTimeoutMs;
+    private final int writeTimeoutMs;
+    //one permit per connection we're willing to keep open
+    private final Semaphore connections;
+
+    public TcpFrontEnd(DNSServer server, Executor executor, int port, UpstreamResolver upstream,
+                       int maxConnections, int idleTimeoutMs, int writeTimeoutMs) throws IOException {
+        this.server = server;
+        this.executor = executor;
+        this.upstream = upstream;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.writeTimeoutMs = writeTimeoutMs;
+        this.connections = new Semaphore(maxConnections);
+        listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(port));
+    }
+
+    @Override
+    public void run() {
+        while (!listener.isClosed()) {
+            try {
+                Socket client = listener.accept();
+                if (!connections.tryAcquire()) {
+                    //at the limit, turn the connection away rather than let it queue
+                    client.close();
+                    continue;
+                }
+                Thread thread = new Thread(() -> serve(client), "tcp-" + client.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!listener.isClosed()) {
+                    Log.warn("Couldn't accept TCP connection", e);
+                }
+            }
+        }
+    }
+
+    //reads queries off one connection until the client closes it, sits idle too long or stops reading its replies
+    private void serve(Socket client) {
+        Connection connection = new Connection(client, writeTimeoutMs);
+        try (client) {
+            //wake up often enough to notice a stalled write as well as an idle connection
+            client.setSoTimeout(Math.min(idleTimeoutMs, writeTimeoutMs));
+            client.setTcpNoDelay(true);
+            connection.startWriter();
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            long lastRead = System.nanoTime();
+            while (true) {
+                int length;
+                try {
+                    length = in.readUnsignedShort();
+                } catch (SocketTimeoutException e) {
+                    if (connection.isStalled()) {
+                        return;
+                    }
+                    //only idle once nothing is waiting on an answer
+                    if (connection.outstanding.get() > 0 || System.nanoTime() - lastRead < idleTimeoutMs * 1_000_000L) {
+                        continue;
+                    }
+                    return;
+                } catch (EOFException e) {
+                    //the client has sent all it's going to, but can still be waiting on answers (RFC 7766 6.2.4)
+                    connection.drain();
+                    return;
+                }
+                if (connection.isStalled()) {
+                    return;
+                }
+                lastRead = System.nanoTime();
+                byte[] query = new byte[length];
+                in.readFully(query);
+                connection.outstanding.incrementAndGet();
+                executor.execute(() -> {
+                    boolean answering = false;
+                    try {
+                        answering = server.handleQuery(ByteBuffer.wrap(query), 0, length, upstream, false, null, connection::send);
+                    } finally {
+                        if (!answering) {
+                            //dropped or failed, so no reply is coming for it
+                            connection.done();
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            //the client went away mid message, nothing to answer
+        } finally {
+            connection.stopWriter();
+            connections.release();
+        }
+    }
+
+    public void close() throws IOException {
+        listener.close();
+    }
+
+    private static class Connection {
+        final Socket socket;
+        //queries read but not answered yet, a reply counts until it's been written
+        final AtomicInteger outstanding = new AtomicInteger();
+        //framed replies waiting for the writer thread
+        final ArrayBlockingQueue<byte[]> replies = new ArrayBlockingQueue<>(MAX_QUEUED_REPLIES);
+        final long writeTimeoutNanos;
+        //when the write in progress started on the nanoTime clock, 0 while the writer is waiting for a reply
+        volatile long writeStarted;
+        Thread writer;
+
+        Connection(Socket socket, int writeTimeoutMs) {
+            this.socket = socket;
+            this.writeTimeoutNanos = writeTimeoutMs * 1_000_000L;
+        }
+
+        //called from whichever thread finished the query, so it only ever queues the reply and never blocks
+        void send(byte[] reply, int length) {
+            byte[] framed = new byte[length + 2];
+            framed[0] = (byte) (length >>> 8);
+            framed[1] = (byte) length;
+            System.arraycopy(reply, 0, framed, 2, length);
+            if (!replies.offer(framed)) {
+                //the client has stopped reading, closing the socket ends the reader and the writer too
+                if (!socket.isClosed()) {
+                    Log.debug("Closing TCP connection from " + socket.getRemoteSocketAddress() + " with " + MAX_QUEUED_REPLIES + " replies unread");
+                }
+                done();
+                closeQuietly();
+            }
+        }
+
+        //one query has been answered or given up on
+        void done() {
+            if (outstanding.decrementAndGet() <= 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        //waits for every outstanding reply to be written, for as long as one write is allowed to take
+        synchronized void drain() {
+            long deadline = System.nanoTime() + writeTimeoutNanos;
+            try {
+                while (outstanding.get() > 0 && !socket.isClosed()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        Log.debug("Closing TCP connection from " + socket.getRemoteSocketAddress() + " with " + outstanding.get() + " replies unsent");
+                        return;
+                    }
+                    wait(Math.max(1, remaining / 1_000_000L));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void startWriter() {
+            writer = new Thread(this::write, "tcp-writer-" + socket.getRemoteSocketAddress());
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void stopWriter() {
+            if (writer != null) {
+                writer.interrupt();
+            }
+        }
+
+        //writes queued replies one at a time until the connection closes
+        private void write() {
+            try {
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    byte[] framed = replies.take();
+                    writeStarted = System.nanoTime();
+                    out.write(framed);
+                    writeStarted = 0;
+                    done();
+                }
+            } catch (IOException e) {
+                //the client hung up before its answer was ready
+                closeQuietly();
+                synchronized (this) {
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                //the reader is done with the connection
+            }
+        }
+
+        //true once a write has been stuck longer than the write timeout, the client's receive window is full
+        boolean isStalled() {
+            long started = writeStarted;
+            if (started == 0 || System.nanoTime() - started < writeTimeoutNanos) {
+                return false;
+            }
+            Log.debug("Closing TCP connection from " + socket.getRemoteSocketAddress() + " after a write stalled");
+            return true;
+        }
+
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package DNSHandling;
+import java.util.function.Consumer;
+
+//hierarchical timer wheel for expiring cache entries without scanning the whole cache
+//level 0 has one slot per second, and every level above covers 64 times the range of the one below it
+//entries start in the coarsest level that fits and are moved down a level each time their slot comes around,
+//so every entry is touched a handful of times at most and advancing costs O(expired) amortized
+//not thread safe, the owner has to hold its own lock around every call
+class TimerWheel<T> {
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final long TICK_NANOS = 1_000_000_000L;
+
+    //each slot is a circular doubly linked list with a sentinel head, so unlinking is O(1)
+    private final Node<T>[][] wheel;
+    private final long startNanos;
+    //number of ticks that have been processed since startNanos
+    private long currentTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long startNanos) {
+        this.startNanos = startNanos;
+        wheel = new Node[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Node<T> head = new Node<>(null);
+                head.next = head;
+                head.prev = head;
+                wheel[level][slot] = head;
+            }
+        }
+    }
+
+    //schedules the node to fire once expiresAtNanos has passed, moving it if it was already scheduled
+    void schedule(Node<T> node, long expiresAtNanos) {
+        unlink(node);
+        //round up so an entry never fires before its expiry
+        node.tick = Math.max(0, (expiresAtNanos - startNanos + TICK_NANOS - 1) / TICK_NANOS);
+        //the current tick has already been processed, so the soonest it can fire is the next one
+        place(node, currentTick + 1);
+    }
+
+    //removes the node from whatever slot it is in, does nothing if it isn't scheduled
+    void unlink(Node<T> node) {
+        if (node.next != null) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.next = null;
+            node.prev = null;
+        }
+    }
+
+    //processes every tick up to nowNanos and hands each expired item to onExpire
+    void advance(long nowNanos, Consumer<T> onExpire) {
+        long targetTick = (nowNanos - startNanos) / TICK_NANOS;
+        while (currentTick < targetTick) {
+            currentTick++;
+            //when a lower level wraps around, pull the next slot of the level above down into it
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK));
+                }
+            }
+            //everything left in this slot of level 0 is due now
+            Node<T> head = wheel[0][(int) (currentTick & SLOT_MASK)];
+            while (head.next != head) {
+                Node<T> node = head.next;
+                unlink(node);
+                onExpire.accept(node.item);
+            }
+        }
+    }
+
+    private void cascade(int level, int slot) {
+        Node<T> head = wheel[level][slot];
+        //detach the whole list first so re-placed nodes can't end up back in it mid loop
+        Node<T> node = head.next;
+        head.next = head;
+        head.prev = head;
+        while (node != head) {
+            Node<T> next = node.next;
+            node.next = null;
+            node.prev = null;
+            place(node, currentTick);
+            node = next;
+        }
+    }
+
+    private void place(Node<T> node, long minTick) {
+        long tick = Math.max(node.tick, minTick);
+        long delta = tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot;
+        if (delta >= (1L << (SLOT_BITS * LEVELS))) {
+            //further out than the wheel reaches, park it in the last slot of the top level to look at again later
+            slot = (int) (((currentTick >>> (SLOT_BITS * level)) + SLOT_MASK) & SLOT_MASK);
+        } else {
+            slot = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        }
+        Node<T> head = wheel[level][slot];
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    static class Node<T> {
+        final T item;
+        long tick;
+        Node<T> prev;
+        Node<T> next;
+
+        Node(T item) {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package DNSHandling;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//the set of upstream servers misses can be sent to
+//each query goes to the healthy server with the lowest smoothed RTT, and moves on to the next best one if that fails
+//with hedging on, a second server is asked as well once the first has taken longer than most of its replies do
+//servers that stop answering are left alone for a while, twice as long each time they fail again
+public class UpstreamPool {
+    //how much of each new RTT sample goes into the smoothed value, same as TCP (RFC 6298)
+    private static final double RTT_GAIN = 0.125;
+    private static final double RTTVAR_GAIN = 0.25;
+    //recent RTTs kept per server for working out the hedge delay
+    private static final int RTT_SAMPLES = 64;
+    //servers that aren't picked have their smoothed RTT shrunk a little each time, so a server that had
+    //one slow reply gets tried again eventually instead of being passed over forever (BIND does the same)
+    private static final double UNSELECTED_DECAY = 0.98;
+    //never hedge sooner than this, so a fast server isn't asked twice for everything
+    private static final long MIN_HEDGE_DELAY_NANOS = 5_000_000L;
+    //hedges in a row a server has to lose before it's backed off, a lossy one rarely drops this many in a row
+    private static final int LATE_LIMIT = 3;
+    private static final long BASE_BACKOFF_NANOS = 1_000_000_000L;
+    private static final long MAX_BACKOFF_NANOS = 60_000_000_000L;
+
+    private final Server[] servers;
+    //percentile of a server's RTTs to wait before hedging, 0 turns hedging off
+    private final int hedgePercentile;
+    private final ScheduledExecutorService timer;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    //queries to single servers that failed or timed out, not counting ones cancelled because another server answered
+    private final LongAdder errors = new LongAdder();
+    //RTT of every reply from any server
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public UpstreamPool(List<InetSocketAddress> addresses, int hedgePercentile) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one upstream server");
+        }
+        servers = new Server[addresses.size()];
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = new Server(addresses.get(i));
+        }
+        this.hedgePercentile = hedgePercentile;
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "upstream-hedge");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //parses a comma separated list like "8.8.8.8,1.1.1.1:53", the port defaults to 53
+    public static List<InetSocketAddress> parseAddresses(String list) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String entry : list.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            //a bare IPv6 address has colons but no port, one in brackets can have both
+            if (entry.startsWith("[")) {
+                int close = entry.indexOf(']');
+                int port = close + 1 < entry.length() ? Integer.parseInt(entry.substring(close + 2)) : 53;
+                addresses.add(new InetSocketAddress(entry.substring(1, close), port));
+            } else if (colon > 0 && entry.indexOf(':') == colon) {
+                addresses.add(new InetSocketAddress(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1))));
+            } else {
+                addresses.add(new InetSocketAddress(entry, 53));
+            }
+        }
+        return addresses;
+    }
+
+    //asks the best server, falling back to the others in order until one answers or they've all failed
+    public CompletableFuture<byte[]> query(DNSQuestion question, UpstreamResolver resolver) {
+        queries.increment();
+        Attempt attempt = new Attempt(question, resolver, rank());
+        for (int i = 1; i < attempt.order.length; i++) {
+            attempt.order[i].decay();
+        }
+        attempt.sendNext();
+        if (hedgePercentile > 0 && attempt.order.length > 1) {
+            long delay = attempt.order[0].getHedgeDelay(hedgePercentile);
+            ScheduledFuture<?> hedge = timer.schedule(attempt::hedge, delay, TimeUnit.NANOSECONDS);
+            attempt.result.whenComplete((reply, error) -> hedge.cancel(false));
+        }
+        return attempt.result;
+    }
+
+    //healthy servers fastest first, then the unhealthy ones soonest to come back first
+    private Server[] rank() {
+        long now = System.nanoTime();
+        Server[] order = servers.clone();
+        Arrays.sort(order, (a, b) -> {
+            boolean aHealthy = a.isHealthy(now);
+            boolean bHealthy = b.isHealthy(now);
+            if (aHealthy != bHealthy) {
+                return aHealthy ? -1 : 1;
+            }
+            if (!aHealthy) {
+                return Long.compare(a.unhealthyUntil - now, b.unhealthyUntil - now);
+            }
+            return Long.compare(a.srtt, b.srtt);
+        });
+        return order;
+    }
+
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    //one client query working its way down the list of servers
+    private class Attempt {
+        final DNSQuestion question;
+        final UpstreamResolver resolver;
+        final Server[] order;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        //index of the next server to try
+        final AtomicInteger next = new AtomicInteger();
+        //queries sent that haven't finished, the attempt only fails once none are left and there's nobody else to ask
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicBoolean hedged = new AtomicBoolean();
+
+        Attempt(DNSQuestion question, UpstreamResolver resolver, Server[] order) {
+            this.question = question;
+            this.resolver = resolver;
+            this.order = order;
+        }
+
+        //returns false if every server has been tried already
+        boolean sendNext() {
+            //counted before the server is claimed, so a failover racing with a hedge never sees nothing in flight
+            //and nobody left to ask while the hedge is still being sent
+            inFlight.incrementAndGet();
+            int index = next.getAndIncrement();
+            if (index >= order.length) {
+                inFlight.decrementAndGet();
+                return false;
+            }
+            Server server = order[index];
+            long sentAt = System.nanoTime();
+            CompletableFuture<byte[]> reply = resolver.query(question, server.address);
+            //stop waiting on the slower server once the other one has answered
+            result.whenComplete((r, e) -> reply.cancel(false));
+            reply.whenComplete((bytes, error) -> {
+                inFlight.decrementAndGet();
+                if (error == null) {
+                    long rtt = System.nanoTime() - sentAt;
+                    server.recordRtt(rtt);
+                    latency.recordNanos(rtt);
+                    if (result.complete(bytes) && index > 0 && hedged.get()) {
+                        hedgeWins.increment();
+                    }
+                } else if (reply.isCancelled()) {
+                    //another server answered first, but this one has still taken at least this long
+                    long waited = System.nanoTime() - sentAt;
+                    server.recordLate(waited, waited >= server.getHedgeDelay(hedgePercentile));
+                } else {
+                    errors.increment();
+                    server.recordFailure();
+                    if (!result.isDone()) {
+                        failovers.increment();
+                        if (!sendNext() && inFlight.get() == 0) {
+                            result.completeExceptionally(error);
+                        }
+                    }
+                }
+            });
+            return true;
+        }
+
+        void hedge() {
+            if (!result.isDone() && hedged.compareAndSet(false, true) && sendNext()) {
+                hedges.increment();
+            }
+        }
+    }
+
+    static class Server {
+        final InetSocketAddress address;
+        //smoothed RTT and its variation in nanoseconds, 0 until the first reply so untried servers get tried
+        volatile long srtt;
+        volatile long rttvar;
+        volatile long unhealthyUntil;
+        //failures in a row, each one doubles the backoff
+        int failures;
+        //queries in a row given up on after a hedge answered first, enough of them count as a failure
+        int lateInARow;
+        final long[] samples = new long[RTT_SAMPLES];
+        int sampleCount;
+        //cached hedge delay, worked out again every so many samples
+        long hedgeDelay = -1;
+
+        Server(InetSocketAddress address) {
+            this.address = address;
+            //nanoTime can be negative, so healthy has to mean "since now" rather than "since 0"
+            this.unhealthyUntil = System.nanoTime();
+        }
+
+        boolean isHealthy(long now) {
+            return now - unhealthyUntil >= 0;
+        }
+
+        synchronized void recordRtt(long rtt) {
+            if (srtt == 0) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+            } else {
+                rttvar = (long) ((1 - RTTVAR_GAIN) * rttvar + RTTVAR_GAIN * Math.abs(srtt - rtt));
+                srtt = (long) ((1 - RTT_GAIN) * srtt + RTT_GAIN * rtt);
+            }
+            samples[sampleCount++ % RTT_SAMPLES] = rtt;
+            if (sampleCount % (RTT_SAMPLES / 4) == 0) {
+                hedgeDelay = -1;
+            }
+            failures = 0;
+            lateInARow = 0;
+            unhealthyUntil = System.nanoTime();
+        }
+
+        //a query abandoned because another server answered first, which took at least waited
+        //that's only a lower bound, so it can push the smoothed RTT up but never down, and it isn't kept for the hedge
+        //delay, which is about how long replies take; a server that's late every time it's hedged against has most
+        //likely stopped answering, and is backed off like one that timed out
+        synchronized void recordLate(long waited, boolean pastHedgeDelay) {
+            if (waited > srtt) {
+                rttvar = (long) ((1 - RTTVAR_GAIN) * rttvar + RTTVAR_GAIN * (waited - srtt));
+                srtt = (long) ((1 - RTT_GAIN) * srtt + RTT_GAIN * waited);
+            }
+            if (pastHedgeDelay && ++lateInARow >= LATE_LIMIT) {
+                lateInARow = 0;
+                recordFailure();
+            }
+        }
+
+        //a lost update here only means one less decay step, which doesn't matter
+        void decay() {
+            srtt = (long) (srtt * UNSELECTED_DECAY);
+        }
+
+        synchronized void recordFailure() {
+            failures++;
+            long backoff = Math.min(MAX_BACKOFF_NANOS, BASE_BACKOFF_NANOS << Math.min(failures - 1, 16));
+            unhealthyUntil = System.nanoTime() + backoff;
+        }
+
+        //how long to wait on this server before asking another one as well
+        synchronized long getHedgeDelay(int percentile) {
+            if (sampleCount == 0) {
+                //nothing to go on yet, so allow for a slow first reply
+                return Math.max(MIN_HEDGE_DELAY_NANOS, 4 * srtt);
+            }
+            if (hedgeDelay < 0) {
+                long[] sorted = Arrays.copyOf(samples, Math.min(sampleCount, RTT_SAMPLES));
+                Arrays.sort(sorted);
+                int index = Math.min(sorted.length - 1, sorted.length * percentile / 100);
+                hedgeDelay = Math.max(MIN_HEDGE_DELAY_NANOS, sorted[index]);
+            }
+            return hedgeDelay;
+        }
+
+        //getters
+        long getSrtt() {
+            return srtt;
+        }
+
+        synchronized int getFailures() {
+            return failures;
+        }
+
+        public String toString() {
+            return address + " srtt=" + srtt / 1_000_000.0 + "ms" + (isHealthy(System.nanoTime()) ? "" : " (backing off)");
+        }
+    }
+
+    //getters
+    //the server at index in the order they were given
+    Server getServer(int index) {
+        return servers[index];
+    }
+
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    public long getFailovers() {
+        return failovers.sum();
+    }
+
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public String toString() {
+        return "Upstreams: " + Arrays.toString(servers) +
+                ", Queries: " + getQueries() +
+                ", Failovers: " + getFailovers() +
+                ", Hedges: " + getHedges() +
+                ", Hedge wins: " + getHedgeWins() +
+                ", Errors: " + getErrors() +
+                ", Latency: " + latency;
+    }
+}
@@ -0,0 +1,247 @@
+package DNSHandling;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//sends queries to upstream servers on its own socket and matches the replies back up asynchronously
+//every outgoing query gets a fresh ID, and the (ID, question) pair is used to find who is waiting on a reply
+//replies that come back truncated are asked for again over TCP (RFC 7766)
+public class UpstreamResolver implements AutoCloseable {
+    //biggest reply a UDP datagram can carry
+    private static final int MAX_UDP_REPLY = 65535;
+
+    private final DatagramSocket socket;
+    private final int timeoutMs;
+    private final int retries;
+    //the UDP payload size advertised to upstreams in an OPT record, 0 sends plain queries
+    private final int udpPayloadSize;
+    //requests that have been sent and are waiting on a reply
+    private final ConcurrentHashMap<PendingKey, Pending> pending = new ConcurrentHashMap<>();
+    //fires the per request timeouts
+    private final ScheduledExecutorService timer;
+    //runs the TCP retries, which block for the length of a connection
+    private final ExecutorService tcpExecutor;
+    private final Thread reader;
+
+    public UpstreamResolver(int timeoutMs, int retries) throws SocketException {
+        this(timeoutMs, retries, 0);
+    }
+
+    public UpstreamResolver(int timeoutMs, int retries, int udpPayloadSize) throws SocketException {
+        this.timeoutMs = timeoutMs;
+        this.retries = retries;
+        this.udpPayloadSize = udpPayloadSize;
+        //bind to any free port, separate from the port clients talk to
+        socket = new DatagramSocket();
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "upstream-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        tcpExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "upstream-tcp");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reader = new Thread(this::readReplies, "upstream-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    //completes with the raw reply, which has already been checked to be a well formed message
+    public CompletableFuture<byte[]> query(DNSQuestion question, InetSocketAddress server) {
+        return query(question, server, true);
+    }
+
+    //recursionDesired is false when asking authoritative servers directly, they're only asked about their own zones
+    public CompletableFuture<byte[]> query(DNSQuestion question, InetSocketAddress server, boolean recursionDesired) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        Pending request = new Pending(question, server, future);
+        try {
+            request.queryBytes = DNSMessage.buildQuery(question, 0, udpPayloadSize).toBytes();
+            if (!recursionDesired) {
+                //RD is the lowest bit of the third byte
+                request.queryBytes[2] &= ~(DNSHeader.RECURSION_DESIRED >>> 8);
+            }
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        //pick a random ID that isn't already in use for this question
+        //the request has to be complete, timeout and all, before it's published, since a late reply to an
+        //earlier query with the same ID and question can be matched to it the moment it's in the map
+        while (true) {
+            PendingKey key = new PendingKey(ThreadLocalRandom.current().nextInt(0x10000), question);
+            request.key = key;
+            request.queryBytes[0] = (byte) (key.id >>> 8);
+            request.queryBytes[1] = (byte) key.id;
+            request.timeout = timer.schedule(() -> onTimeout(request), timeoutMs, TimeUnit.MILLISECONDS);
+            if (pending.putIfAbsent(key, request) == null) {
+                break;
+            }
+            request.timeout.cancel(false);
+        }
+        //a caller that stops waiting (another server answered first) frees the ID straight away
+        future.whenComplete((reply, error) -> {
+            if (future.isCancelled() && pending.remove(request.key, request)) {
+                request.timeout.cancel(false);
+            }
+        });
+        transmit(request);
+        return future;
+    }
+
+    private void send(Pending request) {
+        //start the clock for this attempt before sending, so a fast reply always has a timeout to cancel
+        request.timeout = timer.schedule(() -> onTimeout(request), timeoutMs, TimeUnit.MILLISECONDS);
+        transmit(request);
+    }
+
+    private void transmit(Pending request) {
+        try {
+            socket.send(new DatagramPacket(request.queryBytes, request.queryBytes.length, request.server));
+        } catch (IOException e) {
+            request.timeout.cancel(false);
+            fail(request, e);
+        }
+    }
+
+    private void onTimeout(Pending request) {
+        //the reply may have arrived just as the timer fired
+        if (pending.get(request.key) != request) {
+            return;
+        }
+        if (request.attempts < retries) {
+            //try again with the same ID so a late reply to the first attempt still counts
+            request.attempts++;
+            send(request);
+        } else {
+            fail(request, new SocketTimeoutException("No reply from " + request.server + " for " + request.question));
+        }
+    }
+
+    private void fail(Pending request, Exception e) {
+        if (pending.remove(request.key, request)) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    private void readReplies() {
+        //create a byte array to receive the responses in, reused for every reply
+        byte[] buffer = new byte[MAX_UDP_REPLY];
+        while (!socket.isClosed()) {
+            DatagramPacket responsePacket = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(responsePacket);
+                onReply(responsePacket);
+            } catch (IOException | RuntimeException e) {
+                //a garbled packet shouldn't stop the reader
+                if (!socket.isClosed()) {
+                    Log.warn("Bad upstream reply", e);
+                }
+            }
+        }
+    }
+
+    private void onReply(DatagramPacket responsePacket) throws IOException {
+        //copy out exactly the bytes we got since the buffer is reused
+        byte[] reply = Arrays.copyOf(responsePacket.getData(), responsePacket.getLength());
+
+        //wrapping checks the whole reply, but only the header and question are needed to find the request it belongs to
+        MessageView view = MessageView.wrap(reply);
+        if (view.getQuestionCount() != 1) {
+            return;
+        }
+        DNSQuestion question = DNSQuestion.decodeQuestion(view);
+
+        PendingKey key = new PendingKey(view.getId(), question);
+        Pending request = pending.get(key);
+        //ignore replies that don't match a request, or that came from somewhere we didn't send it
+        if (request == null || !request.server.equals(responsePacket.getSocketAddress())) {
+            return;
+        }
+        if (pending.remove(key, request)) {
+            request.timeout.cancel(false);
+            if (DNSHeader.isTruncated(reply)) {
+                //the answer didn't fit, so get the whole thing over TCP instead
+                tcpExecutor.execute(() -> queryOverTcp(request));
+            } else {
+                request.future.complete(reply);
+            }
+        }
+    }
+
+    //sends the same query over a fresh TCP connection, each message framed with a two byte length
+    private void queryOverTcp(Pending request) {
+        try (Socket tcp = new Socket()) {
+            tcp.connect(request.server, timeoutMs);
+            tcp.setSoTimeout(timeoutMs);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tcp.getOutputStream()));
+            out.writeShort(request.queryBytes.length);
+            out.write(request.queryBytes);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(tcp.getInputStream());
+            byte[] reply = new byte[in.readUnsignedShort()];
+            in.readFully(reply);
+            MessageView view = MessageView.wrap(reply);
+            if (view.getId() != request.key.id) {
+                throw new IOException("TCP reply from " + request.server + " has the wrong ID");
+            }
+            //same check as for UDP replies, the ID alone is only 16 bits
+            if (view.getQuestionCount() != 1 || !DNSQuestion.decodeQuestion(view).equals(request.question)) {
+                throw new IOException("TCP reply from " + request.server + " is for a different question");
+            }
+            request.future.complete(reply);
+        } catch (IOException | RuntimeException e) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        timer.shutdownNow();
+        tcpExecutor.shutdownNow();
+    }
+
+    private record PendingKey(int id, DNSQuestion question) {}
+
+    private static class Pending {
+        final DNSQuestion question;
+        final InetSocketAddress server;
+        final CompletableFuture<byte[]> future;
+        PendingKey key;
+        byte[] queryBytes;
+        int attempts;
+        volatile ScheduledFuture<?> timeout;
+
+        Pending(DNSQuestion question, InetSocketAddress server, CompletableFuture<byte[]> future) {
+            this.question = question;
+            this.server = Objects.requireNonNull(server);
+            this.future = future;
+        }
+    }
+}
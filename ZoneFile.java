@@ -0,0 +1,288 @@
+package DNSHandling;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+//reads RFC 1035 master files and hosts files into records with their rdata already in wire format
+//master files support $ORIGIN and $TTL, "@", relative names, a blank owner meaning the one before,
+//TTL and class in either order, parentheses across lines and quoted strings
+//the types understood are A, AAAA, NS, CNAME, PTR, MX, TXT, SRV and SOA
+//hosts files are "address name [name...]" per line, each name getting an A or AAAA record
+public class ZoneFile {
+    //TTL for hosts file names, which have nowhere to say one
+    static final int HOSTS_TTL = 60;
+    //TTL for master file records when neither the record nor a $TTL gives one
+    private static final int DEFAULT_TTL = 3600;
+    private static final int TYPE_TXT = 16;
+    private static final int TYPE_SRV = 33;
+
+    //one record, names in its rdata are uncompressed
+    public record Entry(DNSName name, int type, int ttl, byte[] rdata) {}
+
+    public static List<Entry> parse(Path path) throws IOException {
+        return parse(Files.readAllLines(path, StandardCharsets.UTF_8), path.toString());
+    }
+
+    //source is only used to say where an error is
+    public static List<Entry> parse(List<String> lines, String source) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        DNSName origin = DNSName.ROOT;
+        DNSName owner = null;
+        int defaultTtl = DEFAULT_TTL;
+        int lineNumber = 0;
+        while (lineNumber < lines.size()) {
+            int first = lineNumber;
+            //a record can run over several lines inside parentheses
+            List<String> tokens = new ArrayList<>();
+            boolean startsBlank = !lines.get(lineNumber).isEmpty() && Character.isWhitespace(lines.get(lineNumber).charAt(0));
+            int depth = 0;
+            do {
+                if (lineNumber >= lines.size()) {
+                    throw new IOException(source + ":" + (first + 1) + ": unclosed parenthesis");
+                }
+                depth = tokenize(lines.get(lineNumber++), tokens, depth, source, lineNumber);
+            } while (depth > 0);
+            if (tokens.isEmpty()) {
+                continue;
+            }
+
+            try {
+                String head = tokens.get(0);
+                if (head.equalsIgnoreCase("$ORIGIN")) {
+                    origin = toName(tokens.get(1), origin);
+                    continue;
+                }
+                if (head.equalsIgnoreCase("$TTL")) {
+                    defaultTtl = parseTtl(tokens.get(1));
+                    continue;
+                }
+                if (head.startsWith("$")) {
+                    throw new IOException("unsupported directive " + head);
+                }
+
+                int position = 0;
+                if (!startsBlank) {
+                    owner = toName(tokens.get(position++), origin);
+                } else if (owner == null) {
+                    throw new IOException("no owner name yet");
+                }
+                //TTL and class can come in either order, both are optional
+                int ttl = defaultTtl;
+                for (int i = 0; i < 2 && position < tokens.size(); i++) {
+                    String token = tokens.get(position);
+                    if (token.equalsIgnoreCase("IN")) {
+                        position++;
+                    } else if (Character.isDigit(token.charAt(0))) {
+                        ttl = parseTtl(token);
+                        position++;
+                    }
+                }
+                if (position >= tokens.size()) {
+                    throw new IOException("no record type");
+                }
+                String type = tokens.get(position++).toUpperCase();
+                List<String> data = tokens.subList(position, tokens.size());
+                entries.add(parseRecord(owner, ttl, type, data, origin));
+            } catch (IOException | RuntimeException e) {
+                throw new IOException(source + ":" + (first + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return entries;
+    }
+
+    public static List<Entry> parseHosts(Path path) throws IOException {
+        return parseHosts(Files.readAllLines(path, StandardCharsets.UTF_8), path.toString());
+    }
+
+    public static List<Entry> parseHosts(List<String> lines, String source) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length == 1 && fields[0].isEmpty()) {
+                continue;
+            }
+            try {
+                if (fields.length < 2) {
+                    throw new IOException("expected an address and at least one name");
+                }
+                byte[] address = parseAddress(fields[0]);
+                int type = address.length == 4 ? DNSRecord.TYPE_A : DNSRecord.TYPE_AAAA;
+                for (int j = 1; j < fields.length; j++) {
+                    entries.add(new Entry(DNSName.fromString(fields[j]), type, HOSTS_TTL, address));
+                }
+            } catch (IOException | RuntimeException e) {
+                throw new IOException(source + ":" + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return entries;
+    }
+
+    private static Entry parseRecord(DNSName owner, int ttl, String type, List<String> data, DNSName origin) throws IOException {
+        return switch (type) {
+            case "A" -> {
+                byte[] address = parseAddress(data.get(0));
+                if (address.length != 4) {
+                    throw new IOException("not an IPv4 address: " + data.get(0));
+                }
+                yield new Entry(owner, DNSRecord.TYPE_A, ttl, address);
+            }
+            case "AAAA" -> {
+                byte[] address = parseAddress(data.get(0));
+                if (address.length != 16) {
+                    throw new IOException("not an IPv6 address: " + data.get(0));
+                }
+                yield new Entry(owner, DNSRecord.TYPE_AAAA, ttl, address);
+            }
+            case "NS" -> new Entry(owner, DNSRecord.TYPE_NS, ttl, toName(data.get(0), origin).getWire());
+            case "CNAME" -> new Entry(owner, DNSRecord.TYPE_CNAME, ttl, toName(data.get(0), origin).getWire());
+            case "PTR" -> new Entry(owner, DNSRecord.TYPE_PTR, ttl, toName(data.get(0), origin).getWire());
+            case "MX" -> {
+                byte[] exchange = toName(data.get(1), origin).getWire();
+                yield new Entry(owner, DNSRecord.TYPE_MX, ttl,
+                        ByteBuffer.allocate(2 + exchange.length).putShort((short) Integer.parseInt(data.get(0))).put(exchange).array());
+            }
+            case "SRV" -> {
+                byte[] target = toName(data.get(3), origin).getWire();
+                ByteBuffer rdata = ByteBuffer.allocate(6 + target.length);
+                for (int i = 0; i < 3; i++) {
+                    rdata.putShort((short) Integer.parseInt(data.get(i)));
+                }
+                yield new Entry(owner, TYPE_SRV, ttl, rdata.put(target).array());
+            }
+            case "TXT" -> {
+                ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+                for (String text : data) {
+                    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length > 255) {
+                        throw new IOException("TXT string longer than 255 bytes");
+                    }
+                    rdata.write(bytes.length);
+                    rdata.write(bytes);
+                }
+                yield new Entry(owner, TYPE_TXT, ttl, rdata.toByteArray());
+            }
+            case "SOA" -> {
+                if (data.size() < 7) {
+                    throw new IOException("SOA needs mname rname serial refresh retry expire minimum");
+                }
+                byte[] mname = toName(data.get(0), origin).getWire();
+                byte[] rname = toName(data.get(1), origin).getWire();
+                ByteBuffer rdata = ByteBuffer.allocate(mname.length + rname.length + 20).put(mname).put(rname);
+                //the serial is a plain number, the timers can use units like the TTL
+                rdata.putInt((int) Long.parseLong(data.get(2)));
+                for (int i = 3; i < 7; i++) {
+                    rdata.putInt(parseTtl(data.get(i)));
+                }
+                yield new Entry(owner, DNSRecord.TYPE_SOA, ttl, rdata.array());
+            }
+            default -> throw new IOException("unsupported record type " + type);
+        };
+    }
+
+    //splits a line into tokens, dropping comments and parentheses, and returns how many parentheses are still open
+    private static int tokenize(String line, List<String> tokens, int depth, String source, int lineNumber) throws IOException {
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c == ';') {
+                break;
+            }
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(') {
+                depth++;
+                i++;
+            } else if (c == ')') {
+                depth--;
+                i++;
+            } else if (c == '"') {
+                StringBuilder text = new StringBuilder();
+                i++;
+                while (i < line.length() && line.charAt(i) != '"') {
+                    if (line.charAt(i) == '\\' && i + 1 < line.length()) {
+                        i++;
+                    }
+                    text.append(line.charAt(i++));
+                }
+                if (i >= line.length()) {
+                    throw new IOException(source + ":" + lineNumber + ": unclosed quote");
+                }
+                i++;
+                tokens.add(text.toString());
+            } else {
+                int start = i;
+                while (i < line.length() && !Character.isWhitespace(line.charAt(i)) && "();\"".indexOf(line.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(line.substring(start, i));
+            }
+        }
+        if (depth < 0) {
+            throw new IOException(source + ":" + lineNumber + ": unmatched ')'");
+        }
+        return depth;
+    }
+
+    //"@" is the origin, names without a trailing dot are relative to it
+    private static DNSName toName(String token, DNSName origin) {
+        if (token.equals("@")) {
+            return origin;
+        }
+        if (token.endsWith(".") || origin.isRoot()) {
+            return DNSName.fromString(token);
+        }
+        return DNSName.fromString(token + "." + origin);
+    }
+
+    //a number of seconds, or units like "1h30m", "2d" or "1w"
+    static int parseTtl(String token) {
+        long total = 0;
+        long current = 0;
+        boolean digits = false;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (Character.isDigit(c)) {
+                current = current * 10 + (c - '0');
+                digits = true;
+                continue;
+            }
+            if (!digits) {
+                throw new IllegalArgumentException("bad TTL: " + token);
+            }
+            total += current * switch (Character.toLowerCase(c)) {
+                case 's' -> 1;
+                case 'm' -> 60;
+                case 'h' -> 3600;
+                case 'd' -> 86400;
+                case 'w' -> 604800;
+                default -> throw new IllegalArgumentException("bad TTL: " + token);
+            };
+            current = 0;
+            digits = false;
+        }
+        total += current;
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("TTL too big: " + token);
+        }
+        return (int) total;
+    }
+
+    private static byte[] parseAddress(String text) throws IOException {
+        //only literal addresses, a name here would mean a lookup
+        if (!text.matches("[0-9a-fA-F.:]+")) {
+            throw new IOException("not an address: " + text);
+        }
+        return InetAddress.getByName(text).getAddress();
+    }
+}
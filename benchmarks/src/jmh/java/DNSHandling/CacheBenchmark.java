@@ -0,0 +1,93 @@
+package DNSHandling;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+//DNSCache lookups and inserts from several threads at once, on either engine
+//this goes through DNSCache itself, so its logging calls are part of what's measured
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CacheBenchmark {
+    @Param({"heap", "offheap"})
+    public String engine;
+
+    @Param({"100000"})
+    public int entries;
+
+    private DNSQuestion[] questions;
+    private CachedResponse[] responses;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        new DNSCache(engine.equals("offheap") ? new OffHeapCacheEngine(entries, 256L << 20) : new CacheEngine<>(entries));
+        questions = new DNSQuestion[entries];
+        responses = new CachedResponse[entries];
+        for (int i = 0; i < entries; i++) {
+            questions[i] = new DNSQuestion(DNSName.fromString("host" + i + ".bench.example"), 1, 1);
+            responses[i] = CachedResponse.fromReply(reply(questions[i], i));
+            DNSCache.putResponse(questions[i], responses[i], false);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+        DNSCache.getStats().close();
+    }
+
+    //an A record answer for the question, good for an hour
+    static byte[] reply(DNSQuestion question, int address) throws Exception {
+        byte[] query = DNSMessage.buildQuery(question, 0, 0).toBytes();
+        ByteBuffer reply = ByteBuffer.allocate(query.length + 16).put(query);
+        reply.putShort(2, (short) 0x8180).putShort(6, (short) 1);
+        reply.putShort((short) 0xC00C).putShort((short) 1).putShort((short) 1).putInt(3600).putShort((short) 4).putInt(address);
+        return reply.array();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public CachedResponse get() {
+        return DNSCache.getResponse(questions[ThreadLocalRandom.current().nextInt(entries)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void put() {
+        int i = ThreadLocalRandom.current().nextInt(entries);
+        DNSCache.putResponse(questions[i], responses[i], false);
+    }
+
+    //the usual mix, mostly lookups with the odd insert from a miss coming back
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public CachedResponse mixedGet() {
+        return get();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedPut() {
+        put();
+    }
+}
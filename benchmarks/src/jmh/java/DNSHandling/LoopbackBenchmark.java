@@ -0,0 +1,130 @@
+package DNSHandling;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+//a whole server on loopback, with a stub upstream in the same process, queried over UDP by several clients
+//throughput mode gives queries per second, sample mode gives the latency percentiles
+//hit asks the same few names over and over, miss asks a new name every time so every query goes upstream
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoopbackBenchmark {
+    private static final int HOT_NAMES = 64;
+
+    @Param({"hit", "miss"})
+    public String workload;
+
+    @Param({"nio"})
+    public String frontend;
+
+    private StubServer upstream;
+    private int port;
+    private PrintStream stdout;
+    private final AtomicInteger nextName = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        stdout = System.out;
+        //the server logs every query, which would only fill up the benchmark output
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        upstream = new StubServer(0, 3600);
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        DNSServer server = new DNSServer(ServerConfig.fromArgs(new String[]{
+                "--port=" + port,
+                "--frontend=" + frontend,
+                "--upstreams=127.0.0.1:" + upstream.getPort()}));
+        Thread thread = new Thread(() -> {
+            try {
+                server.startServer();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "bench-server");
+        thread.setDaemon(true);
+        thread.start();
+        //wait until it answers
+        Client client = new Client();
+        client.setup(this);
+        for (int i = 0; ; i++) {
+            try {
+                client.ask("warmup.bench.example");
+                break;
+            } catch (IOException e) {
+                if (i == 50) {
+                    throw e;
+                }
+            }
+        }
+        client.tearDown();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        upstream.close();
+        System.setOut(stdout);
+    }
+
+    //one socket per benchmark thread, like separate clients
+    @State(Scope.Thread)
+    public static class Client {
+        private DatagramSocket socket;
+        private InetSocketAddress server;
+        private final byte[] buffer = new byte[4096];
+        private int id;
+
+        @Setup(Level.Trial)
+        public void setup(LoopbackBenchmark benchmark) throws IOException {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(1000);
+            server = new InetSocketAddress(InetAddress.getLoopbackAddress(), benchmark.port);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            socket.close();
+        }
+
+        int ask(String name) throws IOException {
+            id = (id + 1) & 0xFFFF;
+            byte[] query = DNSMessage.buildQuery(new DNSQuestion(DNSName.fromString(name), 1, 1), id, 0).toBytes();
+            socket.send(new DatagramPacket(query, query.length, server));
+            while (true) {
+                DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+                socket.receive(reply);
+                //a late reply to an earlier query that timed out isn't the one we're waiting on
+                if (((buffer[0] & 0xFF) << 8 | (buffer[1] & 0xFF)) == id) {
+                    return reply.getLength();
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int query(Client client) throws IOException {
+        String name = workload.equals("hit")
+                ? "hot" + (client.id % HOT_NAMES) + ".bench.example"
+                : "cold" + nextName.incrementAndGet() + ".bench.example";
+        return client.ask(name);
+    }
+}
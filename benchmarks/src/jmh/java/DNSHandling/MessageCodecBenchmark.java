@@ -0,0 +1,44 @@
+package DNSHandling;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+//decoding and encoding whole messages, plus the zero copy view the cache path uses instead
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageCodecBenchmark {
+    @Param({"simpleA", "cnameChain", "nxdomain", "mxWithGlue"})
+    public String packet;
+
+    private byte[] bytes;
+    private DNSMessage message;
+
+    @Setup
+    public void setup() throws IOException {
+        bytes = Packets.byName(packet);
+        message = DNSMessage.decodeMessage(bytes);
+    }
+
+    @Benchmark
+    public DNSMessage decodeMessage() throws IOException {
+        return DNSMessage.decodeMessage(bytes);
+    }
+
+    @Benchmark
+    public byte[] toBytes() throws IOException {
+        return message.toBytes();
+    }
+
+    @Benchmark
+    public MessageView wrapView() throws IOException {
+        return MessageView.wrap(bytes);
+    }
+}
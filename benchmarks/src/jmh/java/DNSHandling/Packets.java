@@ -0,0 +1,43 @@
+package DNSHandling;
+import java.util.HexFormat;
+
+//responses laid out the way real resolvers send them back: EDNS on, names compressed, several sections filled in
+//names and addresses are modelled on public zones, but the bytes were put together by hand
+public class Packets {
+    //example.com A, one answer and an OPT record
+    static final byte[] SIMPLE_A = HexFormat.of().parseHex(
+            "3c1a81800001000100000001076578616d706c6503636f6d0000010001c00c0001000100000e1000045db8d70e00002904d0000000000000");
+
+    //www.microsoft.com A, three CNAMEs through a CDN before the address
+    static final byte[] CNAME_CHAIN = HexFormat.of().parseHex(
+            "9b078180000100040000000103777777096d6963726f736f667403636f6d0000010001c00c0005000100000e10002303777777096d6963" +
+            "726f736f667407636f6d2d632d3307656467656b6579036e657400c02f0005000100000384003703777777096d6963726f736f667407636f" +
+            "6d2d632d3307656467656b6579036e65740b676c6f62616c726564697206616b61646e73c04dc05e000500010000038400190665313336" +
+            "373804647363620a616b616d616965646765c04dc0a1000100010000001400041724485100002904d0000000000000");
+
+    //nosuchhost.example.com, NXDOMAIN with the zone's SOA in the authority section
+    static final byte[] NXDOMAIN = HexFormat.of().parseHex(
+            "51e2818300010000000100010a6e6f73756368686f7374076578616d706c6503636f6d0000010001c0170006000100000e10002c026e7305" +
+            "6963616e6e036f726700036e6f6303646e73c03778a5081700001c2000000e100012750000000e1000002904d0000000000000");
+
+    //github.com MX, five exchangers, four name servers in the authority section and glue for some of them
+    static final byte[] MX_WITH_GLUE = HexFormat.of().parseHex(
+            "0d4e818000010005000400070667697468756203636f6d00000f0001c00c000f000100000e1000130001056173706d78016c06676f6f67" +
+            "6c65c013c00c000f000100000e100009000504616c7431c02ac00c000f000100000e100009000504616c7432c02ac00c000f000100000e" +
+            "100009000a04616c7433c02ac00c000f000100000e100009000a04616c7434c02ac00c0002000100000384001404646e733103703038056e" +
+            "736f6e65036e657400c00c0002000100000384000704646e7332c0a0c00c00020001000003840017076e732d3132383309617773646e732d" +
+            "3332036f726700c00c00020001000003840019076e732d3137303709617773646e732d323102636f02756b00c02a000100010000012500048e" +
+            "fa991bc02a001c00010000012500102a00145040138000000000000000001bc049000100010000012500048efa731bc049001c0001000001" +
+            "2500102607f8b0402300010000000000001b00c09b00010001000151800004c6332c08c0bb00010001000151800004c6332d080000290" +
+            "4d0000000000000");
+
+    static byte[] byName(String name) {
+        return switch (name) {
+            case "simpleA" -> SIMPLE_A;
+            case "cnameChain" -> CNAME_CHAIN;
+            case "nxdomain" -> NXDOMAIN;
+            case "mxWithGlue" -> MX_WITH_GLUE;
+            default -> throw new IllegalArgumentException("Unknown packet: " + name);
+        };
+    }
+}
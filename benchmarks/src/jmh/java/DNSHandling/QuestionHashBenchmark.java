@@ -0,0 +1,42 @@
+package DNSHandling;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+//what a cache lookup costs before it reaches the map: pulling the question out of a query, hashing it and comparing it
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QuestionHashBenchmark {
+    private MessageView query;
+    private DNSQuestion question;
+    //equal to question but a different object, the way a lookup key and the stored key are
+    private DNSQuestion sameQuestion;
+
+    @Setup
+    public void setup() throws Exception {
+        question = new DNSQuestion(DNSName.fromString("www.microsoft.com-c-3.edgekey.net"), 1, 1);
+        sameQuestion = new DNSQuestion(DNSName.fromString("www.microsoft.com-c-3.edgekey.net"), 1, 1);
+        query = MessageView.wrap(DNSMessage.buildQuery(question, 0x1234, OptRecord.DEFAULT_PAYLOAD_SIZE).toBytes());
+    }
+
+    @Benchmark
+    public int decodeAndHash() {
+        return DNSQuestion.decodeQuestion(query).hashCode();
+    }
+
+    @Benchmark
+    public int hashCodeOnly() {
+        return question.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsDifferentInstance() {
+        return question.equals(sameQuestion);
+    }
+}
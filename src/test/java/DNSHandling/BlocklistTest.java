@@ -0,0 +1,85 @@
+package DNSHandling;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+//which names a list blocks, from each of the line formats it reads
+class BlocklistTest {
+    private static final Blocklist LIST = Blocklist.build(List.of(
+            "# a comment line",
+            "! an adblock comment",
+            "[Adblock Plus 2.0]",
+            "ads.example.com",
+            "*.wild.test   # with a comment after it",
+            "||adblock.test^",
+            "||paths.test/banner.png",
+            "@@||exception.test^",
+            "0.0.0.0 exact.test other.exact.test localhost",
+            "127.0.0.1\tlocal"), false);
+
+    @Test
+    void blocksPlainNamesAndEverythingUnderThem() {
+        assertTrue(blocked("ads.example.com"));
+        assertTrue(blocked("x.ads.example.com"));
+        assertTrue(blocked("a.b.c.ads.example.com"));
+        assertTrue(blocked("ADS.Example.COM"));
+        //but not the parent, or a name that only ends the same way
+        assertFalse(blocked("example.com"));
+        assertFalse(blocked("bads.example.com"));
+        assertFalse(blocked("ads.example.com.au"));
+    }
+
+    @Test
+    void readsWildcardsAndAdblockRules() {
+        assertTrue(blocked("wild.test"));
+        assertTrue(blocked("www.wild.test"));
+        assertTrue(blocked("adblock.test"));
+        assertTrue(blocked("cdn.adblock.test"));
+        //rules with paths and exceptions aren't names, so they're skipped
+        assertFalse(blocked("paths.test"));
+        assertFalse(blocked("exception.test"));
+    }
+
+    @Test
+    void blocksHostsFileNamesExactly() {
+        assertTrue(blocked("exact.test"));
+        assertTrue(blocked("other.exact.test"));
+        assertFalse(blocked("www.exact.test"));
+        assertFalse(blocked("test"));
+        //names hosts files always have are left alone
+        assertFalse(blocked("localhost"));
+        assertFalse(blocked("local"));
+        //ads, wild, adblock, exact and other.exact
+        assertEquals(5, LIST.getSize());
+    }
+
+    @Test
+    void sinkholesAddressQueries() throws IOException {
+        Blocklist sinkhole = Blocklist.build(List.of("ads.example.com"), true);
+        DNSQuestion question = new DNSQuestion(DNSName.fromString("x.ads.example.com"), DNSRecord.TYPE_A, 1);
+        byte[] reply = new byte[512];
+        MessageView view = MessageView.wrap(Arrays.copyOf(reply, sinkhole.writeReply(question, null, 0x1234, 0x0100, reply)));
+        assertEquals(0x1234, view.getId());
+        assertEquals(0, view.getRcode());
+        assertEquals(1, view.getAnswerCount());
+        assertEquals(Blocklist.BLOCKED_TTL, view.getRecordTtl(0));
+        byte[] address = new byte[4];
+        view.getBuffer().get(view.getRdataOffset(0), address);
+        assertArrayEquals(new byte[4], address);
+
+        //without sinkholing, and for other types, there's nothing there
+        view = MessageView.wrap(Arrays.copyOf(reply, LIST.writeReply(question, null, 0x1234, 0x0100, reply)));
+        assertEquals(CachedResponse.RCODE_NXDOMAIN, view.getRcode());
+        assertEquals(0, view.getAnswerCount());
+    }
+
+    private static boolean blocked(String name) {
+        return LIST.isBlocked(DNSName.fromString(name));
+    }
+}
@@ -0,0 +1,57 @@
+package DNSHandling;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+//taking the upstream's OPT record off a reply, wherever it sits in the additional section
+class CachedResponseTest {
+    @Test
+    void removesAnOptRecordFollowedByOthers() throws IOException {
+        byte[] buffer = new byte[512];
+        MessageWriter writer = new MessageWriter().reset(ByteBuffer.wrap(buffer), 0);
+        writer.writeHeader(0x1234, 0x8180, 1, 1, 0, 2);
+        writer.writeName(DNSName.fromString("www.example.com").getWire());
+        writer.writeShort(DNSRecord.TYPE_A);
+        writer.writeShort(1);
+        answer(writer, new byte[]{(byte) 192, 0, 2, 1});
+        //an OPT record with one option in it, and an ordinary record after it
+        writer.writeBytes(new byte[]{0});
+        writer.writeShort(OptRecord.TYPE_OPT);
+        writer.writeShort(1232);
+        writer.writeInt(0);
+        writer.writeShort(6);
+        writer.writeBytes(new byte[]{0, 10, 0, 2, 1, 2});
+        answer(writer, new byte[]{(byte) 192, 0, 2, 2});
+        byte[] reply = Arrays.copyOf(buffer, writer.getLength());
+
+        CachedResponse response = CachedResponse.fromReply(reply);
+        assertEquals(reply.length - (OptRecord.EMPTY_LENGTH + 6), response.getLength());
+        assertTrue(response.isCacheable());
+
+        //what a client gets has no OPT of the upstream's, so the server's own is the only one
+        byte[] out = new byte[response.getLength() + OptRecord.EMPTY_LENGTH];
+        int length = OptRecord.append(out, response.writeResponse(out, 0x4321), 1232, 0);
+        MessageView view = MessageView.wrap(Arrays.copyOf(out, length));
+        assertEquals(0x4321, view.getId());
+        assertEquals(2, view.getAdditionalCount());
+        assertEquals(DNSRecord.TYPE_A, view.getRecordType(1));
+        assertEquals(DNSName.fromString("www.example.com"), DNSName.fromView(view, view.getRecordNameOffset(1)));
+        assertEquals(2, view.getBuffer().get(view.getRdataOffset(1) + 3));
+        assertEquals(OptRecord.TYPE_OPT, view.getRecordType(2));
+        assertEquals(2, OptRecord.findIndex(view));
+    }
+
+    //an A record for the question name, pointing back at it
+    private static void answer(MessageWriter writer, byte[] address) {
+        writer.writeShort(0xC000 | MessageView.HEADER_LENGTH);
+        writer.writeShort(DNSRecord.TYPE_A);
+        writer.writeShort(1);
+        writer.writeInt(300);
+        writer.writeShort(address.length);
+        writer.writeBytes(address);
+    }
+}
@@ -0,0 +1,100 @@
+package DNSHandling;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+//every miss waits on a slow stub upstream, so a server that handled one query at a time would stay at the
+//same few dozen queries a second however many clients asked, while one that overlaps them goes up with the clients
+//checked for each front end across shard and worker counts
+class ConcurrencyTest {
+    private static final int UPSTREAM_DELAY_MS = 20;
+    private static final int MEASURE_MS = 1000;
+    private static final int MANY_CLIENTS = 16;
+
+    private static StubServer upstream;
+    private static final AtomicInteger run = new AtomicInteger();
+
+    @BeforeAll
+    static void startUpstream() throws IOException {
+        upstream = new StubServer(0, UPSTREAM_DELAY_MS, 0, 300, 0, 0);
+    }
+
+    @AfterAll
+    static void stopUpstream() {
+        upstream.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "--frontend=nio --shards=1 --workers=0",
+            "--frontend=nio --shards=4 --workers=0",
+            "--frontend=nio --shards=2 --workers=8",
+            "--frontend=blocking --workers=0",
+            "--frontend=blocking --workers=1",
+            "--frontend=blocking --workers=8"})
+    void throughputScalesWithClients(String settings) throws Exception {
+        List<String> args = new ArrayList<>(List.of(settings.split(" ")));
+        args.add("--upstreams=127.0.0.1:" + upstream.getPort());
+        args.add("--tcp-max-connections=0");
+        args.add("--log-level=warn");
+        LoopbackServer server = LoopbackServer.start(args.toArray(new String[0]));
+
+        double one = measure(server, 1);
+        double many = measure(server, MANY_CLIENTS);
+        //one client can't do better than one query per upstream delay
+        assertTrue(one <= 1000.0 / UPSTREAM_DELAY_MS * 1.2, settings + ": one client got " + one + "/s");
+        //perfect scaling would be 16 times, half of that leaves room for a busy test machine
+        assertTrue(many >= one * MANY_CLIENTS / 2,
+                settings + ": " + MANY_CLIENTS + " clients got " + many + "/s against " + one + "/s for one");
+    }
+
+    //answers a second with this many clients each asking new names back to back, so every one is a miss
+    private static double measure(LoopbackServer server, int clients) throws Exception {
+        int id = run.incrementAndGet();
+        LongAdder answered = new LongAdder();
+        LongAdder timedOut = new LongAdder();
+        //counted here and checked once the clients are done, a failed assert on a client thread would only end that thread
+        LongAdder failed = new LongAdder();
+        long end = System.nanoTime() + MEASURE_MS * 1_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            String domain = "c" + c + ".r" + id + ".p" + server.getPort() + ".scale.test";
+            Thread thread = new Thread(() -> {
+                try (LoopbackServer.Client client = server.client(1000)) {
+                    for (int i = 0; System.nanoTime() < end; i++) {
+                        try {
+                            MessageView reply = client.ask("n" + i + "." + domain, DNSRecord.TYPE_A);
+                            if (reply.getRcode() == 0) {
+                                answered.increment();
+                            } else {
+                                failed.increment();
+                            }
+                        } catch (SocketTimeoutException e) {
+                            timedOut.increment();
+                        }
+                    }
+                } catch (IOException e) {
+                    failed.increment();
+                }
+            }, "client-" + c);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, timedOut.sum(), "queries timed out");
+        assertEquals(0, failed.sum(), "queries failed");
+        return answered.sum() * 1000.0 / MEASURE_MS;
+    }
+}
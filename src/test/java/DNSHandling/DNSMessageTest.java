@@ -0,0 +1,139 @@
+package DNSHandling;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+//name compression in DNSMessage.toBytes, checked against the plain encoding of the same message
+class DNSMessageTest {
+    private static final int TYPE_TXT = 16;
+    private static final int QUESTION_NAME = MessageView.HEADER_LENGTH;
+    //"example.com" inside the question name "www.example.com"
+    private static final int EXAMPLE_COM = QUESTION_NAME + 4;
+
+    @Test
+    void compressesRepeatedNames() throws IOException {
+        byte[] plain = message(
+                new Record("www.example.com", DNSRecord.TYPE_CNAME, name("web.example.com")),
+                new Record("web.example.com", DNSRecord.TYPE_A, new byte[]{(byte) 192, 0, 2, 1}),
+                new Record("web.example.com", DNSRecord.TYPE_A, new byte[]{(byte) 192, 0, 2, 2}),
+                new Record("example.com", DNSRecord.TYPE_NS, name("ns1.example.com")),
+                new Record("example.com", DNSRecord.TYPE_NS, name("ns2.example.com")),
+                new Record("ns1.example.com", DNSRecord.TYPE_A, new byte[]{(byte) 192, 0, 2, 53}),
+                new Record("ns2.example.com", DNSRecord.TYPE_A, new byte[]{(byte) 192, 0, 2, 54}),
+                new Record("example.com", DNSRecord.TYPE_MX, mx(10, "mail.example.com")));
+        DNSMessage message = DNSMessage.decodeMessage(plain);
+
+        byte[] uncompressed = message.toBytes(false);
+        byte[] compressed = message.toBytes(true);
+        assertArrayEquals(plain, uncompressed);
+        //every owner name is a two byte pointer, and every name in rdata is its first label plus a pointer
+        assertEquals(324, uncompressed.length);
+        assertEquals(172, compressed.length);
+        assertSameRecords(uncompressed, compressed);
+
+        //the CNAME target "web.example.com" is its own label then a pointer into the middle of the question name
+        MessageView view = MessageView.wrap(compressed);
+        int cname = view.getRdataOffset(0);
+        assertArrayEquals(new byte[]{3, 'w', 'e', 'b', (byte) 0xC0, EXAMPLE_COM}, Arrays.copyOfRange(compressed, cname, cname + 6));
+        //the two A records point back at that name inside the CNAME's rdata
+        assertEquals(0xC000 | cname, view.readShort(view.getRecordNameOffset(1)));
+        assertEquals(0xC000 | cname, view.readShort(view.getRecordNameOffset(2)));
+        //the MX exchange comes after the preference, and points at the same suffix
+        int mx = view.getRdataOffset(7) + 2;
+        assertArrayEquals(new byte[]{4, 'm', 'a', 'i', 'l', (byte) 0xC0, EXAMPLE_COM}, Arrays.copyOfRange(compressed, mx, mx + 7));
+    }
+
+    @Test
+    void compressesSoaNames() throws IOException {
+        ByteArrayOutputStream soa = new ByteArrayOutputStream();
+        soa.writeBytes(name("ns1.example.com"));
+        soa.writeBytes(name("hostmaster.example.com"));
+        soa.writeBytes(ByteBuffer.allocate(20).putInt(1).putInt(3600).putInt(600).putInt(86400).putInt(300).array());
+        byte[] plain = message(new Record("example.com", DNSRecord.TYPE_SOA, soa.toByteArray()));
+        DNSMessage message = DNSMessage.decodeMessage(plain);
+
+        byte[] compressed = message.toBytes(true);
+        //the owner and both names in the rdata end in "example.com", each saving 11 bytes with a pointer
+        assertEquals(plain.length - 3 * 11, compressed.length);
+        assertSameRecords(plain, compressed);
+    }
+
+    @Test
+    void neverPointsPastTheFourteenBitLimit() throws IOException {
+        //a TXT record big enough to push everything after it beyond offset 0x3FFF
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        for (int i = 0; i < 70; i++) {
+            text.write(250);
+            text.writeBytes(new byte[250]);
+        }
+        byte[] plain = message(
+                new Record("www.example.com", TYPE_TXT, text.toByteArray()),
+                new Record("far.example.net", DNSRecord.TYPE_A, new byte[]{(byte) 192, 0, 2, 1}),
+                new Record("far.example.net", DNSRecord.TYPE_A, new byte[]{(byte) 192, 0, 2, 2}),
+                new Record("deep.example.com", DNSRecord.TYPE_A, new byte[]{(byte) 192, 0, 2, 3}));
+        DNSMessage message = DNSMessage.decodeMessage(plain);
+
+        byte[] compressed = message.toBytes(true);
+        assertSameRecords(plain, compressed);
+        MessageView view = MessageView.wrap(compressed);
+        //"far.example.net" was first written where no pointer can reach, so the second one is written out again in full
+        int first = view.getRecordNameOffset(1);
+        int second = view.getRecordNameOffset(2);
+        assertTrue(first > 0x3FFF);
+        assertArrayEquals(name("far.example.net"), Arrays.copyOfRange(compressed, second, second + 17));
+        //names from before the limit can still be pointed at from beyond it
+        int deep = view.getRecordNameOffset(3);
+        assertArrayEquals(new byte[]{4, 'd', 'e', 'e', 'p', (byte) 0xC0, EXAMPLE_COM}, Arrays.copyOfRange(compressed, deep, deep + 7));
+    }
+
+    //both encodings hold the same records, names compared after following pointers and rdata after expanding them
+    private static void assertSameRecords(byte[] expected, byte[] actual) throws IOException {
+        MessageView a = MessageView.wrap(expected);
+        MessageView b = MessageView.wrap(actual);
+        assertEquals(a.getRecordCount(), b.getRecordCount());
+        assertEquals(DNSName.fromView(a, a.getQuestionNameOffset()), DNSName.fromView(b, b.getQuestionNameOffset()));
+        for (int i = 0; i < a.getRecordCount(); i++) {
+            assertEquals(DNSName.fromView(a, a.getRecordNameOffset(i)), DNSName.fromView(b, b.getRecordNameOffset(i)), "record " + i);
+            assertEquals(a.getRecordType(i), b.getRecordType(i));
+            assertEquals(a.getRecordTtl(i), b.getRecordTtl(i));
+            assertArrayEquals(DNSRecord.expandRData(a, a.getRecordType(i), a.getRdataOffset(i), a.getRdataLength(i)),
+                    DNSRecord.expandRData(b, b.getRecordType(i), b.getRdataOffset(i), b.getRdataLength(i)), "record " + i);
+        }
+    }
+
+    private record Record(String name, int type, byte[] rdata) {}
+
+    //a reply to "www.example.com A" with the records as answers, written out without any compression
+    private static byte[] message(Record... records) {
+        byte[] buffer = new byte[65535];
+        MessageWriter writer = new MessageWriter().reset(ByteBuffer.wrap(buffer), 0);
+        writer.writeHeader(0x1234, 0x8180, 1, records.length, 0, 0);
+        writer.writeName(name("www.example.com"));
+        writer.writeShort(DNSRecord.TYPE_A);
+        writer.writeShort(1);
+        for (Record record : records) {
+            writer.writeName(name(record.name()));
+            writer.writeShort(record.type());
+            writer.writeShort(1);
+            writer.writeInt(300);
+            writer.writeShort(record.rdata().length);
+            writer.writeBytes(record.rdata());
+        }
+        return Arrays.copyOf(buffer, writer.getLength());
+    }
+
+    private static byte[] name(String name) {
+        return DNSName.fromString(name).getWire();
+    }
+
+    private static byte[] mx(int preference, String exchange) {
+        byte[] name = name(exchange);
+        return ByteBuffer.allocate(2 + name.length).putShort((short) preference).put(name).array();
+    }
+}
@@ -0,0 +1,47 @@
+package DNSHandling;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+//what a full DelegationCache gives up to learn a new zone
+class DelegationCacheTest {
+    private static final long HOUR = 3_600_000_000_000L;
+    private static final List<InetSocketAddress> ROOTS = List.of(new InetSocketAddress("127.0.0.2", 53));
+
+    @Test
+    void evictsTheLeastRecentlyUsedZoneWhenFull() throws Exception {
+        DelegationCache cache = new DelegationCache(ROOTS, 2);
+        cache.put(delegation("a.test", HOUR));
+        Thread.sleep(1);
+        cache.put(delegation("b.test", HOUR));
+        Thread.sleep(1);
+        //a.test was learned first, but it's been used since b.test was
+        assertEquals(DNSName.fromString("a.test"), cache.closest(DNSName.fromString("www.a.test")).zone());
+
+        cache.put(delegation("c.test", HOUR));
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(DNSName.fromString("a.test"), cache.closest(DNSName.fromString("www.a.test")).zone());
+        assertEquals(DNSName.fromString("c.test"), cache.closest(DNSName.fromString("www.c.test")).zone());
+        assertEquals(cache.getRoots(), cache.closest(DNSName.fromString("www.b.test")));
+    }
+
+    @Test
+    void dropsExpiredZonesBeforeGoodOnes() throws Exception {
+        DelegationCache cache = new DelegationCache(ROOTS, 2);
+        cache.put(delegation("a.test", HOUR));
+        cache.put(delegation("b.test", 0));
+        cache.put(delegation("c.test", HOUR));
+        assertEquals(2, cache.getSize());
+        assertEquals(0, cache.getEvictions());
+        assertEquals(DNSName.fromString("a.test"), cache.closest(DNSName.fromString("www.a.test")).zone());
+        assertEquals(DNSName.fromString("c.test"), cache.closest(DNSName.fromString("www.c.test")).zone());
+    }
+
+    private static DelegationCache.Delegation delegation(String zone, long ttlNanos) {
+        return new DelegationCache.Delegation(DNSName.fromString(zone), List.of(DNSName.fromString("ns1." + zone)),
+                List.of(new InetSocketAddress("127.0.0.3", 53)), System.nanoTime() + ttlNanos);
+    }
+}
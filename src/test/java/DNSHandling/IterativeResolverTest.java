@@ -0,0 +1,213 @@
+package DNSHandling;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+//iterative resolution against the pretend hierarchy in tools/zones, each zone served by a StubAuthority on its own
+//loopback address, plus a lame.test zone with one lame server, which answers with a referral back up to the roots,
+//and a broken.test zone with nothing but that server
+class IterativeResolverTest {
+    private static final Path ZONES = Path.of("tools/zones");
+    private static final String ROOT = "127.0.0.2";
+    private static final String LAME = "127.0.0.6";
+    private static final String LAME_GOOD = "127.0.0.7";
+
+    private static final List<StubAuthority> authorities = new ArrayList<>();
+    private static StubAuthority root;
+    private static StubAuthority test;
+    private static StubAuthority example;
+    private static StubAuthority other;
+    private static StubAuthority lame;
+    private static int port;
+
+    private UpstreamResolver resolver;
+    private IterativeResolver iterative;
+
+    @BeforeAll
+    static void startAuthorities() throws Exception {
+        List<String> testZone = new ArrayList<>(Files.readAllLines(ZONES.resolve("test.zone")));
+        testZone.add("lame.test.      3600 NS ns1.lame.test.");
+        testZone.add("lame.test.      3600 NS ns2.lame.test.");
+        testZone.add("ns1.lame.test.  3600 A  " + LAME);
+        testZone.add("ns2.lame.test.  3600 A  " + LAME_GOOD);
+        testZone.add("broken.test.    3600 NS ns1.lame.test.");
+        List<String> lameZone = List.of(
+                "lame.test.      3600 SOA ns2.lame.test. hostmaster.lame.test. 1 3600 600 86400 300",
+                "lame.test.      3600 NS  ns1.lame.test.",
+                "lame.test.      3600 NS  ns2.lame.test.");
+        List<String> lameNames = new ArrayList<>(lameZone);
+        for (int i = 0; i < 20; i++) {
+            lameNames.add("host" + i + ".lame.test. 300 A 192.0.2.60");
+        }
+
+        //every authority has to be on the same port, since that's the one glue addresses are asked on
+        for (int attempt = 0; ; attempt++) {
+            try (DatagramSocket probe = new DatagramSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            try {
+                root = start(ROOT, Files.readAllLines(ZONES.resolve("root.zone")));
+                test = start("127.0.0.3", testZone);
+                example = start("127.0.0.4", Files.readAllLines(ZONES.resolve("example.test.zone")));
+                other = start("127.0.0.5", Files.readAllLines(ZONES.resolve("other.test.zone")));
+                //the lame server serves the root zone, so anything under lame.test gets referred back to test.
+                lame = start(LAME, Files.readAllLines(ZONES.resolve("root.zone")));
+                start(LAME_GOOD, lameNames);
+                break;
+            } catch (IOException e) {
+                stopAuthorities();
+                if (attempt == 10) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static StubAuthority start(String address, List<String> zone) throws IOException {
+        StubAuthority authority = new StubAuthority(new InetSocketAddress(InetAddress.getByName(address), port), zone);
+        authorities.add(authority);
+        return authority;
+    }
+
+    @AfterAll
+    static void stopAuthorities() {
+        authorities.forEach(StubAuthority::close);
+        authorities.clear();
+    }
+
+    @BeforeEach
+    void openResolver() throws IOException {
+        resolver = new UpstreamResolver(500, 0, 0);
+        iterative = new IterativeResolver(List.of(new InetSocketAddress(InetAddress.getByName(ROOT), port)), port, 100);
+    }
+
+    @AfterEach
+    void closeResolver() {
+        resolver.close();
+    }
+
+    @Test
+    void walksDownFromTheRoot() throws Exception {
+        long rootQueries = root.getQueries();
+        long testQueries = test.getQueries();
+        long exampleQueries = example.getQueries();
+
+        MessageView reply = resolve("www.example.test", DNSRecord.TYPE_A);
+        assertEquals(0, reply.getRcode());
+        assertEquals(List.of("192.0.2.10"), addresses(reply));
+        //it looks like it came from a recursive resolver
+        assertEquals(0, reply.getFlags() & (1 << 10));
+        assertNotEquals(0, reply.getFlags() & DNSHeader.RECURSION_AVAILABLE);
+        assertEquals(1, root.getQueries() - rootQueries);
+        assertEquals(1, test.getQueries() - testQueries);
+        assertEquals(1, example.getQueries() - exampleQueries);
+        assertEquals(2, iterative.getReferrals());
+
+        //both zone cuts are remembered, so the next name under example.test. goes straight to its server
+        DelegationCache delegations = iterative.getDelegations();
+        assertEquals(2, delegations.getSize());
+        assertEquals(DNSName.fromString("example.test"), delegations.closest(DNSName.fromString("mail.example.test")).zone());
+        reply = resolve("mail.example.test", DNSRecord.TYPE_A);
+        assertEquals(List.of("192.0.2.25"), addresses(reply));
+        assertEquals(1, root.getQueries() - rootQueries);
+        assertEquals(1, test.getQueries() - testQueries);
+        assertEquals(2, example.getQueries() - exampleQueries);
+        assertEquals(2, iterative.getReferrals());
+
+        //negative answers come back as they are
+        assertEquals(CachedResponse.RCODE_NXDOMAIN, resolve("missing.example.test", DNSRecord.TYPE_A).getRcode());
+        reply = resolve("www.example.test", DNSRecord.TYPE_MX);
+        assertEquals(0, reply.getRcode());
+        assertEquals(0, reply.getAnswerCount());
+    }
+
+    @Test
+    void findsGluelessNameServers() throws Exception {
+        //test. refers other.test. to ns-other.example.test. without an address, which has to be looked up first
+        MessageView reply = resolve("api.other.test", DNSRecord.TYPE_A);
+        assertEquals(List.of("192.0.2.40"), addresses(reply));
+        assertEquals(1, iterative.getGluelessLookups());
+        DelegationCache.Delegation delegation = iterative.getDelegations().closest(DNSName.fromString("api.other.test"));
+        assertEquals(DNSName.fromString("other.test"), delegation.zone());
+        assertEquals(List.of(new InetSocketAddress(InetAddress.getByName("127.0.0.5"), port)), delegation.addresses());
+
+        //the address is kept with the delegation, so it isn't looked up again
+        resolve("api.other.test", DNSRecord.TYPE_A);
+        assertEquals(1, iterative.getGluelessLookups());
+    }
+
+    @Test
+    void chasesCnamesAcrossZones() throws Exception {
+        //www.other.test. is a CNAME to www.example.test., which other.test.'s server can't answer for
+        long exampleQueries = example.getQueries();
+        MessageView reply = resolve("www.other.test", DNSRecord.TYPE_A);
+        assertEquals(0, reply.getRcode());
+        assertEquals(2, reply.getAnswerCount());
+        assertEquals(DNSRecord.TYPE_CNAME, reply.getRecordType(0));
+        assertEquals(DNSName.fromString("www.other.test"), DNSName.fromView(reply, reply.getRecordNameOffset(0)));
+        assertEquals(DNSName.fromString("www.example.test"), DNSName.fromView(reply, reply.getRdataOffset(0)));
+        assertEquals(DNSName.fromString("www.example.test"), DNSName.fromView(reply, reply.getRecordNameOffset(1)));
+        assertEquals(List.of("192.0.2.10"), addresses(reply));
+        //once for the glueless name server's address, once for the CNAME's target
+        assertEquals(2, example.getQueries() - exampleQueries);
+    }
+
+    @Test
+    void skipsLameServers() throws Exception {
+        //the first server is picked at random, so with 20 names the lame one is asked first some of the time
+        long lameQueries = lame.getQueries();
+        for (int i = 0; i < 20; i++) {
+            MessageView reply = resolve("host" + i + ".lame.test", DNSRecord.TYPE_A);
+            assertEquals(List.of("192.0.2.60"), addresses(reply), "host" + i);
+        }
+        long asked = lame.getQueries() - lameQueries;
+        assertTrue(asked > 0, "the lame server was never asked");
+        assertEquals(asked, iterative.getLameReplies());
+    }
+
+    @Test
+    void failsWhenEveryServerIsLame() throws Exception {
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> iterative.resolve(new DNSQuestion(DNSName.fromString("www.broken.test"), DNSRecord.TYPE_A, 1), resolver).join());
+        assertInstanceOf(IOException.class, e.getCause());
+        assertEquals(1, iterative.getLameReplies());
+        assertEquals(1, iterative.getFailures());
+    }
+
+    private MessageView resolve(String name, int type) throws IOException {
+        byte[] reply = iterative.resolve(new DNSQuestion(DNSName.fromString(name), type, 1), resolver).join();
+        assertNotNull(reply);
+        return MessageView.wrap(reply);
+    }
+
+    //the A records in the answer section
+    private static List<String> addresses(MessageView reply) throws IOException {
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < reply.getAnswerCount(); i++) {
+            if (reply.getRecordType(i) == DNSRecord.TYPE_A) {
+                byte[] address = new byte[4];
+                reply.getBuffer().get(reply.getRdataOffset(i), address);
+                addresses.add(InetAddress.getByAddress(address).getHostAddress());
+            }
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,101 @@
+package DNSHandling;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+//a whole server on a free loopback port for tests, started on a daemon thread and left running
+//startServer never returns, and the cache is static, so tests that share a JVM should ask for names no other test uses
+class LoopbackServer {
+    private final int port;
+
+    private LoopbackServer(int port) {
+        this.port = port;
+    }
+
+    //settings are --name=value like on the command line, the port is picked here
+    static LoopbackServer start(String... settings) throws IOException {
+        int port = freePort();
+        String[] args = new String[settings.length + 1];
+        args[0] = "--port=" + port;
+        System.arraycopy(settings, 0, args, 1, settings.length);
+        DNSServer server = new DNSServer(ServerConfig.fromArgs(args));
+        Thread thread = new Thread(() -> {
+            try {
+                server.startServer();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "test-server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+
+        //wait until it answers
+        LoopbackServer started = new LoopbackServer(port);
+        try (Client client = started.client(200)) {
+            for (int i = 0; ; i++) {
+                try {
+                    client.ask("ready" + port + ".loopback.test", DNSRecord.TYPE_A);
+                    return started;
+                } catch (SocketTimeoutException e) {
+                    if (i == 50) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    //a port free for both UDP and TCP, as far as we can tell
+    static int freePort() throws IOException {
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    Client client(int timeoutMs) throws IOException {
+        return new Client(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), timeoutMs);
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    //one UDP socket asking one question at a time, like a plain stub resolver
+    static class Client implements AutoCloseable {
+        private final DatagramSocket socket;
+        private final InetSocketAddress server;
+        private final byte[] buffer = new byte[4096];
+        private int id;
+
+        Client(InetSocketAddress server, int timeoutMs) throws IOException {
+            this.server = server;
+            socket = new DatagramSocket();
+            socket.setSoTimeout(timeoutMs);
+        }
+
+        //the reply to name and type, throws SocketTimeoutException if none comes
+        MessageView ask(String name, int type) throws IOException {
+            id = (id + 1) & 0xFFFF;
+            byte[] query = DNSMessage.buildQuery(new DNSQuestion(DNSName.fromString(name), type, 1), id, 0).toBytes();
+            socket.send(new DatagramPacket(query, query.length, server));
+            while (true) {
+                DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+                socket.receive(reply);
+                //a late reply to an earlier query that timed out isn't the one we're waiting on
+                if (((buffer[0] & 0xFF) << 8 | (buffer[1] & 0xFF)) == id) {
+                    byte[] copy = new byte[reply.getLength()];
+                    System.arraycopy(buffer, 0, copy, 0, copy.length);
+                    return MessageView.wrap(copy);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package DNSHandling;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+//the off-heap index and slab: entries going in and coming back out, being replaced, evicted and removed
+class OffHeapCacheEngineTest {
+    private static final long MIN_BYTES = 16L << 20;
+
+    private OffHeapCacheEngine cache;
+
+    @AfterEach
+    void closeCache() {
+        cache.close();
+    }
+
+    @Test
+    void returnsWhatWasPut() {
+        cache = new OffHeapCacheEngine(1000, MIN_BYTES);
+        DNSQuestion question = question("www.example.com");
+        CachedResponse response = response(question, 1);
+        cache.put(question, response, response.getExpiresAt());
+
+        CachedResponse found = cache.get(question);
+        assertNotNull(found);
+        assertArrayEquals(response.getWire(), found.getWire());
+        assertArrayEquals(response.getTtlOffsets(), found.getTtlOffsets());
+        assertEquals(response.getExpiresAt(), found.getExpiresAt());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getHits());
+
+        //same name, different type, is a different key
+        assertNull(cache.get(new DNSQuestion(question.getQName(), DNSRecord.TYPE_MX, 1)));
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void replacesAnEntryPutAgain() {
+        cache = new OffHeapCacheEngine(1000, MIN_BYTES);
+        DNSQuestion question = question("www.example.com");
+        CachedResponse first = response(question, 1);
+        cache.put(question, first, first.getExpiresAt());
+        CachedResponse second = response(question, 2);
+        cache.put(question, second, second.getExpiresAt());
+
+        assertEquals(1, cache.size());
+        assertArrayEquals(second.getWire(), cache.get(question).getWire());
+    }
+
+    @Test
+    void dropsExpiredEntries() {
+        cache = new OffHeapCacheEngine(1000, MIN_BYTES);
+        DNSQuestion question = question("www.example.com");
+        cache.put(question, response(question, 1), System.nanoTime() - 1);
+        assertNull(cache.get(question));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    void evictsOnceFull() {
+        //two entries a segment
+        cache = new OffHeapCacheEngine(32, MIN_BYTES);
+        DNSQuestion last = null;
+        for (int i = 0; i < 1000; i++) {
+            last = question(name(i));
+            CachedResponse response = response(last, i);
+            cache.put(last, response, response.getExpiresAt());
+            assertTrue(cache.size() <= 32, "size " + cache.size() + " after " + (i + 1));
+        }
+        assertTrue(cache.getEvictions() >= 1000 - 32, cache.toString());
+        assertNotNull(cache.get(last));
+    }
+
+    @Test
+    void keepsProbeRunsWholeAfterRemovals() {
+        //64 entries a segment in 128 slots, so with 768 of them there are plenty of collisions and long runs
+        cache = new OffHeapCacheEngine(1024, MIN_BYTES);
+        int count = 768;
+        for (int i = 0; i < count; i++) {
+            DNSQuestion question = question(name(i));
+            CachedResponse response = response(question, i);
+            cache.put(question, response, response.getExpiresAt());
+        }
+        //some segments fill up and evict, so only count on what's still there
+        int present = 0;
+        boolean[] kept = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            kept[i] = cache.get(question(name(i))) != null;
+            present += kept[i] ? 1 : 0;
+        }
+        assertEquals(present, cache.size());
+
+        //removing every other one shifts entries back along their runs, every survivor must still be found
+        for (int i = 0; i < count; i += 2) {
+            cache.remove(question(name(i)));
+        }
+        for (int i = 0; i < count; i++) {
+            CachedResponse found = cache.get(question(name(i)));
+            if (i % 2 == 0) {
+                assertNull(found, name(i));
+            } else if (kept[i]) {
+                assertNotNull(found, name(i));
+                assertArrayEquals(address(i), found.getFirstAnswer().getRData());
+            }
+        }
+
+        //putting them back reuses the freed chunks instead of carving out new ones
+        long allocated = cache.getAllocatedBytes();
+        for (int i = 0; i < count; i += 2) {
+            if (kept[i]) {
+                DNSQuestion question = question(name(i));
+                CachedResponse response = response(question, i);
+                cache.put(question, response, response.getExpiresAt());
+            }
+        }
+        assertEquals(allocated, cache.getAllocatedBytes());
+        assertEquals(present, cache.size());
+        for (int i = 0; i < count; i++) {
+            if (kept[i]) {
+                assertArrayEquals(address(i), cache.get(question(name(i))).getFirstAnswer().getRData(), name(i));
+            }
+        }
+    }
+
+    //all the same length, so every entry takes the same size of chunk; the smallest cache has a single page
+    //per segment, and once that's carved up for one size an entry of another size has nowhere to go
+    private static String name(int n) {
+        return String.format("n%04d.example.com", n);
+    }
+
+    private static DNSQuestion question(String name) {
+        return new DNSQuestion(DNSName.fromString(name), DNSRecord.TYPE_A, 1);
+    }
+
+    //an answer of one A record, its address telling it apart from others
+    private static CachedResponse response(DNSQuestion question, int n) {
+        return CachedResponse.fromRecord(question, new DNSRecord(question.getQName(), DNSRecord.TYPE_A, 1, 300, 4, address(n)));
+    }
+
+    private static byte[] address(int n) {
+        return new byte[]{10, 0, (byte) (n >>> 8), (byte) n};
+    }
+}
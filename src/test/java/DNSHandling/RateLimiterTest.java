@@ -0,0 +1,121 @@
+package DNSHandling;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+//token buckets per client subnet and response, and what happens to the responses over the limit
+class RateLimiterTest {
+    private static final int RATE = 10;
+    private static final int BURST = 5;
+
+    @Test
+    void drainsAndRefills() throws Exception {
+        RateLimiter limiter = new RateLimiter(1024, RATE, BURST, RateLimiter.Action.DROP, 2, 24, 56);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        DNSQuestion question = question("www.example.com");
+        byte[] reply = reply(question, 0, 1);
+        for (int i = 0; i < BURST; i++) {
+            assertTrue(limiter.allow(client, question, reply), "response " + i);
+        }
+        assertFalse(limiter.allow(client, question, reply));
+
+        //the rest of its subnet shares the buckets, other subnets and other names have their own
+        assertFalse(limiter.allow(InetAddress.getByName("192.0.2.200"), question, reply));
+        assertTrue(limiter.allow(InetAddress.getByName("198.51.100.1"), question, reply));
+        DNSQuestion other = question("mail.example.com");
+        assertTrue(limiter.allow(client, other, reply(other, 0, 1)));
+
+        //10 tokens a second, so after 300ms there are at least 3 more, and never more than the burst
+        Thread.sleep(300);
+        int allowed = 0;
+        for (int i = 0; i < 2 * BURST; i++) {
+            if (limiter.allow(client, question, reply)) {
+                allowed++;
+            }
+        }
+        assertTrue(allowed >= 3 && allowed <= BURST, allowed + " allowed after 300ms");
+    }
+
+    @Test
+    void countsNegativeAnswersAgainstTheDomain() throws Exception {
+        RateLimiter limiter = new RateLimiter(1024, RATE, BURST, RateLimiter.Action.DROP, 2, 24, 56);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        //random names under one domain, all NXDOMAIN, all take from the same buckets
+        for (int i = 0; i < BURST; i++) {
+            DNSQuestion question = question("r" + i + ".flood.example.com");
+            assertTrue(limiter.allow(client, question, reply(question, CachedResponse.RCODE_NXDOMAIN, 0)));
+        }
+        DNSQuestion question = question("another.flood.example.com");
+        assertFalse(limiter.allow(client, question, reply(question, CachedResponse.RCODE_NXDOMAIN, 0)));
+    }
+
+    @Test
+    void truncatesOrDropsWhatsOverTheLimit() throws Exception {
+        InetAddress client = InetAddress.getByName("2001:db8::1");
+        DNSQuestion question = question("www.example.com");
+        int questionEnd = MessageView.HEADER_LENGTH + question.getQName().getWireLength() + 4;
+
+        RateLimiter truncating = new RateLimiter(1024, RATE, BURST, RateLimiter.Action.TRUNCATE, 2, 24, 56);
+        int[] sent = new int[2];
+        byte[][] last = new byte[1][];
+        DNSServer.Responder responder = (reply, length) -> {
+            sent[length == questionEnd ? 1 : 0]++;
+            last[0] = Arrays.copyOf(reply, length);
+        };
+        for (int i = 0; i < BURST + 3; i++) {
+            truncating.limit(client, question, responder).respond(reply(question, 0, 1), reply(question, 0, 1).length);
+        }
+        //the first ones whole, the rest cut down to the question with TC set so the client comes back over TCP
+        assertEquals(BURST, sent[0]);
+        assertEquals(3, sent[1]);
+        assertTrue(DNSHeader.isTruncated(last[0]));
+        assertEquals(0, MessageView.wrap(last[0]).getAnswerCount());
+        assertEquals(3, truncating.getTruncated());
+        assertEquals(Map.of("2001:db8:0:0:0:0:0:0/56", 3L), truncating.getLimitedSubnets());
+
+        RateLimiter dropping = new RateLimiter(1024, RATE, BURST, RateLimiter.Action.DROP, 2, 24, 56);
+        int[] count = new int[1];
+        for (int i = 0; i < BURST + 3; i++) {
+            dropping.limit(client, question, (reply, length) -> count[0]++).respond(reply(question, 0, 1), reply(question, 0, 1).length);
+        }
+        assertEquals(BURST, count[0]);
+        assertEquals(3, dropping.getDropped());
+
+        //slip 1 truncates every limited response, so nothing is ever just dropped
+        RateLimiter slipping = new RateLimiter(1024, RATE, BURST, RateLimiter.Action.SLIP, 1, 24, 56);
+        for (int i = 0; i < BURST + 3; i++) {
+            slipping.limit(client, question, (reply, length) -> {}).respond(reply(question, 0, 1), reply(question, 0, 1).length);
+        }
+        assertEquals(3, slipping.getTruncated());
+        assertEquals(0, slipping.getDropped());
+    }
+
+    private static DNSQuestion question(String name) {
+        return new DNSQuestion(DNSName.fromString(name), DNSRecord.TYPE_A, 1);
+    }
+
+    //a reply with the given rcode and that many A records for the question name
+    private static byte[] reply(DNSQuestion question, int rcode, int answers) {
+        byte[] buffer = new byte[512];
+        MessageWriter writer = new MessageWriter().reset(ByteBuffer.wrap(buffer), 0);
+        writer.writeHeader(0x1234, 0x8180 | rcode, 1, answers, 0, 0);
+        writer.writeName(question.getQName().getWire());
+        writer.writeShort(question.getQType());
+        writer.writeShort(question.getQClass());
+        for (int i = 0; i < answers; i++) {
+            writer.writeShort(0xC000 | MessageView.HEADER_LENGTH);
+            writer.writeShort(DNSRecord.TYPE_A);
+            writer.writeShort(1);
+            writer.writeInt(300);
+            writer.writeShort(4);
+            writer.writeBytes(new byte[]{(byte) 192, 0, 2, (byte) i});
+        }
+        return Arrays.copyOf(buffer, writer.getLength());
+    }
+}
@@ -0,0 +1,53 @@
+package DNSHandling;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+//DNS over TCP through a whole server, against a slow stub upstream so answers are still coming when the client is done
+class TcpFrontEndTest {
+    private static final int QUERIES = 20;
+
+    @Test
+    void answersEverythingAfterTheClientHalfCloses() throws Exception {
+        try (StubServer upstream = new StubServer(0, 50, 0, 300, 0, 0)) {
+            LoopbackServer server = LoopbackServer.start("--upstreams=127.0.0.1:" + upstream.getPort(), "--log-level=warn");
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()), 1000);
+                socket.setSoTimeout(5000);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                for (int i = 0; i < QUERIES; i++) {
+                    DNSQuestion question = new DNSQuestion(DNSName.fromString("n" + i + ".halfclose.test"), DNSRecord.TYPE_A, 1);
+                    byte[] query = DNSMessage.buildQuery(question, i, 0).toBytes();
+                    out.writeShort(query.length);
+                    out.write(query);
+                }
+                out.flush();
+                //every query is out, but none of the answers can be back from the upstream yet
+                socket.shutdownOutput();
+
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                Set<Integer> answered = new HashSet<>();
+                for (int i = 0; i < QUERIES; i++) {
+                    byte[] reply = new byte[in.readUnsignedShort()];
+                    in.readFully(reply);
+                    MessageView view = MessageView.wrap(reply);
+                    assertEquals(0, view.getRcode());
+                    answered.add(view.getId());
+                }
+                assertEquals(QUERIES, answered.size());
+                //and then the server closes its side too
+                assertEquals(-1, in.read());
+            } catch (EOFException e) {
+                throw new AssertionError("the server closed the connection with answers still to send", e);
+            }
+        }
+    }
+}
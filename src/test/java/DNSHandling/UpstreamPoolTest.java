@@ -0,0 +1,186 @@
+package DNSHandling;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+//server selection, hedging and backoff in UpstreamPool, against stub upstreams on loopback with set delays and loss
+class UpstreamPoolTest {
+    private static final int TIMEOUT_MS = 1000;
+    private static final AtomicInteger names = new AtomicInteger();
+
+    private UpstreamResolver resolver;
+
+    @BeforeEach
+    void openResolver() throws IOException {
+        resolver = new UpstreamResolver(TIMEOUT_MS, 0, 0);
+    }
+
+    @AfterEach
+    void closeResolver() {
+        resolver.close();
+    }
+
+    @Test
+    void slowServerIsPickedLess() throws Exception {
+        try (StubServer slow = new StubServer(0, 60, 0, 300, 0, 0);
+             StubServer fast = new StubServer(0, 2, 0, 300, 0, 0)) {
+            UpstreamPool pool = new UpstreamPool(List.of(address(slow), address(fast)), 0);
+            UpstreamPool.Server slowServer = pool.getServer(0);
+            UpstreamPool.Server fastServer = pool.getServer(1);
+            ask(pool);
+            ask(pool);
+            //one query each, the slow one's RTT goes up to its delay, less a little if it was asked first
+            //and then passed over
+            assertTrue(slowServer.getSrtt() >= 55_000_000L, pool.toString());
+            for (int i = 0; i < 98; i++) {
+                ask(pool);
+            }
+            //each gets tried once while it has no RTT yet, after that the fast one gets everything
+            //until the slow one's RTT has decayed below it, which takes far more than 100 queries
+            assertTrue(slow.getQueries() <= 2, "slow server got " + slow.getQueries() + " queries");
+            assertTrue(fast.getQueries() >= 98, "fast server got " + fast.getQueries() + " queries");
+            //the slow one's RTT shrinks a little every time it's passed over, but it's still well behind
+            assertTrue(slowServer.getSrtt() > 2 * fastServer.getSrtt(), pool.toString());
+            pool.close();
+        }
+    }
+
+    @Test
+    void hedgesOnceThePrimaryIsLate() throws Exception {
+        //the primary loses one query in five, so without hedging those would wait out the whole timeout
+        try (StubServer lossy = new StubServer(0, 5, 0, 300, 0, 20);
+             StubServer backup = new StubServer(0, 20, 0, 300, 0, 0)) {
+            UpstreamPool pool = new UpstreamPool(List.of(address(lossy), address(backup)), 90);
+            //both get their first RTT, then the lossy one is the fastest from then on
+            for (int i = 0; i < 20; i++) {
+                ask(pool);
+            }
+            long hedgeDelay = pool.getServer(0).getHedgeDelay(90);
+            assertTrue(hedgeDelay >= 5_000_000L && hedgeDelay < 20_000_000L, "hedge delay " + hedgeDelay / 1_000_000.0 + "ms");
+
+            long droppedBefore = lossy.getDropped();
+            long hedgeWinsBefore = pool.getHedgeWins();
+            long hedgesBefore = pool.getHedges();
+            long errorsBefore = pool.getErrors();
+            int queries = 200;
+            long slowest = 0;
+            for (int i = 0; i < queries; i++) {
+                long start = System.nanoTime();
+                ask(pool);
+                slowest = Math.max(slowest, System.nanoTime() - start);
+            }
+            long dropped = lossy.getDropped() - droppedBefore;
+            long hedges = pool.getHedges() - hedgesBefore;
+            long hedgeWins = pool.getHedgeWins() - hedgeWinsBefore;
+            assertTrue(dropped > 0, "nothing was dropped");
+            //every lost query was answered by the other server instead, so none was left to time out; that's usually
+            //the backup a hedge delay plus its 20ms later, or the primary's own hedge in the odd second it spends backed
+            //off after losing three in a row
+            assertTrue(hedgeWins > 0, dropped + " dropped, " + hedgeWins + " won by hedges");
+            assertEquals(0, pool.getErrors() - errorsBefore, pool.toString());
+            assertTrue(slowest < TIMEOUT_MS / 4 * 1_000_000L, "slowest query took " + slowest / 1_000_000 + "ms");
+            //queries the primary answered in its usual time weren't hedged
+            assertTrue(hedges < queries / 2, hedges + " hedges for " + queries + " queries");
+            pool.close();
+        }
+    }
+
+    @Test
+    void stopsWaitingOnADeadServer() throws Exception {
+        StubServer primary = new StubServer(0, 0, 0, 300, 0, 0);
+        int port = primary.getPort();
+        try (StubServer backup = new StubServer(0, 10, 0, 300, 0, 0)) {
+            UpstreamPool pool = new UpstreamPool(List.of(address(primary), address(backup)), 90);
+            UpstreamPool.Server primaryServer = pool.getServer(0);
+            for (int i = 0; i < 10; i++) {
+                ask(pool);
+            }
+            primary.close();
+            try (StubServer dead = restart(port, 100)) {
+                long queriesBefore = dead.getQueries();
+                for (int i = 0; i < 40; i++) {
+                    ask(pool);
+                }
+                //the hedges answer before the dead server's queries time out, so those never count against it,
+                //but losing a few hedges in a row backs it off like a timeout would, and the backup takes over
+                //instead of every query waiting out a hedge delay first
+                long asked = dead.getQueries() - queriesBefore;
+                assertTrue(asked <= 10, "dead server got " + asked + " of 40 queries");
+                assertTrue(primaryServer.getFailures() >= 1, pool.toString());
+            }
+            pool.close();
+        }
+    }
+
+    @Test
+    void backoffResetsAfterSuccess() throws Exception {
+        StubServer dead = new StubServer(0, 0, 0, 300, 0, 100);
+        int port = dead.getPort();
+        UpstreamPool pool = new UpstreamPool(List.of(address(dead)), 0);
+        UpstreamPool.Server server = pool.getServer(0);
+        for (int i = 0; i < 3; i++) {
+            try {
+                ask(pool);
+            } catch (CompletionException e) {
+                //expected, it isn't answering
+            }
+        }
+        assertEquals(3, server.getFailures());
+        //three failures in a row back it off for 4 seconds
+        assertTrue(server.unhealthyUntil - System.nanoTime() > 3_000_000_000L);
+
+        dead.close();
+        try (StubServer alive = restart(port, 0)) {
+            //it's the only server, so it's still asked while backing off
+            ask(pool);
+            assertEquals(1, alive.getQueries());
+            assertEquals(0, server.getFailures());
+            assertTrue(server.isHealthy(System.nanoTime()));
+        }
+
+        //the next failure starts again from the shortest backoff
+        try (StubServer deadAgain = restart(port, 100)) {
+            try {
+                ask(pool);
+            } catch (CompletionException e) {
+                //expected
+            }
+            assertEquals(1, deadAgain.getDropped());
+            assertEquals(1, server.getFailures());
+            assertTrue(server.unhealthyUntil - System.nanoTime() <= 1_000_000_000L);
+        }
+        pool.close();
+    }
+
+    //a new stub on the port of one just closed, which can take a moment to be free again
+    private static StubServer restart(int port, int dropPercent) throws Exception {
+        for (int i = 0; ; i++) {
+            try {
+                return new StubServer(port, 0, 0, 300, 0, dropPercent);
+            } catch (IOException e) {
+                if (i == 50) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private byte[] ask(UpstreamPool pool) {
+        DNSQuestion question = new DNSQuestion(DNSName.fromString("n" + names.incrementAndGet() + ".pool.test"), DNSRecord.TYPE_A, 1);
+        return pool.query(question, resolver).join();
+    }
+
+    private static InetSocketAddress address(StubServer stub) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), stub.getPort());
+    }
+}
@@ -0,0 +1,398 @@
+package DNSHandling;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* drives a resolver over UDP at a fixed rate and reports what it saw
+   the load is open loop: queries go out on schedule whether or not earlier ones have been answered,
+   and latency is measured from when a query was due to go out, so a stalled server can't hide its stall
+   by slowing the sender down
+   names come from a query log, replayed in order and looped, or from a synthetic set picked with a Zipf
+   distribution, so a few names get most of the queries the way real traffic does
+   a reply counts as a cache hit when an earlier reply for the same question should still be cached by its TTL,
+   everything else is a miss
+    --server=127.0.0.1:8053  --qps=1000  --duration-s=10  --senders=4  --timeout-ms=2000
+    --query-log=path   one query per line, "name [type]" or a BIND query log line
+    --names=10000  --zipf=1.0  --domain=example.test  --type=A   for the synthetic set
+*/
+public class LoadGenerator {
+    private InetSocketAddress server = new InetSocketAddress("127.0.0.1", 8053);
+    private int qps = 1000;
+    private int durationSeconds = 10;
+    private int senders = 4;
+    private int timeoutMs = 2000;
+    private String queryLog = "";
+    private int names = 10_000;
+    private double zipfExponent = 1.0;
+    private String domain = "example.test";
+    private int type = DNSRecord.TYPE_A;
+
+    private QuerySource source;
+    //when each question's last answer stops being cacheable, on the nanoTime clock
+    private final ConcurrentHashMap<DNSQuestion, Long> cachedUntil = new ConcurrentHashMap<>();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder[] rcodes = new LongAdder[16];
+    private final LatencyHistogram hitLatency = new LatencyHistogram();
+    private final LatencyHistogram missLatency = new LatencyHistogram();
+    private volatile boolean sending = true;
+    private volatile boolean receiving = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = fromArgs(args);
+        generator.run();
+        System.out.println(generator.report());
+    }
+
+    static LoadGenerator fromArgs(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Arguments must look like --name=value: " + arg);
+            }
+            generator.set(arg.substring(2, split), arg.substring(split + 1));
+        }
+        return generator;
+    }
+
+    void set(String name, String value) {
+        switch (name) {
+            case "server" -> server = parseAddress(value);
+            case "qps" -> qps = Integer.parseInt(value);
+            case "duration-s" -> durationSeconds = Integer.parseInt(value);
+            case "senders" -> senders = Integer.parseInt(value);
+            case "timeout-ms" -> timeoutMs = Integer.parseInt(value);
+            case "query-log" -> queryLog = value;
+            case "names" -> names = Integer.parseInt(value);
+            case "zipf" -> zipfExponent = Double.parseDouble(value);
+            case "domain" -> domain = value;
+            case "type" -> type = parseType(value);
+            default -> throw new IllegalArgumentException("Unknown setting: " + name);
+        }
+        if (qps < 1 || senders < 1 || durationSeconds < 1 || timeoutMs < 1) {
+            throw new IllegalArgumentException(name + " must be at least 1: " + value);
+        }
+    }
+
+    private static InetSocketAddress parseAddress(String value) {
+        int colon = value.lastIndexOf(':');
+        return colon < 0 ? new InetSocketAddress(value, 53)
+                : new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+    }
+
+    static int parseType(String value) {
+        return switch (value.toUpperCase()) {
+            case "A" -> DNSRecord.TYPE_A;
+            case "NS" -> DNSRecord.TYPE_NS;
+            case "CNAME" -> DNSRecord.TYPE_CNAME;
+            case "SOA" -> DNSRecord.TYPE_SOA;
+            case "PTR" -> DNSRecord.TYPE_PTR;
+            case "MX" -> DNSRecord.TYPE_MX;
+            case "TXT" -> 16;
+            case "AAAA" -> DNSRecord.TYPE_AAAA;
+            case "SRV" -> 33;
+            case "HTTPS" -> 65;
+            case "ANY" -> 255;
+            default -> Integer.parseInt(value.toUpperCase().startsWith("TYPE") ? value.substring(4) : value);
+        };
+    }
+
+    public void run() throws Exception {
+        for (int i = 0; i < rcodes.length; i++) {
+            rcodes[i] = new LongAdder();
+        }
+        source = queryLog.isEmpty() ? new ZipfNames(names, zipfExponent, domain, type) : QueryLog.read(Path.of(queryLog));
+        System.out.println("Sending " + qps + " queries/s to " + server + " for " + durationSeconds + "s from " + senders + " senders, " + source);
+
+        Sender[] workers = new Sender[senders];
+        long start = System.nanoTime();
+        for (int i = 0; i < senders; i++) {
+            workers[i] = new Sender(i, start);
+        }
+        for (Sender worker : workers) {
+            worker.start();
+        }
+
+        //a progress line every second
+        for (int second = 1; second <= durationSeconds; second++) {
+            Thread.sleep(Math.max(0, (start + second * 1_000_000_000L - System.nanoTime()) / 1_000_000));
+            System.out.println(second + "s  sent " + sent.sum() + "  received " + received.sum() + "  timeouts " + timeouts.sum());
+        }
+        sending = false;
+        for (Sender worker : workers) {
+            worker.sendThread.join();
+        }
+        //give the last queries their full timeout before giving up on them
+        Thread.sleep(timeoutMs);
+        receiving = false;
+        for (Sender worker : workers) {
+            worker.receiveThread.join();
+            worker.countUnanswered();
+            worker.socket.close();
+        }
+    }
+
+    public String report() {
+        long answered = received.sum();
+        StringBuilder out = new StringBuilder();
+        out.append("Sent: ").append(sent.sum())
+                .append(", Received: ").append(answered)
+                .append(", Timeouts: ").append(timeouts.sum())
+                .append(", Send errors: ").append(sendErrors.sum()).append('\n');
+        out.append("Throughput: ").append(answered / durationSeconds).append(" replies/s (target ").append(qps).append(")\n");
+        out.append("Rcodes:");
+        String[] rcodeNames = {"NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
+        for (int i = 0; i < rcodes.length; i++) {
+            long count = rcodes[i].sum();
+            if (count > 0) {
+                out.append(' ').append(i < rcodeNames.length ? rcodeNames[i] : "RCODE" + i).append('=').append(count);
+            }
+        }
+        out.append('\n');
+        out.append(latencyLine("Hits", hitLatency)).append('\n');
+        out.append(latencyLine("Misses", missLatency));
+        return out.toString();
+    }
+
+    private static String latencyLine(String label, LatencyHistogram histogram) {
+        return label + ": " + histogram.getCount() +
+                "  p50 " + millis(histogram.getPercentile(50)) +
+                "  p99 " + millis(histogram.getPercentile(99)) +
+                "  p99.9 " + millis(histogram.getPercentile(99.9)) +
+                "  max " + millis(histogram.getMax());
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.3fms", micros / 1000.0);
+    }
+
+    //one socket with a thread sending on schedule and another reading the replies
+    //query IDs are a running count, so the ID of a reply says which query it answers
+    private class Sender {
+        final DatagramSocket socket;
+        final Thread sendThread;
+        final Thread receiveThread;
+        final long start;
+        //this sender's share of the rate, its queries are interleaved with the other senders'
+        final long intervalNanos;
+        final long offsetNanos;
+        //when each outstanding ID was due to go out, 0 once it's been answered or given up on
+        final AtomicLongArray dueAt = new AtomicLongArray(0x10000);
+        //written before dueAt and read after it, so the atomic array orders them
+        final DNSQuestion[] questions = new DNSQuestion[0x10000];
+        final boolean[] expectHit = new boolean[0x10000];
+
+        Sender(int index, long start) throws IOException {
+            this.start = start;
+            this.intervalNanos = senders * 1_000_000_000L / qps;
+            this.offsetNanos = intervalNanos * index / senders;
+            socket = new DatagramSocket();
+            socket.setSoTimeout(100);
+            socket.connect(server);
+            sendThread = new Thread(this::sendLoop, "load-send-" + index);
+            receiveThread = new Thread(this::receiveLoop, "load-receive-" + index);
+        }
+
+        void start() {
+            receiveThread.start();
+            sendThread.start();
+        }
+
+        void sendLoop() {
+            long end = start + durationSeconds * 1_000_000_000L;
+            for (long count = 0; sending; count++) {
+                long due = start + offsetNanos + count * intervalNanos;
+                if (due - end >= 0) {
+                    return;
+                }
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                int id = (int) (count & 0xFFFF);
+                DNSQuestion question = source.next();
+                long now = System.nanoTime();
+                Long until = cachedUntil.get(question);
+                questions[id] = question;
+                expectHit[id] = until != null && now - until < 0;
+                //0 means free, so a due time that happens to be 0 is nudged
+                if (dueAt.getAndSet(id, due == 0 ? 1 : due) != 0) {
+                    //that ID went out 65536 queries ago and never came back
+                    timeouts.increment();
+                }
+                try {
+                    byte[] query = DNSMessage.buildQuery(question, id, 0).toBytes();
+                    socket.send(new DatagramPacket(query, query.length));
+                    sent.increment();
+                } catch (IOException e) {
+                    dueAt.set(id, 0);
+                    sendErrors.increment();
+                }
+            }
+        }
+
+        void receiveLoop() {
+            byte[] buffer = new byte[65535];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (receiving) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                } catch (IOException e) {
+                    return;
+                }
+                long now = System.nanoTime();
+                if (packet.getLength() < MessageView.HEADER_LENGTH) {
+                    continue;
+                }
+                int id = (buffer[0] & 0xFF) << 8 | (buffer[1] & 0xFF);
+                long due = dueAt.getAndSet(id, 0);
+                if (due == 0) {
+                    //a duplicate, or an answer to a query already counted as timed out
+                    continue;
+                }
+                long latency = now - due;
+                if (latency > timeoutMs * 1_000_000L) {
+                    timeouts.increment();
+                    continue;
+                }
+                received.increment();
+                rcodes[buffer[3] & 0xF].increment();
+                (expectHit[id] ? hitLatency : missLatency).recordNanos(latency);
+                rememberTtl(questions[id], Arrays.copyOf(buffer, packet.getLength()), now);
+            }
+        }
+
+        //whatever is still outstanding at the end never got an answer
+        void countUnanswered() {
+            for (int id = 0; id < dueAt.length(); id++) {
+                if (dueAt.getAndSet(id, 0) != 0) {
+                    timeouts.increment();
+                }
+            }
+        }
+    }
+
+    //notes how long the resolver should keep this answer, from the first answer's TTL or the SOA's for a negative one
+    private void rememberTtl(DNSQuestion question, byte[] reply, long now) {
+        try {
+            MessageView view = MessageView.wrap(reply);
+            if (view.getRecordCount() == 0 || view.getRcode() == DNSHeader.RCODE_SERVFAIL) {
+                return;
+            }
+            long ttl = view.getRecordTtl(0);
+            Long until = cachedUntil.get(question);
+            //only a fresh answer starts a new TTL, a cached one is counting down the old one
+            if (until == null || now - until >= 0) {
+                cachedUntil.put(question, now + ttl * 1_000_000_000L);
+            }
+        } catch (IOException e) {
+            //a reply we can't parse can't be cached either
+        }
+    }
+
+    interface QuerySource {
+        DNSQuestion next();
+    }
+
+    //names 0 to n-1 under the domain, name k picked with probability proportional to 1 / (k+1)^exponent
+    static class ZipfNames implements QuerySource {
+        final DNSQuestion[] questions;
+        //cumulative probabilities, searched with a random number to pick a name
+        final double[] cumulative;
+        final double exponent;
+
+        ZipfNames(int count, double exponent, String domain, int type) {
+            this.exponent = exponent;
+            questions = new DNSQuestion[count];
+            cumulative = new double[count];
+            double total = 0;
+            for (int i = 0; i < count; i++) {
+                questions[i] = new DNSQuestion(DNSName.fromString("name" + i + "." + domain), type, 1);
+                total += 1 / Math.pow(i + 1, exponent);
+                cumulative[i] = total;
+            }
+            for (int i = 0; i < count; i++) {
+                cumulative[i] /= total;
+            }
+        }
+
+        @Override
+        public DNSQuestion next() {
+            int index = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+            //not found gives -(insertion point) - 1, and the insertion point is the name whose range it fell in
+            index = index >= 0 ? index : -index - 1;
+            return questions[Math.min(index, questions.length - 1)];
+        }
+
+        public String toString() {
+            return questions.length + " names, Zipf exponent " + exponent;
+        }
+    }
+
+    //queries from a log, handed out in order to whichever sender asks next, starting again at the end
+    static class QueryLog implements QuerySource {
+        final DNSQuestion[] questions;
+        final AtomicInteger next = new AtomicInteger();
+        final Path path;
+
+        QueryLog(Path path, DNSQuestion[] questions) {
+            this.path = path;
+            this.questions = questions;
+        }
+
+        //takes "name [type]" per line, or BIND query log lines like "... query: www.example.com IN AAAA +E(0) (127.0.0.1)"
+        //blank lines and lines starting with # are skipped
+        static QueryLog read(Path path) throws IOException {
+            List<DNSQuestion> questions = new ArrayList<>();
+            for (String line : Files.readAllLines(path)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int query = line.indexOf("query: ");
+                String[] fields = (query >= 0 ? line.substring(query + 7) : line).split("\\s+");
+                int type = DNSRecord.TYPE_A;
+                if (query >= 0 && fields.length >= 3) {
+                    //name, class, type
+                    type = parseType(fields[2]);
+                } else if (query < 0 && fields.length >= 2) {
+                    type = parseType(fields[1]);
+                }
+                questions.add(new DNSQuestion(DNSName.fromString(fields[0]), type, 1));
+            }
+            if (questions.isEmpty()) {
+                throw new IOException("No queries in " + path);
+            }
+            return new QueryLog(path, questions.toArray(new DNSQuestion[0]));
+        }
+
+        @Override
+        public DNSQuestion next() {
+            return questions[Math.floorMod(next.getAndIncrement(), questions.length)];
+        }
+
+        public String toString() {
+            return questions.length + " queries from " + path;
+        }
+    }
+}
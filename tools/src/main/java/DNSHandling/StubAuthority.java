@@ -0,0 +1,304 @@
+package DNSHandling;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+//a pretend authoritative server for one zone, so iterative mode can be tried against a hierarchy on loopback
+//the zone comes from a file with one record per line, "name ttl type data", names written out in full:
+//    example.test.      3600 SOA   ns1.example.test. hostmaster.example.test. 1 3600 600 86400 300
+//    example.test.      3600 NS    ns1.example.test.
+//    ns1.example.test.  3600 A     127.0.0.4
+//    www.example.test.  300  A     192.0.2.10
+//    alias.example.test. 300 CNAME www.example.test.
+//types can be A, AAAA, NS, CNAME, MX and SOA, the SOA's owner is the zone and anything after a ';' is ignored
+//NS records below the zone make a delegation, questions under it get a referral with whatever glue the zone has
+public class StubAuthority implements AutoCloseable {
+    //AA set on answers from the zone itself, referrals leave it clear
+    private static final int AUTHORITATIVE_ANSWER = 1 << 10;
+    private static final int RCODE_REFUSED = 5;
+    private static final int MAX_CHAIN = 8;
+
+    private final DatagramSocket socket;
+    private final DNSName zone;
+    private final HashMap<DNSName, List<Record>> records;
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder referrals = new LongAdder();
+
+    public StubAuthority(InetSocketAddress listen, List<String> zoneLines) throws IOException {
+        records = new HashMap<>();
+        DNSName apex = null;
+        for (String line : zoneLines) {
+            Record record = Record.parse(line);
+            if (record == null) {
+                continue;
+            }
+            records.computeIfAbsent(record.name, name -> new ArrayList<>()).add(record);
+            if (record.type == DNSRecord.TYPE_SOA && apex == null) {
+                apex = record.name;
+            }
+        }
+        if (apex == null) {
+            throw new IOException("The zone has no SOA record");
+        }
+        zone = apex;
+        socket = new DatagramSocket(listen);
+        Thread thread = new Thread(this::serve, "stub-authority-" + zone);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public StubAuthority(InetSocketAddress listen, Path zoneFile) throws IOException {
+        this(listen, Files.readAllLines(zoneFile));
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[4096];
+        MessageView query = new MessageView();
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                queries.increment();
+                query.reset(ByteBuffer.wrap(buffer), 0, packet.getLength());
+                if (query.getQuestionCount() == 0) {
+                    continue;
+                }
+                byte[] reply = buildReply(query);
+                socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+            } catch (IOException | RuntimeException e) {
+                //a garbled query just doesn't get an answer
+            }
+        }
+    }
+
+    private byte[] buildReply(MessageView query) {
+        DNSName name = DNSName.fromView(query, query.getQuestionNameOffset());
+        int type = query.getQuestionType();
+        List<Record> answer = new ArrayList<>();
+        List<Record> authority = new ArrayList<>();
+        List<Record> additional = new ArrayList<>();
+        int flags = DNSHeader.RESPONSE | (query.getFlags() & DNSHeader.RECURSION_DESIRED);
+
+        DNSName cut = name.isUnder(zone) ? findCut(name) : null;
+        if (!name.isUnder(zone)) {
+            flags |= RCODE_REFUSED;
+        } else if (cut != null) {
+            //below a delegation: point at the child zone's servers, with their addresses if we have them
+            referrals.increment();
+            for (Record ns : records.get(cut)) {
+                if (ns.type != DNSRecord.TYPE_NS) {
+                    continue;
+                }
+                authority.add(ns);
+                for (Record glue : records.getOrDefault(ns.target, List.of())) {
+                    if (glue.type == DNSRecord.TYPE_A || glue.type == DNSRecord.TYPE_AAAA) {
+                        additional.add(glue);
+                    }
+                }
+            }
+        } else {
+            flags |= AUTHORITATIVE_ANSWER;
+            //follow CNAMEs while they stay in this zone
+            DNSName current = name;
+            for (int hop = 0; hop < MAX_CHAIN && current != null; hop++) {
+                List<Record> here = records.get(current);
+                DNSName next = null;
+                if (here != null) {
+                    for (Record record : here) {
+                        if (record.type == type) {
+                            answer.add(record);
+                        } else if (record.type == DNSRecord.TYPE_CNAME && type != DNSRecord.TYPE_CNAME) {
+                            answer.add(record);
+                            next = record.target;
+                        }
+                    }
+                }
+                if (next == null || !next.isUnder(zone) || findCut(next) != null) {
+                    if (answer.isEmpty() && !exists(current)) {
+                        flags |= CachedResponse.RCODE_NXDOMAIN;
+                    }
+                    break;
+                }
+                current = next;
+            }
+            if (answer.isEmpty() || (flags & 0xF) != 0) {
+                authority.add(soa());
+            }
+        }
+
+        byte[] reply = new byte[4096];
+        MessageWriter writer = new MessageWriter().reset(ByteBuffer.wrap(reply), 0);
+        writer.writeHeader(query.getId(), flags, 1, answer.size(), authority.size(), additional.size());
+        writer.writeQuestion(query);
+        for (List<Record> section : List.of(answer, authority, additional)) {
+            for (Record record : section) {
+                writer.writeName(record.name.getWire());
+                writer.writeShort(record.type);
+                writer.writeShort(1);
+                writer.writeInt(record.ttl);
+                writer.writeShort(record.rdata.length);
+                writer.writeBytes(record.rdata);
+            }
+        }
+        return Arrays.copyOf(reply, writer.getLength());
+    }
+
+    //the delegation point name falls under, if there's one between it and the apex
+    private DNSName findCut(DNSName name) {
+        DNSName cut = null;
+        for (DNSName current = name; !current.equals(zone); current = current.parent()) {
+            List<Record> here = records.get(current);
+            if (here != null && here.stream().anyMatch(record -> record.type == DNSRecord.TYPE_NS)) {
+                //keep walking up, the highest cut is the one that counts
+                cut = current;
+            }
+        }
+        return cut;
+    }
+
+    //a name exists if it has records or anything below it does
+    private boolean exists(DNSName name) {
+        return records.keySet().stream().anyMatch(owner -> owner.isUnder(name));
+    }
+
+    private Record soa() {
+        for (Record record : records.get(zone)) {
+            if (record.type == DNSRecord.TYPE_SOA) {
+                return record;
+            }
+        }
+        throw new IllegalStateException("No SOA at " + zone);
+    }
+
+    public DNSName getZone() {
+        return zone;
+    }
+
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    public long getReferrals() {
+        return referrals.sum();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    public String toString() {
+        return "Zone: " + zone +
+                ", Address: " + socket.getLocalSocketAddress() +
+                ", Queries: " + getQueries() +
+                ", Referrals: " + getReferrals();
+    }
+
+    //one line of a zone file, with its rdata already in wire format
+    private static final class Record {
+        final DNSName name;
+        final int ttl;
+        final int type;
+        final byte[] rdata;
+        //the name an NS or CNAME points at, for glue and for following chains
+        final DNSName target;
+
+        Record(DNSName name, int ttl, int type, byte[] rdata, DNSName target) {
+            this.name = name;
+            this.ttl = ttl;
+            this.type = type;
+            this.rdata = rdata;
+            this.target = target;
+        }
+
+        //null for blank lines and comments
+        static Record parse(String line) throws IOException {
+            int comment = line.indexOf(';');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 4) {
+                if (fields.length > 1 || !fields[0].isEmpty()) {
+                    throw new IOException("Zone lines must look like \"name ttl type data\": " + line);
+                }
+                return null;
+            }
+            DNSName name = DNSName.fromString(fields[0]);
+            int ttl = Integer.parseInt(fields[1]);
+            String type = fields[2].toUpperCase();
+            switch (type) {
+                case "A", "AAAA" -> {
+                    byte[] address = InetAddress.getByName(fields[3]).getAddress();
+                    if (address.length != (type.equals("A") ? 4 : 16)) {
+                        throw new IOException("Wrong kind of address for " + type + ": " + fields[3]);
+                    }
+                    return new Record(name, ttl, type.equals("A") ? DNSRecord.TYPE_A : DNSRecord.TYPE_AAAA, address, null);
+                }
+                case "NS", "CNAME" -> {
+                    DNSName target = DNSName.fromString(fields[3]);
+                    return new Record(name, ttl, type.equals("NS") ? DNSRecord.TYPE_NS : DNSRecord.TYPE_CNAME, target.getWire(), target);
+                }
+                case "MX" -> {
+                    byte[] exchange = DNSName.fromString(fields[4]).getWire();
+                    ByteBuffer rdata = ByteBuffer.allocate(2 + exchange.length);
+                    rdata.putShort((short) Integer.parseInt(fields[3])).put(exchange);
+                    return new Record(name, ttl, DNSRecord.TYPE_MX, rdata.array(), null);
+                }
+                case "SOA" -> {
+                    if (fields.length < 10) {
+                        throw new IOException("SOA needs mname rname serial refresh retry expire minimum: " + line);
+                    }
+                    byte[] mname = DNSName.fromString(fields[3]).getWire();
+                    byte[] rname = DNSName.fromString(fields[4]).getWire();
+                    ByteBuffer rdata = ByteBuffer.allocate(mname.length + rname.length + 20);
+                    rdata.put(mname).put(rname);
+                    for (int i = 5; i < 10; i++) {
+                        rdata.putInt((int) Long.parseLong(fields[i]));
+                    }
+                    return new Record(name, ttl, DNSRecord.TYPE_SOA, rdata.array(), null);
+                }
+                default -> throw new IOException("Unsupported record type " + fields[2] + ": " + line);
+            }
+        }
+    }
+
+    //serves one zone until killed
+    //--listen=127.0.0.2:19153 --zone=tools/zones/root.zone
+    public static void main(String[] args) throws Exception {
+        String listen = "127.0.0.1:19153";
+        String zoneFile = null;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Arguments must look like --name=value: " + arg);
+            }
+            String value = arg.substring(split + 1);
+            switch (arg.substring(2, split)) {
+                case "listen" -> listen = value;
+                case "zone" -> zoneFile = value;
+                default -> throw new IllegalArgumentException("Unknown setting: " + arg);
+            }
+        }
+        if (zoneFile == null) {
+            throw new IllegalArgumentException("--zone is needed");
+        }
+        InetSocketAddress address = UpstreamPool.parseAddresses(listen).get(0);
+        StubAuthority authority = new StubAuthority(address, Path.of(zoneFile));
+        System.out.println("Serving " + authority.getZone() + " on " + address);
+        while (true) {
+            Thread.sleep(5000);
+            System.out.println(authority);
+        }
+    }
+}
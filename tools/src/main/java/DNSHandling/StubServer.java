@@ -0,0 +1,198 @@
+package DNSHandling;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//a pretend upstream server for load tests and benchmarks, so nothing has to go out to the network
+//it answers any name: A queries with 192.0.2.1, AAAA with 2001:db8::1, anything else with NODATA and an SOA
+//every answer carries the same TTL, and can be held back for a set delay plus some random jitter
+//a share of names can get NXDOMAIN instead (always the same names), and a share of queries can be ignored
+//to look like packet loss
+public class StubServer implements AutoCloseable {
+    private static final byte[] ADDRESS_A = {(byte) 192, 0, 2, 1};
+    private static final byte[] ADDRESS_AAAA = {0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+    private static final byte[] SOA_MNAME = DNSName.fromString("ns.stub.test").getWire();
+    private static final byte[] SOA_RNAME = DNSName.fromString("hostmaster.stub.test").getWire();
+
+    private final DatagramSocket socket;
+    private final int delayMs;
+    private final int jitterMs;
+    private final int ttl;
+    private final int nxdomainPercent;
+    private final int dropPercent;
+    private final ScheduledExecutorService delayed;
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public StubServer(int port, int delayMs, int jitterMs, int ttl, int nxdomainPercent, int dropPercent) throws IOException {
+        this.delayMs = delayMs;
+        this.jitterMs = jitterMs;
+        this.ttl = ttl;
+        this.nxdomainPercent = nxdomainPercent;
+        this.dropPercent = dropPercent;
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        delayed = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stub-delay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread thread = new Thread(this::serve, "stub-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //answers straight away with the given TTL
+    public StubServer(int port, int ttl) throws IOException {
+        this(port, 0, 0, ttl, 0, 0);
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[4096];
+        MessageView query = new MessageView();
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                queries.increment();
+                if (dropPercent > 0 && ThreadLocalRandom.current().nextInt(100) < dropPercent) {
+                    dropped.increment();
+                    continue;
+                }
+                query.reset(ByteBuffer.wrap(buffer), 0, packet.getLength());
+                if (query.getQuestionCount() == 0) {
+                    continue;
+                }
+                byte[] reply = buildReply(query);
+                SocketAddress client = packet.getSocketAddress();
+                int delay = delayMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextInt(jitterMs + 1) : 0);
+                if (delay == 0) {
+                    send(reply, client);
+                } else {
+                    delayed.schedule(() -> send(reply, client), delay, TimeUnit.MILLISECONDS);
+                }
+            } catch (IOException | RuntimeException e) {
+                //a garbled query just doesn't get an answer
+                if (!socket.isClosed()) {
+                    dropped.increment();
+                }
+            }
+        }
+    }
+
+    private byte[] buildReply(MessageView query) {
+        byte[] reply = new byte[512];
+        MessageWriter writer = new MessageWriter().reset(ByteBuffer.wrap(reply), 0);
+        int type = query.getQuestionType();
+        boolean nxdomain = nxdomainPercent > 0 &&
+                Math.floorMod(query.getNameString(query.getQuestionNameOffset()).toLowerCase().hashCode(), 100) < nxdomainPercent;
+        byte[] address = nxdomain ? null : type == DNSRecord.TYPE_A ? ADDRESS_A : type == DNSRecord.TYPE_AAAA ? ADDRESS_AAAA : null;
+        //QR, RD and RA set, plus NXDOMAIN when it applies
+        int flags = 0x8180 | (nxdomain ? CachedResponse.RCODE_NXDOMAIN : 0);
+        writer.writeHeader(query.getId(), flags, 1, address != null ? 1 : 0, address != null ? 0 : 1, 0);
+        writer.writeQuestion(query);
+        //every record's owner is the question name, by pointer
+        writer.writeShort(0xC000 | MessageView.HEADER_LENGTH);
+        if (address != null) {
+            writer.writeShort(type);
+            writer.writeShort(1);
+            writer.writeInt(ttl);
+            writer.writeShort(address.length);
+            writer.writeBytes(address);
+        } else {
+            writer.writeShort(DNSRecord.TYPE_SOA);
+            writer.writeShort(1);
+            writer.writeInt(ttl);
+            int lengthAt = writer.getLength();
+            writer.writeShort(0);
+            writer.writeName(SOA_MNAME);
+            writer.writeName(SOA_RNAME);
+            //serial, refresh, retry, expire, and the minimum which caps the negative TTL
+            writer.writeInt(1);
+            writer.writeInt(3600);
+            writer.writeInt(600);
+            writer.writeInt(86400);
+            writer.writeInt(ttl);
+            writer.patchShort(lengthAt, writer.getLength() - lengthAt - 2);
+        }
+        return Arrays.copyOf(reply, writer.getLength());
+    }
+
+    private void send(byte[] reply, SocketAddress client) {
+        try {
+            socket.send(new DatagramPacket(reply, reply.length, client));
+        } catch (IOException e) {
+            //the client is gone, nothing to do
+        }
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        delayed.shutdownNow();
+    }
+
+    public String toString() {
+        return "Port: " + getPort() +
+                ", Delay: " + delayMs + "ms" + (jitterMs > 0 ? " + up to " + jitterMs + "ms" : "") +
+                ", TTL: " + ttl + "s" +
+                ", NXDOMAIN: " + nxdomainPercent + "%" +
+                ", Drop: " + dropPercent + "%" +
+                ", Queries: " + getQueries() +
+                ", Dropped: " + getDropped();
+    }
+
+    //runs until killed, printing its counters every few seconds
+    //--port=19053 --delay-ms=0 --jitter-ms=0 --ttl=300 --nxdomain-percent=0 --drop-percent=0
+    public static void main(String[] args) throws Exception {
+        int port = 19053;
+        int delayMs = 0;
+        int jitterMs = 0;
+        int ttl = 300;
+        int nxdomainPercent = 0;
+        int dropPercent = 0;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Arguments must look like --name=value: " + arg);
+            }
+            String value = arg.substring(split + 1);
+            switch (arg.substring(2, split)) {
+                case "port" -> port = Integer.parseInt(value);
+                case "delay-ms" -> delayMs = Integer.parseInt(value);
+                case "jitter-ms" -> jitterMs = Integer.parseInt(value);
+                case "ttl" -> ttl = Integer.parseInt(value);
+                case "nxdomain-percent" -> nxdomainPercent = Integer.parseInt(value);
+                case "drop-percent" -> dropPercent = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown setting: " + arg);
+            }
+        }
+        StubServer stub = new StubServer(port, delayMs, jitterMs, ttl, nxdomainPercent, dropPercent);
+        System.out.println("Stub upstream listening on 127.0.0.1:" + stub.getPort());
+        while (true) {
+            Thread.sleep(5000);
+            System.out.println(stub);
+        }
+    }
+}